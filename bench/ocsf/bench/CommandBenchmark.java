@@ -0,0 +1,78 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.edu.server.backend.EchoServer;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.RateLimit;
+
+/**
+ * Measures <code> EchoServer.handleMessageFromClient </code>, which parses
+ * the commands sent by the chat clients and echoes the other messages. The
+ * method is called directly, on the connection of a real chat client, for
+ * a <code>#login</code> command and for a plain message; the plain message
+ * is broadcast, so its figure includes the write to the client's socket.
+ * The server's console output is discarded while measuring, since printing
+ * would otherwise dominate.
+ * <pre>
+ *   java ocsf.bench.CommandBenchmark
+ * </pre>
+ * Arguments: port (default 5559).
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class CommandBenchmark {
+    // CLASS VARIABLES **************************************************
+
+    /**
+     * The operations per iteration.
+     */
+    private static final int OPS = 50_000;
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the port.
+     * @throws Exception if the benchmark cannot run.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5559;
+
+        System.setOut(Harness.nullPrintStream());
+
+        EchoServer server = new EchoServer(port);
+        server.setRateLimit(RateLimit.NONE);
+        AtomicLong displayed = new AtomicLong();
+        ChatClient client = new ChatClient("alice", "localhost", port,
+                message -> displayed.incrementAndGet());
+        while (server.getNumberOfClients() < 1) {
+            Thread.sleep(1);
+        }
+        ConnectionToClient connection = server.getClientConnections()[0];
+
+        String[] logins = new String[OPS];
+        for (int i = 0; i < OPS; i++) {
+            logins[i] = "#login user" + i;
+        }
+        String plain = EncodeBenchmark.MESSAGE;
+
+        Harness.run("handleMessageFromClient #login", OPS,
+                i -> server.handleMessageFromClient(logins[i], connection));
+        Harness.run("handleMessageFromClient message", OPS,
+                i -> server.handleMessageFromClient(plain, connection));
+
+        long sent = (long) (Harness.WARMUP + Harness.ITERATIONS) * OPS;
+        while (displayed.get() < sent) {
+            Thread.sleep(1);
+        }
+        System.exit(0);
+    }
+}
+// End of CommandBenchmark class
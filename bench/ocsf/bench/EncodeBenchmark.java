@@ -0,0 +1,151 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.bench;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.*;
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.RateLimit;
+
+/**
+ * Measures what <code> ConnectionToClient.sendToClient </code> costs for a
+ * chat message. The first part encodes the message in memory, as each
+ * wire format does before writing: a frame of each codec, and the legacy
+ * continuous object stream under two reset policies. The second part
+ * calls <code>sendToClient</code> on a loopback connection for each wire
+ * format, the socket write included; a client drains the connection
+ * meanwhile.
+ * <pre>
+ *   java ocsf.bench.EncodeBenchmark
+ * </pre>
+ * Arguments: port (default 5557).
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class EncodeBenchmark {
+    // CLASS VARIABLES **************************************************
+
+    /**
+     * A chat line of typical length.
+     */
+    static final String MESSAGE = "alice> has anyone finished the second assignment yet?";
+
+    /**
+     * The operations per iteration in memory.
+     */
+    private static final int ENCODES = 100_000;
+
+    /**
+     * The operations per iteration over the socket.
+     */
+    private static final int SENDS = 20_000;
+
+    // INNER CLASSES ****************************************************
+
+    /**
+     * A server that ignores what its clients send.
+     */
+    static class IdleServer extends AbstractServer {
+        IdleServer(int port) {
+            super(port);
+            setRateLimit(RateLimit.NONE);
+        }
+
+        protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+        }
+    }
+
+    /**
+     * A client counting the messages it receives.
+     */
+    static class SinkClient extends AbstractClient {
+        final AtomicLong received = new AtomicLong();
+
+        SinkClient(String host, int port) {
+            super(host, port);
+        }
+
+        protected void handleMessageFromServer(Object msg) {
+            received.incrementAndGet();
+        }
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the port.
+     * @throws Exception if the benchmark cannot run.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5557;
+
+        ArrayList<Object> list = new ArrayList<Object>(Arrays.asList("alice", 42, MESSAGE));
+
+        for (Codec codec : Handshake.withCompression(Handshake.defaultCodecs())) {
+            Harness.run("encode " + codec.getName() + " string", ENCODES,
+                    i -> Harness.consume(Frames.encode(codec, MESSAGE)));
+        }
+        Harness.run("encode java list", ENCODES,
+                i -> Harness.consume(Frames.encode(SerializationCodec.INSTANCE, list)));
+
+        ManagedObjectOutputStream never = new ManagedObjectOutputStream(
+                OutputStream.nullOutputStream(), ResetPolicy.NEVER, null);
+        Harness.run("legacy stream, never reset", ENCODES,
+                i -> never.writeMessage(MESSAGE));
+        ManagedObjectOutputStream each = new ManagedObjectOutputStream(
+                OutputStream.nullOutputStream(), ResetPolicy.everyMessages(1), null);
+        Harness.run("legacy stream, reset every message", ENCODES,
+                i -> each.writeMessage(MESSAGE));
+
+        IdleServer server = new IdleServer(port);
+        server.listen();
+        send(server, port, "sendToClient text", TextCodec.INSTANCE);
+        send(server, port, "sendToClient java", SerializationCodec.INSTANCE);
+        send(server, port, "sendToClient legacy");
+        server.close();
+        System.exit(0);
+    }
+
+    /**
+     * Measures <code>sendToClient</code> to a client offering the given
+     * codecs.
+     *
+     * @param server the server.
+     * @param port   the port of the server.
+     * @param name   the name printed with the result.
+     * @param codecs the codecs offered, or none for the legacy stream.
+     * @throws Exception if the benchmark cannot run.
+     */
+    private static void send(AbstractServer server, int port, String name, Codec... codecs)
+            throws Exception {
+        SinkClient client = new SinkClient("localhost", port);
+        client.setCodecs(codecs);
+        client.openConnection();
+        while (server.getNumberOfClients() < 1) {
+            Thread.sleep(1);
+        }
+        ConnectionToClient connection = server.getClientConnections()[0];
+
+        Harness.run(name, SENDS, i -> connection.sendToClient(MESSAGE));
+
+        long sent = (long) (Harness.WARMUP + Harness.ITERATIONS) * SENDS;
+        while (client.received.get() < sent) {
+            Thread.sleep(1);
+        }
+        client.closeConnection();
+        while (server.getNumberOfClients() > 0) {
+            Thread.sleep(1);
+        }
+    }
+}
+// End of EncodeBenchmark class
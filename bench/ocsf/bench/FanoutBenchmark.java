@@ -0,0 +1,169 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.bench;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.common.*;
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.RateLimit;
+
+/**
+ * Measures <code> AbstractServer.sendToAllClients </code> with many
+ * connected clients. For each broadcast the benchmark records the time the
+ * call takes to return, and the time until every client has received the
+ * message. The clients are non-blocking channels drained by a single
+ * thread, so that the client side does not compete with the server for
+ * threads; run the three sizes in fresh JVMs:
+ * <pre>
+ *   java ocsf.bench.FanoutBenchmark 10
+ *   java ocsf.bench.FanoutBenchmark 1000
+ *   java ocsf.bench.FanoutBenchmark 10000 selector
+ * </pre>
+ * Arguments: connections (default 1000), server mode (platform, virtual or
+ * selector; default platform), broadcasts measured (default 200), port
+ * (default 5558). Ten thousand connections need twice as many file
+ * descriptors; raise <code>ulimit -n</code> first.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class FanoutBenchmark {
+    // INNER CLASSES ****************************************************
+
+    /**
+     * A server that ignores what its clients send.
+     */
+    static class IdleServer extends AbstractServer {
+        IdleServer(int port) {
+            super(port);
+            setRateLimit(RateLimit.NONE);
+        }
+
+        protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+        }
+    }
+
+    /**
+     * Reads everything the clients receive and counts the bytes.
+     */
+    static class Drainer extends Thread {
+        final Selector selector;
+        final AtomicLong received = new AtomicLong();
+
+        Drainer() throws IOException {
+            super("fanout drainer");
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        int read;
+                        while ((read = channel.read(buffer)) > 0) {
+                            received.addAndGet(read);
+                            buffer.clear();
+                        }
+                        if (read < 0)
+                            key.cancel();
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException | ClosedSelectorException ex) {
+            }
+        }
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the connections, mode, broadcasts and port.
+     * @throws Exception if the benchmark cannot run.
+     */
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        String mode = args.length > 1 ? args[1] : "platform";
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5558;
+        int warmup = Math.max(rounds / 4, 1);
+
+        IdleServer server = new IdleServer(port);
+        server.setBacklog(1024);
+        server.setVirtualThreads(mode.equals("virtual"));
+        if (mode.equals("selector"))
+            server.setSelectorThreads(Runtime.getRuntime().availableProcessors());
+        server.listen();
+
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        Handshake.writeHello(hello, new Codec[]{TextCodec.INSTANCE});
+
+        Drainer drainer = new Drainer();
+        SocketChannel[] clients = new SocketChannel[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = SocketChannel.open(new InetSocketAddress("localhost", port));
+            clients[i].write(ByteBuffer.wrap(hello.toByteArray()));
+            clients[i].configureBlocking(false);
+            clients[i].register(drainer.selector, SelectionKey.OP_READ);
+        }
+        drainer.start();
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (server.getNumberOfClients() < connections) {
+            if (System.currentTimeMillis() > deadline) {
+                System.err.println("Only " + server.getNumberOfClients()
+                        + " clients accepted; is ulimit -n high enough?");
+                System.exit(1);
+            }
+            Thread.sleep(10);
+        }
+
+        String msg = EncodeBenchmark.MESSAGE;
+        long expected = (long) connections * Handshake.reply(TextCodec.INSTANCE).length;
+        long perRound = (long) connections * Frames.encode(TextCodec.INSTANCE, msg).length;
+
+        Harness.Latencies call = new Harness.Latencies(rounds);
+        Harness.Latencies delivery = new Harness.Latencies(rounds);
+        for (int r = 0; r < warmup + rounds; r++) {
+            if (r == warmup) {
+                call.clear();
+                delivery.clear();
+            }
+            long start = System.nanoTime();
+            server.sendToAllClients(msg);
+            long returned = System.nanoTime();
+
+            expected += perRound;
+            while (drainer.received.get() < expected) {
+                Thread.onSpinWait();
+            }
+            long delivered = System.nanoTime();
+
+            call.record(returned - start);
+            delivery.record(delivered - start);
+        }
+
+        String name = "sendToAllClients " + connections + " " + mode;
+        call.print(name + " (call)");
+        delivery.print(name + " (all delivered)");
+
+        drainer.selector.close();
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        server.close();
+        System.exit(0);
+    }
+}
+// End of FanoutBenchmark class
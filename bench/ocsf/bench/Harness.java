@@ -0,0 +1,194 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.bench;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * The <code> Harness </code> class runs the benchmarks of the framework in
+ * a repeatable way. An operation is run for a number of warm-up
+ * iterations, whose results are discarded so that the just-in-time
+ * compiler settles, then for a number of measured iterations; the harness
+ * prints the mean time of one operation with the spread between
+ * iterations. Latencies measured one by one are recorded with a
+ * <code> Latencies </code> object and printed as percentiles.<p>
+ * <p>
+ * The results of the operations must be handed to <code>consume</code>, so
+ * that the compiler cannot remove the work as dead code.<p>
+ * <p>
+ * The results are printed on the standard output found when the harness
+ * is loaded, so that the benchmarks may discard the console output of the
+ * code they measure with <code>System.setOut</code>.<p>
+ * <p>
+ * The number of iterations may be changed with the system properties
+ * <code>ocsf.bench.warmup</code> and <code>ocsf.bench.iterations</code>.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Harness {
+    // CLASS VARIABLES **************************************************
+
+    /**
+     * The number of warm-up iterations.
+     */
+    public static final int WARMUP = Integer.getInteger("ocsf.bench.warmup", 5);
+
+    /**
+     * The number of measured iterations.
+     */
+    public static final int ITERATIONS = Integer.getInteger("ocsf.bench.iterations", 10);
+
+    /**
+     * The stream on which the results are printed.
+     */
+    private static final PrintStream REPORT = System.out;
+
+    /**
+     * The sink of the results consumed; read by nobody.
+     */
+    private static volatile Object sink;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Not to be instantiated.
+     */
+    private Harness() {
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Runs an operation and prints its mean cost.
+     *
+     * @param name the name printed with the result.
+     * @param ops  the number of times the operation is called per iteration.
+     * @param op   the operation.
+     * @return the mean time of one operation, in ns.
+     * @throws Exception if the operation fails.
+     */
+    public static double run(String name, int ops, Operation op) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            iteration(ops, op);
+        }
+
+        double[] nanosPerOp = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            nanosPerOp[i] = (double) iteration(ops, op) / ops;
+        }
+        Arrays.sort(nanosPerOp);
+
+        double mean = 0;
+        for (double value : nanosPerOp) {
+            mean += value;
+        }
+        mean /= ITERATIONS;
+
+        REPORT.printf("%-48s %12.1f ns/op  [%.1f .. %.1f]%n",
+                name, mean, nanosPerOp[0], nanosPerOp[ITERATIONS - 1]);
+        return mean;
+    }
+
+    /**
+     * Keeps a result alive so that the work producing it is not removed.
+     *
+     * @param result the result.
+     */
+    public static void consume(Object result) {
+        sink = result;
+    }
+
+    /**
+     * Runs one iteration.
+     *
+     * @param ops the number of calls.
+     * @param op  the operation.
+     * @return the time taken, in ns.
+     * @throws Exception if the operation fails.
+     */
+    private static long iteration(int ops, Operation op) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            op.run(i);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Returns a stream discarding what is written to it, to silence the
+     * console output of the code measured.
+     *
+     * @return the stream.
+     */
+    public static PrintStream nullPrintStream() {
+        return new PrintStream(OutputStream.nullOutputStream());
+    }
+
+    // INNER CLASSES ----------------------------------------------------
+
+    /**
+     * An operation measured by the harness.
+     */
+    public interface Operation {
+        /**
+         * Runs the operation once.
+         *
+         * @param i the index of the call within the iteration.
+         * @throws Exception if the operation fails.
+         */
+        void run(int i) throws Exception;
+    }
+
+    /**
+     * Latencies recorded one by one, printed as percentiles.
+     */
+    public static final class Latencies {
+        private final long[] nanos;
+        private int count = 0;
+
+        /**
+         * @param capacity the number of latencies that may be recorded.
+         */
+        public Latencies(int capacity) {
+            nanos = new long[capacity];
+        }
+
+        /**
+         * Records a latency.
+         *
+         * @param latency the latency, in ns.
+         */
+        public void record(long latency) {
+            nanos[count++] = latency;
+        }
+
+        /**
+         * Forgets the latencies recorded, at the end of a warm-up.
+         */
+        public void clear() {
+            count = 0;
+        }
+
+        /**
+         * Prints the percentiles of the latencies recorded.
+         *
+         * @param name the name printed with the result.
+         */
+        public void print(String name) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            REPORT.printf("%-48s p50 %8.1f  p90 %8.1f  p99 %8.1f  max %8.1f us  (n=%d)%n",
+                    name, percentile(sorted, 50), percentile(sorted, 90),
+                    percentile(sorted, 99), sorted.length == 0 ? 0.0 : sorted[count - 1] / 1000.0,
+                    count);
+        }
+
+        private static double percentile(long[] sorted, int p) {
+            return sorted.length == 0 ? 0.0 : sorted[(sorted.length - 1) * p / 100] / 1000.0;
+        }
+    }
+}
+// End of Harness class
@@ -0,0 +1,387 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.bench;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.seg2105.edu.server.backend.EchoServer;
+import ocsf.client.AbstractClient;
+import ocsf.common.Histogram;
+import ocsf.server.RateLimit;
+
+/**
+ * The <code> LoadGenerator </code> drives a chat server with many
+ * concurrent sessions, to find the number of connections at which it stops
+ * keeping up. Each session is an <code> AbstractClient </code> that logs in
+ * with <code>#login</code>; the sessions then send chat lines at a fixed
+ * total rate, and since the server broadcasts every line, each session
+ * receives the lines of all the others.<p>
+ * <p>
+ * Every line carries the time at which it was due to be sent, so the
+ * latency of a delivery is measured from that time, not from the time the
+ * line was actually sent: when the generator falls behind because the
+ * server pushes back, the delay shows in the latencies instead of being
+ * hidden. Sender and receivers share this JVM, and thus its clock.<p>
+ * <p>
+ * Every second the generator prints the lines sent and delivered, the
+ * p50, p99 and p99.9 delivery latencies and the sessions lost; a summary
+ * follows at the end. With <code>ramp</code>, sessions are added step by
+ * step up to <code>sessions</code>, and each step is summarized on its own.
+ * <pre>
+ *   java ocsf.bench.LoadGenerator port=5555 sessions=200 rate=2000 size=32-256
+ *   java ocsf.bench.LoadGenerator embedded=true sessions=2000 ramp=250 step=10
+ * </pre>
+ * Options, given as name=value:
+ * <ul>
+ * <li> <code>host</code>, <code>port</code>: the server (localhost, 5555).
+ * <li> <code>embedded</code>: true to run an <code>EchoServer</code> in this
+ * JVM, its console output discarded (false).
+ * <li> <code>sessions</code>: the number of sessions (100).
+ * <li> <code>rate</code>: the chat lines sent per second by all the sessions
+ * together (1000).
+ * <li> <code>size</code>: the length of the lines, fixed (64) or drawn
+ * uniformly from a range such as 32-512.
+ * <li> <code>duration</code>: the seconds of sending, without ramp (30).
+ * <li> <code>ramp</code>, <code>step</code>: the sessions added at each step
+ * and the seconds each step lasts (no ramp, 10).
+ * <li> <code>virtual</code>: true to read with virtual threads (false).
+ * </ul>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class LoadGenerator {
+    // CLASS VARIABLES **************************************************
+
+    /**
+     * The prefix of the lines sent by the generator.
+     */
+    private static final String PREFIX = "LG ";
+
+    /**
+     * The default value of each option.
+     */
+    private static final String[][] DEFAULTS = {
+            {"host", "localhost"}, {"port", "5555"}, {"embedded", "false"},
+            {"sessions", "100"}, {"rate", "1000"}, {"size", "64"},
+            {"duration", "30"}, {"ramp", "0"}, {"step", "10"}, {"virtual", "false"}};
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The sessions; only the first <code>opened</code> are connected.
+     */
+    private final Session[] sessions;
+
+    /**
+     * The number of sessions connected so far.
+     */
+    private volatile int opened = 0;
+
+    /**
+     * The shortest and longest lines.
+     */
+    private final int minSize, maxSize;
+
+    /**
+     * The characters padding the lines.
+     */
+    private final String padding;
+
+    /**
+     * The delivery latencies, in ns.
+     */
+    private final Histogram latencies = new Histogram();
+
+    /**
+     * The lines sent, delivered, and failed to send.
+     */
+    private final AtomicLong sent = new AtomicLong(), delivered = new AtomicLong(),
+            sendFailures = new AtomicLong();
+
+    /**
+     * The sessions whose connection was lost.
+     */
+    private final AtomicLong lost = new AtomicLong();
+
+    /**
+     * Set to stop the senders.
+     */
+    private volatile boolean stopping = false;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs a generator.
+     *
+     * @param host     the server.
+     * @param port     the port of the server.
+     * @param sessions the number of sessions.
+     * @param size     the length of the lines, as n or min-max.
+     * @param virtual  true to read with virtual threads.
+     */
+    private LoadGenerator(String host, int port, int sessions, String size, boolean virtual) {
+        int dash = size.indexOf('-');
+        minSize = Integer.parseInt(dash < 0 ? size : size.substring(0, dash));
+        maxSize = dash < 0 ? minSize : Integer.parseInt(size.substring(dash + 1));
+        if (minSize < 1 || maxSize < minSize)
+            throw new IllegalArgumentException("bad size: " + size);
+
+        char[] pad = new char[maxSize];
+        for (int i = 0; i < maxSize; i++) {
+            pad[i] = (char) ('a' + i % 26);
+        }
+        padding = new String(pad);
+
+        this.sessions = new Session[sessions];
+        for (int i = 0; i < sessions; i++) {
+            this.sessions[i] = new Session(host, port);
+            this.sessions[i].setVirtualThreads(virtual);
+        }
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Runs the generator.
+     *
+     * @param args the options, as name=value.
+     * @throws Exception if the generator cannot run.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String[] option : DEFAULTS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0 || !options.containsKey(arg.substring(0, equals))) {
+                System.err.println("Unknown option: " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        PrintStream report = System.out;
+        int port = Integer.parseInt(options.get("port"));
+        if (Boolean.parseBoolean(options.get("embedded"))) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            new EchoServer(port).setRateLimit(RateLimit.NONE);
+        }
+
+        try {
+            int sessions = Integer.parseInt(options.get("sessions"));
+            LoadGenerator generator = new LoadGenerator(options.get("host"), port, sessions,
+                    options.get("size"), Boolean.parseBoolean(options.get("virtual")));
+            generator.run(report, Integer.parseInt(options.get("rate")),
+                    Integer.parseInt(options.get("duration")),
+                    Integer.parseInt(options.get("ramp")), Integer.parseInt(options.get("step")));
+        } catch (RuntimeException ex) {
+            // An embedded server would keep the JVM running
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Opens the sessions, sends, and reports.
+     *
+     * @param report   the stream on which results are printed.
+     * @param rate     the lines sent per second.
+     * @param duration the seconds of sending without ramp.
+     * @param ramp     the sessions added per step, or zero.
+     * @param step     the seconds of each step.
+     * @throws Exception if the generator cannot run.
+     */
+    private void run(PrintStream report, int rate, int duration, int ramp, int step)
+            throws Exception {
+        int first = ramp > 0 ? Math.min(ramp, sessions.length) : sessions.length;
+        openSessions(first);
+
+        int senders = Math.min(sessions.length, Runtime.getRuntime().availableProcessors());
+        Thread[] threads = new Thread[senders];
+        long start = System.nanoTime();
+        for (int i = 0; i < senders; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> send(index, senders, rate, start), "sender " + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        report.printf("%5s %8s %10s %12s %9s %9s %9s %9s %6s%n", "sec", "sessions",
+                "sent/s", "delivered/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "lost");
+        long[] total = new long[Histogram.BUCKETS];
+        long[] stepCounts = new long[Histogram.BUCKETS];
+        int seconds = ramp > 0 ? step * ((sessions.length + ramp - 1) / ramp) : duration;
+        long lastSent = 0, lastDelivered = 0;
+        Thread opener = null;
+
+        for (int second = 1; second <= seconds; second++) {
+            LockSupport.parkNanos(start + second * 1_000_000_000L - System.nanoTime());
+
+            long[] counts = latencies.drain();
+            Histogram.add(total, counts);
+            Histogram.add(stepCounts, counts);
+            long nowSent = sent.get(), nowDelivered = delivered.get();
+            report.printf("%5d %8d %10d %12d %9.2f %9.2f %9.2f %9.2f %6d%n", second, opened,
+                    nowSent - lastSent, nowDelivered - lastDelivered,
+                    millis(counts, 50), millis(counts, 99), millis(counts, 99.9),
+                    millis(counts, 100), lost.get());
+            lastSent = nowSent;
+            lastDelivered = nowDelivered;
+
+            if (ramp > 0 && second % step == 0) {
+                summarize(report, "step " + opened + " sessions", stepCounts, step);
+                stepCounts = new long[Histogram.BUCKETS];
+                // Sessions are opened aside so that the report keeps its pace
+                if (opened < sessions.length && (opener == null || !opener.isAlive())) {
+                    int target = Math.min(opened + ramp, sessions.length);
+                    opener = new Thread(() -> openSessions(target), "session opener");
+                    opener.setDaemon(true);
+                    opener.start();
+                }
+            }
+        }
+
+        stopping = true;
+        summarize(report, "total", total, seconds);
+        report.printf("lines sent %d, failed to send %d, sessions lost %d%n",
+                sent.get(), sendFailures.get(), lost.get());
+
+        for (int i = 0; i < opened; i++) {
+            try {
+                sessions[i].closeConnection();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * Connects sessions and logs them in.
+     *
+     * @param count the number of sessions that must be connected.
+     */
+    private void openSessions(int count) {
+        for (int i = opened; i < count; i++) {
+            try {
+                sessions[i].openConnection();
+                sessions[i].sendToServer("#login user" + i);
+            } catch (IOException ex) {
+                lost.incrementAndGet();
+            }
+            opened = i + 1;
+        }
+    }
+
+    /**
+     * Sends lines from the sessions given to one sender, at its share of
+     * the rate, until stopped.
+     *
+     * @param index   the index of the sender.
+     * @param senders the number of senders.
+     * @param rate    the lines sent per second by all senders.
+     * @param start   the time sending started.
+     */
+    private void send(int index, int senders, int rate, long start) {
+        long interval = 1_000_000_000L * senders / rate;
+        long due = start + interval * index / senders;
+        int next = index;
+
+        while (!stopping) {
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+
+            int open = opened;
+            if (next >= open)
+                next = index;
+            if (next < open) {
+                try {
+                    sessions[next].sendToServer(line(due));
+                    sent.incrementAndGet();
+                } catch (IOException ex) {
+                    sendFailures.incrementAndGet();
+                }
+                next += senders;
+            }
+            due += interval;
+        }
+    }
+
+    /**
+     * Builds a line of random length carrying the time it is due.
+     *
+     * @param due the time the line is due, in ns.
+     * @return the line.
+     */
+    private String line(long due) {
+        String head = PREFIX + due + ' ';
+        int size = minSize == maxSize ? minSize
+                : ThreadLocalRandom.current().nextInt(minSize, maxSize + 1);
+        return size <= head.length() ? head : head + padding.substring(0, size - head.length());
+    }
+
+    /**
+     * Prints the summary of a period.
+     *
+     * @param report  the stream on which results are printed.
+     * @param name    the name of the period.
+     * @param counts  the latencies of the period.
+     * @param seconds the length of the period.
+     */
+    private void summarize(PrintStream report, String name, long[] counts, int seconds) {
+        report.printf("%-22s delivered/s %d  p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f ms%n",
+                name, Histogram.total(counts) / seconds, millis(counts, 50),
+                millis(counts, 99), millis(counts, 99.9), millis(counts, 100));
+    }
+
+    /**
+     * @param counts     latencies taken from the histogram.
+     * @param percentile the percentile.
+     * @return the percentile, in ms.
+     */
+    private static double millis(long[] counts, double percentile) {
+        return Histogram.percentile(counts, percentile) / 1e6;
+    }
+
+    // INNER CLASSES ----------------------------------------------------
+
+    /**
+     * A chat session, recording the latency of the lines it receives.
+     */
+    private class Session extends AbstractClient {
+        Session(String host, int port) {
+            super(host, port);
+        }
+
+        protected void handleMessageFromServer(Object msg) {
+            long now = System.nanoTime();
+            if (!(msg instanceof String) || !((String) msg).startsWith(PREFIX))
+                return;
+            String line = (String) msg;
+            int end = line.indexOf(' ', PREFIX.length());
+            try {
+                long due = Long.parseLong(line.substring(PREFIX.length(),
+                        end < 0 ? line.length() : end));
+                latencies.record(now - due);
+                delivered.incrementAndGet();
+            } catch (NumberFormatException ex) {
+            }
+        }
+
+        protected void connectionException(Exception exception) {
+            if (!stopping)
+                lost.incrementAndGet();
+        }
+    }
+}
+// End of LoadGenerator class
@@ -0,0 +1,80 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.bench;
+
+import java.util.concurrent.CompletableFuture;
+
+import ocsf.client.AbstractClient;
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.RateLimit;
+
+/**
+ * Measures <code> AbstractClient.sendToServerAsync </code> over loopback,
+ * for send windows of several sizes. Each iteration sends a run of
+ * messages and waits for the acknowledgement of the last one; with a
+ * window of one message, every message waits for the acknowledgement of
+ * the previous one, as a caller blocking on each send would. The server
+ * does nothing with the messages, so the figures are those of the
+ * framework alone.
+ * <pre>
+ *   java ocsf.bench.PipelineBenchmark
+ * </pre>
+ * Arguments: port (default 5561).
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class PipelineBenchmark {
+    // CLASS VARIABLES **************************************************
+
+    /**
+     * The operations per iteration.
+     */
+    private static final int OPS = 20_000;
+
+    /**
+     * The send windows measured.
+     */
+    private static final int[] WINDOWS = {1, 16, 256};
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the port.
+     * @throws Exception if the benchmark cannot run.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5561;
+
+        AbstractServer server = new AbstractServer(port) {
+            protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+            }
+        };
+        server.setRateLimit(RateLimit.NONE);
+        server.listen();
+        AbstractClient client = new AbstractClient("localhost", port) {
+            protected void handleMessageFromServer(Object msg) {
+            }
+        };
+        client.openConnection();
+
+        String msg = EncodeBenchmark.MESSAGE;
+        for (int window : WINDOWS) {
+            client.setSendWindow(window);
+            Harness.run("sendToServerAsync window " + window, OPS, i -> {
+                CompletableFuture<Long> acknowledged = client.sendToServerAsync(msg);
+                if (i == OPS - 1)
+                    Harness.consume(acknowledged.get()); // Acknowledgements are cumulative
+            });
+        }
+
+        client.closeConnection();
+        server.close();
+        System.exit(0);
+    }
+}
+// End of PipelineBenchmark class
@@ -0,0 +1,65 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.bench;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.edu.server.backend.EchoServer;
+import ocsf.server.RateLimit;
+
+/**
+ * Measures the round trip of a chat message over loopback: from
+ * <code> ChatClient.sendToServer </code>, through the echo of
+ * <code> EchoServer </code>, to <code>handleMessageFromServer</code> on the
+ * same client. One message is in flight at a time, so each latency is that
+ * of a lone message. The console output of the server and client is
+ * discarded while measuring.
+ * <pre>
+ *   java ocsf.bench.RoundTripBenchmark
+ * </pre>
+ * Arguments: round trips measured (default 20000), port (default 5560).
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class RoundTripBenchmark {
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the round trips and port.
+     * @throws Exception if the benchmark cannot run.
+     */
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 5560;
+        int warmup = Math.max(rounds / 4, 1);
+
+        System.setOut(Harness.nullPrintStream());
+
+        EchoServer server = new EchoServer(port);
+        server.setRateLimit(RateLimit.NONE);
+        BlockingQueue<String> echoes = new LinkedBlockingQueue<String>();
+        ChatClient client = new ChatClient("alice", "localhost", port, echoes::add);
+
+        Harness.Latencies latencies = new Harness.Latencies(rounds);
+        String msg = EncodeBenchmark.MESSAGE;
+        for (int r = 0; r < warmup + rounds; r++) {
+            if (r == warmup)
+                latencies.clear();
+
+            long start = System.nanoTime();
+            client.sendToServer(msg);
+            if (echoes.poll(10, TimeUnit.SECONDS) == null)
+                throw new IOException("message " + r + " was not echoed");
+            latencies.record(System.nanoTime() - start);
+        }
+        latencies.print("sendToServer -> handleMessageFromServer");
+        System.exit(0);
+    }
+}
+// End of RoundTripBenchmark class
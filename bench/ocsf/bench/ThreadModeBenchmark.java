@@ -0,0 +1,191 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import ocsf.client.AbstractClient;
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.RateLimit;
+
+/**
+ * Compares the platform-thread and virtual-thread execution modes of
+ * <code> AbstractServer </code>. The benchmark opens a number of idle
+ * connections, reports the memory they hold, then measures how long a
+ * <code> sendToAllClients </code> broadcast takes to reach a few probe
+ * clients. Run each mode in a fresh JVM so that the figures do not mix:
+ * <pre>
+ *   java ocsf.bench.ThreadModeBenchmark platform 5000
+ *   java ocsf.bench.ThreadModeBenchmark virtual 5000
+ * </pre>
+ * Arguments: mode (platform or virtual), idle connections (default 2000),
+ * broadcast rounds (default 200), port (default 5556).
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class ThreadModeBenchmark {
+    // CLASS VARIABLES **************************************************
+
+    /**
+     * The number of probe clients that time each broadcast.
+     */
+    private static final int PROBES = 4;
+
+    // INNER CLASSES ****************************************************
+
+    /**
+     * A server that ignores what its clients send.
+     */
+    static class IdleServer extends AbstractServer {
+        IdleServer(int port) {
+            super(port);
+            setRateLimit(RateLimit.NONE);
+        }
+
+        protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+        }
+    }
+
+    /**
+     * A client recording when each broadcast arrives.
+     */
+    static class ProbeClient extends AbstractClient {
+        final BlockingQueue<Long> arrivals = new LinkedBlockingQueue<Long>();
+
+        ProbeClient(String host, int port) {
+            super(host, port);
+        }
+
+        protected void handleMessageFromServer(Object msg) {
+            arrivals.add(System.nanoTime());
+        }
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the mode, idle connections, rounds and port.
+     * @throws Exception if the benchmark cannot run.
+     */
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "platform";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5556;
+
+        IdleServer server = new IdleServer(port);
+        server.setVirtualThreads(mode.equals("virtual"));
+        server.setBacklog(1024);
+        server.listen();
+
+        long rssBefore = residentMemory();
+        long heapBefore = usedHeap();
+
+        // Idle clients are bare sockets so that the client side holds no thread
+        List<Socket> idle = new ArrayList<Socket>(connections);
+        for (int i = 0; i < connections; i++) {
+            Socket socket = new Socket("localhost", port);
+            new ObjectOutputStream(socket.getOutputStream()).flush();
+            idle.add(socket);
+        }
+        awaitClients(server, connections);
+
+        long rssAfter = residentMemory();
+        long heapAfter = usedHeap();
+
+        ProbeClient[] probes = new ProbeClient[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = new ProbeClient("localhost", port);
+            probes[i].openConnection();
+        }
+        awaitClients(server, connections + PROBES);
+
+        long[] latencies = new long[rounds];
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            server.sendToAllClients(String.valueOf(r));
+
+            long last = start;
+            for (ProbeClient probe : probes) {
+                Long arrival = probe.arrivals.poll(10, TimeUnit.SECONDS);
+                if (arrival == null)
+                    throw new IOException("broadcast " + r + " was not received");
+                last = Math.max(last, arrival);
+            }
+            latencies[r] = last - start;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println("mode                      " + mode);
+        System.out.println("idle connections          " + connections);
+        System.out.println("platform threads          "
+                + ManagementFactory.getThreadMXBean().getThreadCount());
+        if (rssBefore > 0)
+            System.out.println("resident bytes/connection "
+                    + (rssAfter - rssBefore) / connections);
+        System.out.println("heap bytes/connection     " + (heapAfter - heapBefore) / connections);
+        System.out.println("broadcast p50 (us)        " + latencies[rounds / 2] / 1000);
+        System.out.println("broadcast p99 (us)        " + latencies[rounds * 99 / 100] / 1000);
+        System.out.println("broadcast max (us)        " + latencies[rounds - 1] / 1000);
+
+        for (ProbeClient probe : probes) {
+            probe.closeConnection();
+        }
+        for (Socket socket : idle) {
+            socket.close();
+        }
+        server.close();
+        System.exit(0);
+    }
+
+    /**
+     * Waits until the server has accepted the given number of clients.
+     *
+     * @param server  the server.
+     * @param clients the number of clients expected.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static void awaitClients(AbstractServer server, int clients)
+            throws InterruptedException {
+        while (server.getNumberOfClients() < clients) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @return the heap in use after a garbage collection.
+     */
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return the resident set size of this process, or 0 where it cannot
+     * be read.
+     */
+    private static long residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:"))
+                    return 1024 * Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        } catch (IOException | NumberFormatException ex) {
+        }
+        return 0;
+    }
+}
+// End of ThreadModeBenchmark class
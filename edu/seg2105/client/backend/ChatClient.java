@@ -5,8 +5,11 @@
 package edu.seg2105.client.backend;
 
 import ocsf.client.*;
+import ocsf.common.Handshake;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
 import edu.seg2105.client.common.*;
 
@@ -19,6 +22,18 @@ import edu.seg2105.client.common.*;
  * @author Fran&ccedil;ois B&eacute;langer
  */
 public class ChatClient extends AbstractClient {
+    //Class variables *************************************************
+
+    /**
+     * The log on which the client prints its messages and events.
+     */
+    private static final AsyncLog LOG = AsyncLog.get();
+
+    /**
+     * The commands typed on the client UI.
+     */
+    private static final CommandRegistry<ChatClient> COMMANDS = registerCommands();
+
     //Instance variables **********************************************
 
     /**
@@ -27,11 +42,53 @@ public class ChatClient extends AbstractClient {
      */
     ChatIF clientUI;
 
+    /**
+     * The login ID of the client, sent to the server on each connection.
+     */
+    private String loginID;
+
+    /**
+     * The token of the client's session on the server, or null if it has
+     * none.
+     */
+    private volatile String sessionToken = null;
+
+    /**
+     * The number of messages received in the current session.
+     */
+    private volatile long received = 0;
+
+    /**
+     * Indicates if the client sent #login or #resume on the current
+     * connection, and is waiting for the server to tell it about its
+     * session. Only used by the thread reading from the server.
+     */
+    private boolean awaitingSession = false;
+
+    /**
+     * Indicates if the client asked to resume its session and the server
+     * has not answered yet. Only used by the thread reading from the
+     * server.
+     */
+    private boolean resuming = false;
+
+    /**
+     * The messages received while resuming, which the server sends again
+     * if the session is resumed. Only used by the thread reading from the
+     * server.
+     */
+    private final List<Object> held = new ArrayList<Object>();
 
     //Constructors ****************************************************
 
     /**
-     * Constructs an instance of the chat client.
+     * Constructs an instance of the chat client. Compression is offered to
+     * the server when the system property <code>seg2105.compress</code> is
+     * true. A lost connection is opened again, keeping up to 1000 messages
+     * meanwhile, unless the system property <code>seg2105.reconnect</code>
+     * is false. A heartbeat is sent after <code>seg2105.heartbeat</code> ms
+     * of silence (15000 by default, 0 for none), and the server is
+     * considered lost after three times as long.
      *
      * @param loginID  The ID of the client.
      * @param host     The server to connect to.
@@ -43,6 +100,13 @@ public class ChatClient extends AbstractClient {
             throws IOException {
         super(host, port); //Call the superclass constructor
         this.clientUI = clientUI;
+        this.loginID = loginID;
+        if (Boolean.getBoolean("seg2105.compress"))
+            setCodecs(Handshake.withCompression(Handshake.defaultCodecs()));
+        if (Boolean.parseBoolean(System.getProperty("seg2105.reconnect", "true")))
+            setReconnectPolicy(ReconnectPolicy.backoff(250, 30_000, 1000));
+        long heartbeat = Long.getLong("seg2105.heartbeat", 15_000);
+        setHeartbeat(heartbeat, 3 * heartbeat);
         openConnection();
     }
 
@@ -50,14 +114,58 @@ public class ChatClient extends AbstractClient {
     //Instance methods ************************************************
 
     /**
-     * This method handles all data that comes in from the server.
+     * This method handles all data that comes in from the server. The
+     * messages of the current session are counted, so that only those
+     * missed are sent again if the connection drops. While the session is
+     * being resumed, the messages are held until the server answers.
      *
      * @param msg The message from the server.
      */
     public void handleMessageFromServer(Object msg) {
+        if (resuming) {
+            held.add(msg);
+            return;
+        }
+        received++;
         clientUI.display(msg.toString());
     }
 
+    /**
+     * Implements the hook method called when the server tells the client
+     * about its session, which is only believed in answer to the #login or
+     * #resume sent on the current connection. The messages held while
+     * resuming are sent again after a resumed notice, so they are dropped;
+     * if the session could not be resumed, they are shown, and a new
+     * session is awaited.
+     *
+     * @param token   The token of the session, or null if it could not be
+     *                resumed.
+     * @param resumed true if the session was resumed.
+     */
+    @Override
+    protected void sessionChanged(String token, boolean resumed) {
+        if (!awaitingSession)
+            return;
+
+        if (token == null) {
+            sessionToken = null;
+            resuming = false;
+            for (Object msg : held) {
+                clientUI.display(msg.toString());
+            }
+            held.clear();
+            return;
+        }
+        awaitingSession = false;
+        if (resumed) {
+            resuming = false;
+            held.clear();
+        } else {
+            sessionToken = token;
+            received = 0;
+        }
+    }
+
     /**
      * This method handles all data coming from the client UI
      *
@@ -65,12 +173,18 @@ public class ChatClient extends AbstractClient {
      */
     public void handleMessageFromClientUI(String message) {
         try {
-            if (message.startsWith("#")) {
-                handleCommand(message);
+            if (COMMANDS.dispatch(message, this))
+                return;
+            if (CommandRegistry.isCommand(message)) {
+                LOG.error("ERROR - Unknown command:", CommandRegistry.nameOf(message));
             } else {
                 sendToServer(message);
             }
         } catch (IOException e) {
+            if (isReconnecting()) {
+                LOG.error("ERROR - Too many messages while reconnecting; message not sent.");
+                return;
+            }
             clientUI.display
                     ("Could not send message to server. Terminating client.");
             quit();
@@ -78,83 +192,100 @@ public class ChatClient extends AbstractClient {
     }
 
     /**
-     * This method handles commands coming from the UI.
-     * Commands start with the '#' symbol.
+     * Registers the handlers of the commands typed on the client UI.
      *
-     * @param message The message from the UI.
+     * @return The registry.
      */
-    private void handleCommand(String message) {
-        String[] args = message.split(" ");
-        String command = args[0];
-        switch (command) {
-            // i) Causes the client to terminate gracefully.
-            case "#quit":
-                System.out.println("Quitting...");
-                quit();
-                break;
-
-            // ii) Causes the client to disconnect from the server, but not quit.
-            case "#logoff":
-                try {
-                    if (this.isConnected()) {
-                        this.closeConnection();
+    private static CommandRegistry<ChatClient> registerCommands() {
+        return new CommandRegistry<ChatClient>()
+                // i) Causes the client to terminate gracefully.
+                .register("#quit", (client, args) -> {
+                    LOG.info("Quitting...");
+                    client.quit();
+                })
+
+                // ii) Causes the client to disconnect from the server, but not quit.
+                .register("#logoff", (client, args) -> {
+                    try {
+                        if (client.isConnected() || client.isReconnecting()) {
+                            client.closeConnection();
+                        } else {
+                            LOG.error("ERROR - The client is already disconnected.");
+                        }
+                    } catch (IOException e) {
+                        LOG.error("ERROR - Could not close connection.");
+                    }
+                })
+
+                // (iii) Calls the setHost method in the client.
+                // Only allowed if the client is logged off; displays an error message otherwise
+                .register("#sethost", (client, args) -> {
+                    if (client.isConnected()) {
+                        LOG.error("ERROR - Client is already connected.");
+                    } else if (args.count() == 0) {
+                        LOG.error("ERROR - Usage: #sethost <host>");
                     } else {
-                        System.out.println("ERROR - The client is already disconnected.");
+                        client.setHost(args.get(0));
+                        LOG.info("Host is set to ", args.get(0));
                     }
-                } catch (IOException e) {
-                    System.out.println("ERROR - Could not close connection.");
-                }
-                break;
-
-            // (iii) Calls the setHost method in the client.
-            // Only allowed if the client is logged off; displays an error message otherwise
-            case "#sethost":
-                if (this.isConnected()) {
-                    System.out.println("ERROR - Client is already connected.");
-                } else {
-                    super.setHost(args[1]);
-                    System.out.println("Host is set to " + (args[1]));
-                }
-                break;
-
-            // (iv) Calls the setPort method in the client, with the same constraints as #sethost.
-            case "#setport":
-                if (this.isConnected()) {
-                    System.out.println("ERROR - Client is still connected.");
-                } else {
-                    super.setPort(Integer.parseInt(args[1]));
-                    System.out.println("Port is set to " + (args[1]));
-                }
-                break;
-
-            // (v) Causes the client to connect to the server. Only allowed if the client is not already
-            // connected; displays an error message otherwise.
-            case "#login":
-                try {
-                    if (!(this.isConnected())) {
-                        System.out.println("Connection opened");
-                        this.openConnection();
+                })
+
+                // (iv) Calls the setPort method in the client, with the same constraints as #sethost.
+                .register("#setport", (client, args) -> {
+                    if (client.isConnected()) {
+                        LOG.error("ERROR - Client is still connected.");
                     } else {
-                        System.out.println("ERROR - The client is already connected.");
+                        try {
+                            client.setPort(args.getInt(0));
+                            LOG.info("Port is set to ", args.get(0));
+                        } catch (NumberFormatException e) {
+                            LOG.error("ERROR - Usage: #setport <port>");
+                        }
+                    }
+                })
+
+                // (v) Causes the client to connect to the server. Only allowed if the client is not already
+                // connected; displays an error message otherwise.
+                .register("#login", (client, args) -> {
+                    try {
+                        if (client.isReconnecting()) {
+                            LOG.error("ERROR - The client is already reconnecting.");
+                        } else if (!(client.isConnected())) {
+                            LOG.info("Connection opened");
+                            client.openConnection();
+                        } else {
+                            LOG.error("ERROR - The client is already connected.");
+                        }
+                    } catch (IOException e) {
+                        LOG.error("ERROR - Could not open connection.");
                     }
-                } catch (IOException e) {
-                    System.out.println("ERROR - Could not open connection.");
-                }
-                break;
-
-            //  (vi) Displays the current host name.
-            case "#gethost":
-                System.out.println("Current host is " + this.getHost());
-                break;
-
-            // (vii) Displays the current port number.
-            case "#getport":
-                System.out.println("Current port is " + this.getPort());
-                break;
-
-            default:
-                System.out.println("ERROR - Unknown command:" + command);
-                break;
+                })
+
+                //  (vi) Displays the current host name.
+                .register("#gethost", (client, args) -> LOG.info("Current host is ", client.getHost()))
+
+                // (vii) Displays the current port number.
+                .register("#getport", (client, args) -> LOG.info("Current port is ", client.getPort()))
+
+                // (viii) Joins, leaves or switches chat channels, or sends a message
+                // to one user only; handled by the server.
+                .register("#join", ChatClient::forward)
+                .register("#leave", ChatClient::forward)
+                .register("#channel", ChatClient::forward)
+                .register("#msg", ChatClient::forward);
+    }
+
+    /**
+     * Sends a command handled by the server as it was typed.
+     *
+     * @param client The client.
+     * @param args   The arguments of the command.
+     */
+    private static void forward(ChatClient client, CommandRegistry.Arguments args) {
+        try {
+            client.sendToServer(args.line());
+        } catch (IOException e) {
+            LOG.error("ERROR - Could not send command to server.");
         }
     }
 
@@ -165,25 +296,54 @@ public class ChatClient extends AbstractClient {
         try {
             closeConnection();
         } catch (IOException e) {
-            System.out.println("ERROR - Could not close connection.");
+            LOG.error("ERROR - Could not close connection.");
         }
         System.exit(0);
     }
 
     /**
      * Implements the hook method called each time an exception is thrown by the client's
-     * thread that is waiting for messages from the server. The method may be
-     * overridden by subclasses.
+     * thread that is waiting for messages from the server. The client keeps
+     * running if it is to reconnect, and terminates otherwise.
      *
      * @param exception the exception raised.
      */
     @Override
     protected void connectionException(Exception exception) {
-        System.out.println("The server has shut down");
+        if (isReconnecting()) {
+            LOG.info("The server has shut down; reconnecting...");
+            return;
+        }
+        LOG.info("The server has shut down");
         System.exit(0);
         // quit();
     }
 
+    /**
+     * Implements the hook method called after a connection has been
+     * established, so that the server knows the client by its login ID.
+     * The login is sent again on every reconnection, before the messages
+     * typed meanwhile; with a session, the client asks to resume it from
+     * the last message received.
+     */
+    @Override
+    protected void connectionEstablished() {
+        if (isReconnecting())
+            LOG.info("Reconnected to the server");
+        String token = sessionToken;
+        held.clear();
+        awaitingSession = true;
+        resuming = token != null;
+        try {
+            if (token != null)
+                sendToServer("#resume " + loginID + " " + token + " " + received);
+            else
+                sendToServer("#login " + loginID);
+        } catch (IOException e) {
+            LOG.error("ERROR - Could not send login ID to server.");
+        }
+    }
+
     /**
      * Implemented the hook method called after the connection has been closed. The default
      * implementation does nothing. The method may be overridden by subclasses to
@@ -192,7 +352,7 @@ public class ChatClient extends AbstractClient {
      */
     @Override
     public void connectionClosed() {
-        System.out.println("Connection closed");
+        LOG.info("Connection closed");
     }
 }
 //End of ChatClient class
@@ -0,0 +1,324 @@
+package edu.seg2105.client.common;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class writes the console output of the chat programs without
+ * making the threads that produce it wait. An entry is put in a ring
+ * buffer, a few atomic operations, and a background thread turns the
+ * entries into text and prints them in batches, flushing once per batch.
+ * When the buffer is full, new entries are dropped rather than blocking
+ * the caller; the writer then reports how many were lost.
+ * <p>
+ * An entry is made of parts that are only turned into text by the writer,
+ * so that the caller does not even pay for building the string. Parts must
+ * therefore not change after they are logged. Entries below the level of
+ * the log are discarded at once.
+ * <p>
+ * The shared log prints to the standard output found when it is first
+ * used. Its level is read from the system property
+ * <code>seg2105.log.level</code> (DEBUG by default) and its capacity from
+ * <code>seg2105.log.capacity</code> (8192 entries). The entries still
+ * buffered are printed when the JVM exits.
+ */
+public final class AsyncLog {
+    //Class variables *************************************************
+
+    /**
+     * The shared log, created when first needed.
+     */
+    private static AsyncLog shared = null;
+
+    //Instance variables **********************************************
+
+    /**
+     * The stream the entries are printed on.
+     */
+    private final PrintStream out;
+
+    /**
+     * The lowest level printed.
+     */
+    private volatile Level level;
+
+    /**
+     * The entries; a slot is free for the producer claiming position p
+     * when its sequence is p, and holds an entry for the writer reading
+     * position p when its sequence is p + 1.
+     */
+    private final Entry[] entries;
+
+    /**
+     * The sequence of each slot.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The capacity of the buffer minus one; the capacity is a power of two.
+     */
+    private final int mask;
+
+    /**
+     * The next position claimed by a producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The next position read by the writer. Used by the writer only.
+     */
+    private long head = 0;
+
+    /**
+     * The entries dropped because the buffer was full.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * The entries dropped already reported by the writer.
+     */
+    private long droppedReported = 0;
+
+    /**
+     * The thread printing the entries.
+     */
+    private final Thread writer;
+
+    /**
+     * Indicates if the writer is about to wait for entries.
+     */
+    private volatile boolean writerWaiting = false;
+
+    /**
+     * Set when the log is closed; the writer then prints what is left and
+     * stops.
+     */
+    private volatile boolean closed = false;
+
+    //Constructors ****************************************************
+
+    /**
+     * Constructs a log and starts its writer.
+     *
+     * @param out      The stream the entries are printed on.
+     * @param level    The lowest level printed.
+     * @param capacity The number of entries the buffer holds, rounded up to
+     *                 a power of two.
+     */
+    public AsyncLog(PrintStream out, Level level, int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.out = out;
+        this.level = level;
+        this.entries = new Entry[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+
+        writer = new Thread(this::write, "AsyncLog writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    //Class methods ***************************************************
+
+    /**
+     * Returns the shared log, which prints on the standard output and is
+     * closed when the JVM exits.
+     *
+     * @return The shared log.
+     */
+    public static synchronized AsyncLog get() {
+        if (shared == null) {
+            shared = new AsyncLog(System.out,
+                    Level.valueOf(System.getProperty("seg2105.log.level", "DEBUG")),
+                    Integer.getInteger("seg2105.log.capacity", 8192));
+            AsyncLog log = shared;
+            Runtime.getRuntime().addShutdownHook(new Thread(log::close, "AsyncLog shutdown"));
+        }
+        return shared;
+    }
+
+    //Instance methods ************************************************
+
+    /**
+     * Logs an entry for a single message or event.
+     *
+     * @param level The level of the entry.
+     * @param parts The parts of the entry, printed one after the other.
+     */
+    public void log(Level level, Object... parts) {
+        if (level.compareTo(this.level) < 0 || closed)
+            return;
+
+        // Claim a free slot, or drop the entry if there is none
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+            if (sequence < position) {
+                dropped.increment();
+                return;
+            }
+            if (sequence == position && tail.compareAndSet(position, position + 1))
+                break;
+        }
+
+        // A full write, so that the writer cannot be seen waiting too late
+        entries[slot].parts = parts;
+        sequences.set(slot, position + 1);
+
+        if (writerWaiting)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Indicates if entries of a level are printed, so that callers on hot
+     * paths can skip building an entry that would be discarded.
+     *
+     * @param level The level.
+     * @return true if entries of that level are printed.
+     */
+    public boolean isLoggable(Level level) {
+        return level.compareTo(this.level) >= 0 && !closed;
+    }
+
+    /**
+     * Logs an entry at the DEBUG level.
+     *
+     * @param parts The parts of the entry.
+     */
+    public void debug(Object... parts) {
+        log(Level.DEBUG, parts);
+    }
+
+    /**
+     * Logs an entry at the INFO level.
+     *
+     * @param parts The parts of the entry.
+     */
+    public void info(Object... parts) {
+        log(Level.INFO, parts);
+    }
+
+    /**
+     * Logs an entry at the ERROR level.
+     *
+     * @param parts The parts of the entry.
+     */
+    public void error(Object... parts) {
+        log(Level.ERROR, parts);
+    }
+
+    /**
+     * Sets the lowest level printed.
+     *
+     * @param level The level.
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Returns the number of entries dropped so far because the buffer was
+     * full.
+     *
+     * @return The number of entries dropped.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Prints the entries still buffered and stops the writer. Entries logged
+     * afterwards are discarded.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Prints the entries in batches until the log is closed. Runs on the
+     * writer thread.
+     */
+    private void write() {
+        StringBuilder batch = new StringBuilder(4096);
+        while (true) {
+            boolean stopping = closed;
+            int count = 0;
+
+            Entry entry;
+            while (count < entries.length && (entry = next()) != null) {
+                for (Object part : entry.parts) {
+                    batch.append(part);
+                }
+                batch.append(System.lineSeparator());
+                entry.parts = null;
+                sequences.lazySet((int) head & mask, head + entries.length);
+                head++;
+                count++;
+            }
+
+            long lost = dropped.sum();
+            if (lost > droppedReported) {
+                batch.append("WARNING - ").append(lost - droppedReported)
+                        .append(" log entries dropped").append(System.lineSeparator());
+                droppedReported = lost;
+            }
+
+            if (batch.length() > 0) {
+                out.print(batch);
+                out.flush();
+                batch.setLength(0);
+            } else if (stopping) {
+                return;
+            } else {
+                // Wait for a producer, checking once more once visible
+                writerWaiting = true;
+                if (next() == null && !closed)
+                    LockSupport.parkNanos(this, 100_000_000L);
+                writerWaiting = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the next entry to print, without consuming it.
+     *
+     * @return The entry, or null if none is ready.
+     */
+    private Entry next() {
+        int slot = (int) head & mask;
+        return sequences.get(slot) == head + 1 ? entries[slot] : null;
+    }
+
+    //Inner classes ***************************************************
+
+    /**
+     * The levels of the entries, from the least to the most important.
+     */
+    public enum Level {
+        DEBUG, INFO, ERROR
+    }
+
+    /**
+     * A slot of the ring buffer.
+     */
+    private static final class Entry {
+        Object[] parts;
+    }
+}
+//End of AsyncLog class
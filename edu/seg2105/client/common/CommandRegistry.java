@@ -0,0 +1,292 @@
+package edu.seg2105.client.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This class finds and runs the handlers of the commands typed by users or
+ * sent by clients: lines starting with '#', whose first word names the
+ * command. The names are kept in a trie built as handlers are registered,
+ * so a command is found by reading its name once, without splitting the
+ * line or allocating substrings.
+ * <p>
+ * The arguments are passed to the handler as views over the line: the
+ * offsets of the words following the command, found in a reused object.
+ * A handler only creates a string for an argument if it asks for one.
+ * A line that does not start with '#' is not looked at any further, so
+ * dispatching a chat message costs a single character test.
+ * <p>
+ * Handlers are registered before the registry is used; dispatching may
+ * then be done from any number of threads at once.
+ *
+ * @param <C> The type of the context passed to the handlers, such as the
+ *            connection a command came from.
+ */
+public final class CommandRegistry<C> {
+    //Class variables *************************************************
+
+    /**
+     * The character starting every command.
+     */
+    public static final char PREFIX = '#';
+
+    /**
+     * The arguments of the command being dispatched on each thread.
+     */
+    private static final ThreadLocal<Arguments> ARGUMENTS = ThreadLocal.withInitial(Arguments::new);
+
+    //Instance variables **********************************************
+
+    /**
+     * The root of the trie of the command names, without their '#'.
+     */
+    private final Node<C> root = new Node<C>();
+
+    //Class methods ***************************************************
+
+    /**
+     * Indicates if a line is a command, that is, starts with '#'.
+     *
+     * @param line The line.
+     * @return true for a command.
+     */
+    public static boolean isCommand(String line) {
+        return !line.isEmpty() && line.charAt(0) == PREFIX;
+    }
+
+    /**
+     * Returns the name of the command on a line, to report it as unknown.
+     *
+     * @param line The line.
+     * @return The first word of the line.
+     */
+    public static String nameOf(String line) {
+        int end = 0;
+        while (end < line.length() && line.charAt(end) > ' ') {
+            end++;
+        }
+        return line.substring(0, end);
+    }
+
+    //Instance methods ************************************************
+
+    /**
+     * Registers the handler of a command, replacing any previous one.
+     *
+     * @param name    The name of the command, with its '#'.
+     * @param handler The handler.
+     * @return This registry, to register more handlers.
+     */
+    public CommandRegistry<C> register(String name, Handler<C> handler) {
+        if (!isCommand(name) || name.length() < 2)
+            throw new IllegalArgumentException("not a command name: " + name);
+
+        Node<C> node = root;
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ')
+                throw new IllegalArgumentException("not a command name: " + name);
+            node = node.childOrCreate(c);
+        }
+        node.handler = handler;
+        return this;
+    }
+
+    /**
+     * Runs the handler of the command on a line, if it has one.
+     *
+     * @param line    The line.
+     * @param context The context passed to the handler.
+     * @return true if the line was a registered command and was handled;
+     * false for a chat message or an unknown command.
+     * @throws IOException if the handler fails to send or receive.
+     */
+    public boolean dispatch(String line, C context) throws IOException {
+        if (!isCommand(line))
+            return false;
+
+        // Follow the name down the trie
+        Node<C> node = root;
+        int end = 1;
+        while (end < line.length() && line.charAt(end) > ' ' && node != null) {
+            node = node.child(line.charAt(end++));
+        }
+        if (node == null || node.handler == null || end == 1)
+            return false;
+
+        Arguments args = ARGUMENTS.get();
+        args.parse(line, end);
+        try {
+            node.handler.handle(context, args);
+        } finally {
+            args.line = null;
+        }
+        return true;
+    }
+
+    //Inner classes ***************************************************
+
+    /**
+     * The handler of a command.
+     *
+     * @param <C> The type of the context passed to the handler.
+     */
+    public interface Handler<C> {
+        /**
+         * Handles a command.
+         *
+         * @param context The context of the command.
+         * @param args    The arguments of the command; only valid until
+         *                the handler returns.
+         * @throws IOException if the handler fails to send or receive.
+         */
+        void handle(C context, Arguments args) throws IOException;
+    }
+
+    /**
+     * The arguments of a command: the words following its name, separated
+     * by white space. They are kept as offsets into the line, and the
+     * object is reused for the next command dispatched on the same thread.
+     */
+    public static final class Arguments {
+        private String line;
+        private int command;
+        private int count;
+        private int[] starts = new int[8], ends = new int[8];
+
+        /**
+         * Finds the words following the name of a command.
+         *
+         * @param line    The line.
+         * @param command The offset of the end of the name.
+         */
+        private void parse(String line, int command) {
+            this.line = line;
+            this.command = command;
+            count = 0;
+            int i = command;
+            while (true) {
+                while (i < line.length() && line.charAt(i) <= ' ') {
+                    i++;
+                }
+                if (i == line.length())
+                    return;
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, 2 * count);
+                    ends = Arrays.copyOf(ends, 2 * count);
+                }
+                starts[count] = i;
+                while (i < line.length() && line.charAt(i) > ' ') {
+                    i++;
+                }
+                ends[count++] = i;
+            }
+        }
+
+        /**
+         * @return The whole line of the command.
+         */
+        public String line() {
+            return line;
+        }
+
+        /**
+         * @return The name of the command, with its '#'.
+         */
+        public String command() {
+            return line.substring(0, command);
+        }
+
+        /**
+         * @return The number of arguments.
+         */
+        public int count() {
+            return count;
+        }
+
+        /**
+         * @param i The index of an argument, from 0.
+         * @return The argument, or null if there are not that many.
+         */
+        public String get(int i) {
+            return i < count ? line.substring(starts[i], ends[i]) : null;
+        }
+
+        /**
+         * @param i The index of an argument, from 0.
+         * @return The text from that argument to the end of the line,
+         * trailing white space removed; or null if there are not that many
+         * arguments.
+         */
+        public String rest(int i) {
+            return i < count ? line.substring(starts[i], ends[count - 1]) : null;
+        }
+
+        /**
+         * Compares an argument with a string, without creating a string for
+         * the argument.
+         *
+         * @param i     The index of an argument, from 0.
+         * @param value The string.
+         * @return true if there is such an argument and it is equal to the
+         * string.
+         */
+        public boolean is(int i, String value) {
+            return i < count && ends[i] - starts[i] == value.length()
+                    && line.regionMatches(starts[i], value, 0, value.length());
+        }
+
+        /**
+         * Parses an argument as a decimal integer, without creating a string
+         * for it.
+         *
+         * @param i The index of an argument, from 0.
+         * @return The integer.
+         * @throws NumberFormatException if there is no such argument or it is
+         *                               not an integer.
+         */
+        public int getInt(int i) {
+            if (i >= count)
+                throw new NumberFormatException("missing argument " + (i + 1));
+            return Integer.parseInt(line, starts[i], ends[i], 10);
+        }
+    }
+
+    /**
+     * A node of the trie: the handler of the name leading to it, and the
+     * nodes following it, searched in order since commands are few.
+     *
+     * @param <C> The type of the context passed to the handlers.
+     */
+    private static final class Node<C> {
+        private char[] keys = new char[0];
+        private Node<C>[] children = newArray(0);
+        private Handler<C> handler;
+
+        Node<C> child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c)
+                    return children[i];
+            }
+            return null;
+        }
+
+        Node<C> childOrCreate(char c) {
+            Node<C> child = child(c);
+            if (child == null) {
+                child = new Node<C>();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <C> Node<C>[] newArray(int length) {
+            return (Node<C>[]) new Node<?>[length];
+        }
+    }
+}
+//End of CommandRegistry class
@@ -26,6 +26,11 @@ public class ClientConsole implements ChatIF {
      */
     final public static int DEFAULT_PORT = 5555;
 
+    /**
+     * The log on which the client console prints its messages and events.
+     */
+    private static final AsyncLog LOG = AsyncLog.get();
+
     //Instance variables **********************************************
 
     /**
@@ -52,7 +57,7 @@ public class ClientConsole implements ChatIF {
         try {
             client = new ChatClient(loginID, host, port, this);
         } catch (IOException exception) {
-            System.out.println("ERROR - Can't setup connection!" + " Terminating client.");
+            LOG.error("ERROR - Can't setup connection! Terminating client.");
             client.connectionClosed();
             System.exit(1);
         }
@@ -77,7 +82,7 @@ public class ClientConsole implements ChatIF {
                 client.handleMessageFromClientUI(message);
             }
         } catch (Exception ex) {
-            System.out.println("Unexpected error while reading from console!");
+            LOG.error("Unexpected error while reading from console!");
         }
     }
 
@@ -88,7 +93,7 @@ public class ClientConsole implements ChatIF {
      * @param message The string to be displayed.
      */
     public void display(String message) {
-        System.out.println("> " + message);
+        LOG.info("> ", message);
     }
 
 
@@ -116,7 +121,7 @@ public class ClientConsole implements ChatIF {
         try {
             loginID = args[0];
         } catch (ArrayIndexOutOfBoundsException e) {
-            System.out.println("ERROR - Invalid login ID.");
+            LOG.error("ERROR - Invalid login ID.");
             System.exit(1);
         }
 
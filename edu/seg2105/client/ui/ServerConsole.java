@@ -3,6 +3,7 @@ package edu.seg2105.client.ui;
 import java.io.*;
 import java.util.Scanner;
 
+import edu.seg2105.client.common.AsyncLog;
 import edu.seg2105.client.common.ChatIF;
 import edu.seg2105.edu.server.backend.EchoServer;
 
@@ -21,6 +22,11 @@ public class ServerConsole implements ChatIF {
      */
     final public static int DEFAULT_PORT = 5555;
 
+    /**
+     * The log on which the server console prints its messages and events.
+     */
+    private static final AsyncLog LOG = AsyncLog.get();
+
     EchoServer server;
 
     Scanner fromConsole;
@@ -36,7 +42,7 @@ public class ServerConsole implements ChatIF {
         try {
             server = new EchoServer(port);
         } catch (Exception ex) {
-            System.out.println("ERROR - Can't setup server!" + " Terminating server.");
+            LOG.error("ERROR - Can't setup server! Terminating server.");
             System.exit(1);
         }
 
@@ -59,8 +65,7 @@ public class ServerConsole implements ChatIF {
                 server.handleMessageFromServer(message);
             }
         } catch (Exception ex) {
-            System.out.println
-                    ("Unexpected error while reading from console!");
+            LOG.error("Unexpected error while reading from console!");
         }
     }
 
@@ -72,14 +77,14 @@ public class ServerConsole implements ChatIF {
      */
     @Override
     public void display(String message) {
-        System.out.println("> " + message);
+        LOG.info("> ", message);
     }
 
     //Class methods ***************************************************
 
     /**
      * This method is responsible for the creation of
-     * the server instance (there is no UI in this phase).
+     * the server instance and of the console reading its commands.
      *
      * @param args\[0] The port number to listen on.  Defaults to 5555
      *                 if no argument is entered.
@@ -93,13 +98,8 @@ public class ServerConsole implements ChatIF {
             port = DEFAULT_PORT; //Set port to 5555
         }
 
-        EchoServer sv = new EchoServer(port);
-
-        try {
-            sv.listen(); //Start listening for connections
-        } catch (Exception ex) {
-            System.out.println("ERROR - Could not listen for clients!");
-        }
+        ServerConsole console = new ServerConsole(port); // The server listens at once
+        console.accept(); //Wait for console commands
     }
 }
 //End of ServerConsole class
@@ -0,0 +1,403 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+import ocsf.server.Frame;
+
+/**
+ * This class keeps the history of the messages broadcast by the server, so
+ * that a client logging in can be shown what was said before. The messages
+ * are appended to segment files mapped in memory: appending a message is a
+ * copy into the mapping, left to the operating system to write out, and
+ * the last messages are read back straight from the mappings.
+ * <p>
+ * Each record holds its size, a sequence number, the time it was appended
+ * and the message in UTF-8. A segment is a file of fixed size named after
+ * the sequence number of its first record; when a record does not fit in
+ * the current segment a new one is started, and the oldest segments are
+ * deleted so that only a few are kept. The records of the segments kept
+ * are found again when the history is reopened.
+ * <p>
+ * The replay of the last messages is built once into a single frame and
+ * shared until the next message is appended, so that a burst of clients
+ * logging in costs one read of the history, without an object per message.
+ * <p>
+ * The shared settings are read from the system properties
+ * <code>seg2105.history.dir</code> (the directory, "history" by default),
+ * <code>seg2105.history.replay</code> (the messages replayed, 20),
+ * <code>seg2105.history.segment</code> (the size of a segment, 8 MB) and
+ * <code>seg2105.history.segments</code> (the segments kept, 4).
+ */
+public final class ChatHistory {
+    //Class variables *************************************************
+
+    /**
+     * The size of a record header: the size of the record, its sequence
+     * number and its time.
+     */
+    private static final int HEADER = 4 + 8 + 8;
+
+    //Instance variables **********************************************
+
+    /**
+     * The directory of the segments.
+     */
+    private final Path directory;
+
+    /**
+     * The size of a new segment, in bytes.
+     */
+    private final int segmentSize;
+
+    /**
+     * The number of segments kept.
+     */
+    private final int maxSegments;
+
+    /**
+     * The segments kept, from the oldest to the current one.
+     */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+    /**
+     * The segment records are appended to.
+     */
+    private Segment current;
+
+    /**
+     * The sequence number of the next record.
+     */
+    private long nextSequence = 0;
+
+    /**
+     * The last records, indexed by sequence number modulo their number:
+     * the segment, offset and sequence number of each.
+     */
+    private final Segment[] recentSegments;
+    private final int[] recentOffsets;
+    private final long[] recentSequences;
+
+    /**
+     * Encodes the messages appended.
+     */
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Decodes the messages replayed, into a reused buffer.
+     */
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer decoded = CharBuffer.allocate(4096);
+
+    /**
+     * The text of the replay, reused from one replay to the next.
+     */
+    private final StringBuilder replayText = new StringBuilder(4096);
+
+    /**
+     * The last replay built, and the sequence number of the next record
+     * when it was built.
+     */
+    private Frame replay = null;
+    private long replaySequence = -1;
+
+    /**
+     * The time zone in which the times of the messages are shown.
+     */
+    private final TimeZone zone = TimeZone.getDefault();
+
+    //Constructors ****************************************************
+
+    /**
+     * Opens the history kept in a directory, creating it if needed.
+     *
+     * @param directory   The directory of the segments.
+     * @param replayed    The number of messages replayed.
+     * @param segmentSize The size of a segment, in bytes.
+     * @param maxSegments The number of segments kept.
+     * @throws IOException if the segments cannot be created or mapped.
+     */
+    public ChatHistory(Path directory, int replayed, int segmentSize, int maxSegments)
+            throws IOException {
+        if (replayed < 1 || segmentSize <= HEADER || maxSegments < 1)
+            throw new IllegalArgumentException("invalid history settings");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.recentSegments = new Segment[replayed];
+        this.recentOffsets = new int[replayed];
+        this.recentSequences = new long[replayed];
+
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files); // The names are zero-padded sequence numbers
+
+        while (files.size() > maxSegments) {
+            Files.deleteIfExists(files.remove(0));
+        }
+        for (Path file : files) {
+            if (!load(map(file, (int) Math.min(Files.size(file), Integer.MAX_VALUE))))
+                Files.deleteIfExists(file);
+        }
+        if (current == null)
+            roll();
+    }
+
+    //Class methods ***************************************************
+
+    /**
+     * Opens the history with the settings of the system properties.
+     *
+     * @return The history.
+     * @throws IOException if the segments cannot be created or mapped.
+     */
+    public static ChatHistory open() throws IOException {
+        return new ChatHistory(Paths.get(System.getProperty("seg2105.history.dir", "history")),
+                Integer.getInteger("seg2105.history.replay", 20),
+                Integer.getInteger("seg2105.history.segment", 8 << 20),
+                Integer.getInteger("seg2105.history.segments", 4));
+    }
+
+    //Instance methods ************************************************
+
+    /**
+     * Appends a message to the history.
+     *
+     * @param message The message.
+     * @return The sequence number of the message, or -1 if it is too long
+     * to fit in a segment.
+     * @throws IOException if a new segment cannot be created.
+     */
+    public synchronized long append(String message) throws IOException {
+        if (message.length() > segmentSize - HEADER)
+            return -1; // A character takes at least a byte
+        long time = System.currentTimeMillis();
+        CharBuffer chars = CharBuffer.wrap(message);
+
+        while (true) {
+            ByteBuffer out = current.writer;
+            int start = current.end;
+            CoderResult result = CoderResult.OVERFLOW;
+            if (start + HEADER <= out.capacity()) {
+                out.limit(out.capacity()).position(start + HEADER);
+                encoder.reset();
+                result = encoder.encode(chars, out, true);
+                if (!result.isOverflow())
+                    result = encoder.flush(out);
+            }
+
+            if (result.isOverflow()) {
+                if (start == 0)
+                    return -1;
+                chars.rewind();
+                roll();
+                continue;
+            }
+
+            // The size goes last, so that a torn record reads as the end
+            long sequence = nextSequence++;
+            int size = out.position() - start;
+            out.putLong(start + 4, sequence);
+            out.putLong(start + 12, time);
+            out.putInt(start, size);
+            current.end = start + size;
+            remember(current, start, sequence);
+            return sequence;
+        }
+    }
+
+    /**
+     * Returns the last messages of the history as a single frame, to be
+     * sent to a client that just logged in. The frame is shared by all
+     * the clients logging in before the next message is appended.
+     *
+     * @return The frame, or null if the history is empty.
+     */
+    public synchronized Frame replay() {
+        if (replaySequence != nextSequence) {
+            replay = build();
+            replaySequence = nextSequence;
+        }
+        return replay;
+    }
+
+    /**
+     * Writes the records appended so far to the disk.
+     */
+    public synchronized void force() {
+        current.buffer.force();
+    }
+
+    /**
+     * Builds the text of the replay from the records still mapped.
+     *
+     * @return The frame carrying it, or null if there is none.
+     */
+    private Frame build() {
+        int count = recentSegments.length;
+        long first = Math.max(0, nextSequence - count);
+        replayText.setLength(0);
+
+        int shown = 0;
+        for (long sequence = first; sequence < nextSequence; sequence++) {
+            int slot = (int) (sequence % count);
+            Segment segment = recentSegments[slot];
+            if (segment == null || segment.retired || recentSequences[slot] != sequence)
+                continue;
+
+            int offset = recentOffsets[slot];
+            ByteBuffer in = segment.reader;
+            in.limit(in.capacity());
+            appendTime(in.getLong(offset + 12));
+            in.limit(offset + in.getInt(offset)).position(offset + HEADER);
+            decoder.reset();
+            CoderResult result;
+            do {
+                decoded.clear();
+                result = decoder.decode(in, decoded, true);
+                replayText.append(decoded.array(), 0, decoded.position());
+            } while (result.isOverflow());
+            replayText.append('\n');
+            shown++;
+        }
+
+        if (shown == 0)
+            return null;
+        replayText.setLength(replayText.length() - 1);
+        replayText.insert(0, "--- Last " + shown + " messages ---\n");
+        return Frame.of(replayText.toString());
+    }
+
+    /**
+     * Appends the local time of a message, as "[HH:mm] ", to the replay.
+     *
+     * @param time The time, in ms since the epoch.
+     */
+    private void appendTime(long time) {
+        long minutes = Math.floorMod((time + zone.getOffset(time)) / 60_000, 24 * 60);
+        int hours = (int) (minutes / 60), rest = (int) (minutes % 60);
+        replayText.append('[')
+                .append((char) ('0' + hours / 10)).append((char) ('0' + hours % 10))
+                .append(':')
+                .append((char) ('0' + rest / 10)).append((char) ('0' + rest % 10))
+                .append("] ");
+    }
+
+    /**
+     * Records where the record with a sequence number is, for the replay.
+     *
+     * @param segment  The segment holding it.
+     * @param offset   Its offset in the segment.
+     * @param sequence Its sequence number.
+     */
+    private void remember(Segment segment, int offset, long sequence) {
+        int slot = (int) (sequence % recentSegments.length);
+        recentSegments[slot] = segment;
+        recentOffsets[slot] = offset;
+        recentSequences[slot] = sequence;
+    }
+
+    /**
+     * Finds the records of a segment found on disk, and makes it the
+     * current segment unless it has none.
+     *
+     * @param segment The segment.
+     * @return true if the segment has records.
+     */
+    private boolean load(Segment segment) {
+        ByteBuffer in = segment.reader;
+        int offset = 0, size;
+        while (offset + HEADER <= in.capacity() && (size = in.getInt(offset)) >= HEADER
+                && offset + size <= in.capacity()) {
+            long sequence = in.getLong(offset + 4);
+            remember(segment, offset, sequence);
+            nextSequence = sequence + 1;
+            offset += size;
+        }
+        if (offset == 0)
+            return false;
+        segment.end = offset;
+        segments.add(segment);
+        current = segment;
+        return true;
+    }
+
+    /**
+     * Starts a new segment, and deletes the oldest ones beyond the number
+     * kept.
+     *
+     * @throws IOException if the segment cannot be created.
+     */
+    private void roll() throws IOException {
+        if (current != null)
+            current.buffer.force();
+        current = map(directory.resolve(String.format("%020d.log", nextSequence)), segmentSize);
+        segments.add(current);
+
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.poll();
+            oldest.retired = true;
+            Files.deleteIfExists(oldest.path);
+        }
+    }
+
+    /**
+     * Maps a segment file, creating it if needed.
+     *
+     * @param file The file.
+     * @param size The size of the mapping.
+     * @return The segment.
+     * @throws IOException if the file cannot be mapped.
+     */
+    private static Segment map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    //Inner classes ***************************************************
+
+    /**
+     * A segment file and its mapping, which stays valid once the file is
+     * closed.
+     */
+    private static final class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        final ByteBuffer writer, reader;
+        int end = 0;
+        boolean retired = false;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+            this.writer = buffer.duplicate();
+            this.reader = buffer.duplicate();
+        }
+    }
+}
+//End of ChatHistory class
@@ -4,8 +4,13 @@ package edu.seg2105.edu.server.backend;
 // license found at www.lloseng.com 
 
 import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.common.AsyncLog;
+import edu.seg2105.client.common.CommandRegistry;
 import ocsf.server.*;
 
+import java.io.IOException;
+import java.util.Arrays;
+
 /**
  * This class overrides some of the methods in the abstract
  * superclass in order to give more functionality to the server.
@@ -23,58 +28,384 @@ public class EchoServer extends AbstractServer {
      */
     final public static int DEFAULT_PORT = 5555;
 
+    /**
+     * The log on which the server prints its messages and events.
+     */
+    private static final AsyncLog LOG = AsyncLog.get();
+
     /**
      * The login key of the client.
      */
     final private String loginKey = "loginID";
 
+    /**
+     * The key of the client's current channel, to which its messages go.
+     */
+    final private String channelKey = "channel";
+
+    /**
+     * The messages broadcast so far, replayed to the clients logging in;
+     * null if the history could not be opened.
+     */
+    private ChatHistory history;
+
+    /**
+     * The lock under which a message is broadcast and appended to the
+     * history, so that the history keeps the order the clients saw.
+     */
+    private final Object broadcastLock = new Object();
+
+    /**
+     * The messages kept for the users who are away, delivered when they
+     * log in; null if the store could not be opened.
+     */
+    private OfflineStore offline;
+
+    /**
+     * The commands clients may send.
+     */
+    private final CommandRegistry<ConnectionToClient> clientCommands =
+            new CommandRegistry<ConnectionToClient>();
+
+    /**
+     * The commands typed on the server console.
+     */
+    private final CommandRegistry<EchoServer> consoleCommands = new CommandRegistry<EchoServer>();
+
     ChatClient client;
 
     //Constructors ****************************************************
 
     /**
-     * Constructs an instance of the echo server.
+     * Constructs an instance of the echo server. The sessions of the
+     * clients keep their last <code>seg2105.session.frames</code> messages
+     * (256 by default) for <code>seg2105.session.grace</code> ms after
+     * their connection drops (60000 by default). A client from which
+     * nothing is received for <code>seg2105.idle.timeout</code> ms (60000
+     * by default, 0 for no limit) is disconnected. Clients may send as
+     * fast as they like, unless <code>seg2105.rate</code> sets a number of
+     * messages per second, with bursts of <code>seg2105.rate.burst</code>
+     * (100 by default); faster clients are then no longer read from until
+     * they slow down, or have their messages dropped if
+     * <code>seg2105.rate.drop</code> is true.
      *
      * @param port The port number to connect on.
      */
     public EchoServer(int port) {
         super(port);
+        setSessions(Integer.getInteger("seg2105.session.frames", 256),
+                Long.getLong("seg2105.session.grace", 60_000));
+        setIdleTimeout(Long.getLong("seg2105.idle.timeout", 60_000));
+        setRateLimit(rateLimit(Double.parseDouble(System.getProperty("seg2105.rate", "0")),
+                Integer.getInteger("seg2105.rate.burst", 100), Boolean.getBoolean("seg2105.rate.drop")));
+        registerClientCommands();
+        registerConsoleCommands();
+        try {
+            history = ChatHistory.open();
+        } catch (IOException e) {
+            LOG.error("ERROR - Could not open the chat history: ", e);
+        }
+        try {
+            offline = OfflineStore.open();
+        } catch (IOException e) {
+            LOG.error("ERROR - Could not open the offline messages: ", e);
+        }
         try {
             listen(); // Start listening for connections
         } catch (Exception e) {
-            System.out.println("ERROR - Could not listen for clients!");
+            LOG.error("ERROR - Could not listen for clients!");
         }
     }
 
     //Instance methods ************************************************
 
     /**
-     * This method handles any messages received from the client.
+     * This method handles any messages received from the client. Commands
+     * are run by their handlers; other messages go to the client's current
+     * channel, or to everyone. Each message is logged at the DEBUG level,
+     * which costs an entry per message while that level is printed.
      *
      * @param msg    The message received from the client.
      * @param client The connection from which the message originated.
      */
     public void handleMessageFromClient(Object msg, ConnectionToClient client) {
-        System.out.println("Message received: " + msg + " from " + client);
+        if (LOG.isLoggable(AsyncLog.Level.DEBUG))
+            LOG.debug("Message received: ", msg, " from ", client);
         String msgStr = (String) msg;
-        if (msgStr.startsWith("#login")) {
-            String loginID = msgStr.substring(7).trim(); // "#login " is 7 characters
-            client.setInfo("loginID", loginID);
-            System.out.println("#login " + loginID);
+        try {
+            if (clientCommands.dispatch(msgStr, client))
+                return;
+        } catch (IOException e) {
+            LOG.error("ERROR - Command ", CommandRegistry.nameOf(msgStr), " failed for ", client, ": ", e);
+            return;
+        }
+
+        // Only the audience of the client's channel gets the message
+        Object channel = client.getInfo(channelKey);
+        if (channel == null) {
+            broadcast(msgStr);
         } else {
-            this.sendToAllClients(msg);
+            this.sendToChannel((String) channel, "[" + channel + "] " + msgStr);
         }
     }
 
+    /**
+     * Registers the handlers of the commands clients may send.
+     */
+    private void registerClientCommands() {
+        clientCommands
+                // i) Gives the client its login ID, then replays what it missed.
+                .register("#login", this::login)
+                // ii) Resumes the session of a client that reconnected, or logs it in again.
+                .register("#resume", this::resume)
+                // iii) Sends a message to one user only.
+                .register("#msg", this::directMessage)
+                // iv) Subscribes the client to a channel, which becomes its current one.
+                .register("#join", this::joinChannel)
+                // v) Unsubscribes the client from a channel, by default its current one.
+                .register("#leave", this::leaveChannel)
+                // vi) Makes a joined channel the current one, or shows the channels.
+                .register("#channel", this::selectChannel);
+    }
+
+    /**
+     * This method handles the #login command.
+     *
+     * @param client The connection from which the command originated.
+     * @param args   The login ID.
+     * @throws IOException if the reply cannot be sent.
+     */
+    private void login(ConnectionToClient client, CommandRegistry.Arguments args) throws IOException {
+        logIn(client, args.rest(0));
+    }
+
+    /**
+     * This method handles the #resume command, sent by a client that
+     * reconnected with the token of its session and the number of messages
+     * it received in that session. When the session can be resumed, the
+     * client is only sent the messages it missed; otherwise it is told so,
+     * and logs in again with a new session.
+     *
+     * @param client The connection from which the command originated.
+     * @param args   The login ID, the token and the number of messages.
+     * @throws IOException if the reply cannot be sent.
+     */
+    private void resume(ConnectionToClient client, CommandRegistry.Arguments args) throws IOException {
+        long lastSeen;
+        try {
+            lastSeen = Long.parseLong(args.get(2));
+        } catch (NumberFormatException e) {
+            lastSeen = -1; // Not a resumable session
+        }
+        if (resumeSession(client, args.get(1), lastSeen)) {
+            LOG.debug("#resume ", client.getLoginID());
+            return;
+        }
+        logIn(client, args.get(0));
+    }
+
+    /**
+     * Gives the client its login ID unless another client has it, opens its
+     * session, and then sends it the last messages broadcast and the
+     * messages kept while it was away.
+     *
+     * @param client  The connection of the client.
+     * @param loginID The login ID.
+     * @throws IOException if the reply cannot be sent.
+     */
+    private void logIn(ConnectionToClient client, String loginID) throws IOException {
+        if (loginID == null || !client.setLoginID(loginID)) {
+            LOG.debug("#login ", loginID, " refused");
+            client.sendToClient("ERROR - Login ID " + loginID + " is not available.");
+            return;
+        }
+
+        client.setInfo(loginKey, loginID);
+        LOG.debug("#login ", loginID);
+        openSession(client);
+        replayHistory(client);
+        if (offline != null) {
+            offline.register(loginID);
+            deliverOffline(client, loginID);
+        }
+    }
+
+    /**
+     * This method handles the #join command. The channel a client joined
+     * last is its current channel, to which its messages are sent; a client
+     * without one sends to everyone.
+     *
+     * @param client The connection from which the command originated.
+     * @param args   The channel.
+     * @throws IOException if the reply cannot be sent.
+     */
+    private void joinChannel(ConnectionToClient client, CommandRegistry.Arguments args) throws IOException {
+        String channel = args.get(0);
+        LOG.debug("#join ", channel, " from ", client);
+        if (channel == null) {
+            client.sendToClient("ERROR - Usage: #join <channel>");
+            return;
+        }
+        client.joinChannel(channel);
+        client.setInfo(channelKey, channel);
+        client.sendToClient("Joined channel " + channel);
+    }
+
+    /**
+     * This method handles the #leave command.
+     *
+     * @param client The connection from which the command originated.
+     * @param args   The channel, by default the current one.
+     * @throws IOException if the reply cannot be sent.
+     */
+    private void leaveChannel(ConnectionToClient client, CommandRegistry.Arguments args) throws IOException {
+        Object current = client.getInfo(channelKey);
+        String channel = args.count() > 0 ? args.get(0) : (String) current;
+        LOG.debug("#leave ", channel, " from ", client);
+        if (channel == null || !client.leaveChannel(channel)) {
+            client.sendToClient("ERROR - Not in channel " + channel);
+            return;
+        }
+        if (channel.equals(current))
+            client.setInfo(channelKey, null);
+        client.sendToClient("Left channel " + channel);
+    }
+
+    /**
+     * This method handles the #channel command.
+     *
+     * @param client The connection from which the command originated.
+     * @param args   The channel to make current, or none to show them.
+     * @throws IOException if the reply cannot be sent.
+     */
+    private void selectChannel(ConnectionToClient client, CommandRegistry.Arguments args) throws IOException {
+        Object current = client.getInfo(channelKey);
+        String channel = args.get(0);
+        LOG.debug("#channel ", channel, " from ", client);
+        if (channel == null) {
+            client.sendToClient("Current channel is " + (current == null ? "none" : current)
+                    + ", joined " + String.join(", ", client.getChannels()));
+        } else if (Arrays.asList(client.getChannels()).contains(channel)) {
+            client.setInfo(channelKey, channel);
+            client.sendToClient("Current channel is " + channel);
+        } else {
+            client.sendToClient("ERROR - Not in channel " + channel + "; #join it first.");
+        }
+    }
+
+    /**
+     * This method handles the #msg command, which sends a message to one
+     * client only, found by its login ID.
+     *
+     * @param client The connection from which the command originated.
+     * @param args   The login ID of the recipient, then the message.
+     * @throws IOException if the reply cannot be sent.
+     */
+    private void directMessage(ConnectionToClient client, CommandRegistry.Arguments args) throws IOException {
+        if (args.count() < 2) {
+            client.sendToClient("ERROR - Usage: #msg <loginID> <message>");
+            return;
+        }
+
+        String sender = client.getLoginID();
+        String recipient = args.get(0);
+        String text = "[" + sender + " -> " + recipient + "] " + args.rest(1);
+        LOG.debug("#msg ", sender, " -> ", recipient);
+        try {
+            if (this.sendToLogin(recipient, text))
+                return;
+        } catch (IOException e) {
+            client.sendToClient("ERROR - Could not send to " + recipient + ".");
+            return;
+        }
+
+        if (offline != null && offline.deposit(recipient, text)) {
+            client.sendToClient("User " + recipient + " is away; the message will be delivered at the next login.");
+
+            // The user may have logged in and collected the mailbox meanwhile
+            ConnectionToClient target = getClientByLogin(recipient);
+            if (target != null)
+                deliverOffline(target, recipient);
+        } else {
+            client.sendToClient("ERROR - No user " + recipient + " online.");
+        }
+    }
+
+    /**
+     * Sends a message to all the clients, then appends it to the history.
+     * Both are done under one lock, so that messages broadcast by several
+     * handlers at once are recorded in the order the clients received
+     * them.
+     *
+     * @param message The message.
+     */
+    private void broadcast(String message) {
+        synchronized (broadcastLock) {
+            this.sendToAllClients(message);
+            if (history != null) {
+                try {
+                    history.append(message);
+                } catch (IOException e) {
+                    LOG.error("ERROR - Could not record message in the history: ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the last messages of the history to a client that just logged in.
+     *
+     * @param client The client.
+     */
+    private void replayHistory(ConnectionToClient client) {
+        Frame replay = history == null ? null : history.replay();
+        if (replay != null) {
+            try {
+                client.sendFrame(replay);
+            } catch (IOException e) {
+                LOG.error("ERROR - Could not replay the history to ", client);
+            }
+        }
+    }
+
+    /**
+     * Sends the messages kept while a user was away, all at once.
+     *
+     * @param client  The client the user logged in from.
+     * @param loginID The login ID of the user.
+     */
+    private void deliverOffline(ConnectionToClient client, String loginID) {
+        try {
+            String backlog = offline.collect(loginID);
+            if (backlog != null)
+                client.sendToClient(backlog);
+        } catch (IOException e) {
+            LOG.error("ERROR - Could not deliver the offline messages of ", loginID, ": ", e);
+        }
+    }
+
+    /**
+     * Messages may be handled for several clients at once: the state they
+     * share is safe to use from any thread. The channels and the login
+     * index are kept by the server in concurrent structures, the history
+     * and the offline messages lock themselves, and broadcasts are
+     * serialized with their history entries by their own lock. Everything
+     * else a handler touches belongs to its own connection.
+     *
+     * @return true
+     */
+    @Override
+    protected boolean isHandlerThreadSafe() {
+        return true;
+    }
+
     /**
      * This method handles all data coming from the Server UI
      *
      * @param message The message from the UI.
      */
-    @Override
     public void handleMessageFromServer(String message) {
-        System.out.println("SERVER MSG > " + message);
-        this.sendToAllClients(message);
+        handleMessageFromServerConsole(message);
     }
 
     /**
@@ -82,7 +413,7 @@ public class EchoServer extends AbstractServer {
      * when the server starts listening for connections.
      */
     protected void serverStarted() {
-        System.out.println("Server listening for connections on port " + getPort());
+        LOG.info("Server listening for connections on port ", getPort());
     }
 
 
@@ -91,7 +422,24 @@ public class EchoServer extends AbstractServer {
      * when the server stops listening for connections.
      */
     protected void serverStopped() {
-        System.out.println("Server has stopped listening for connections.");
+        LOG.info("Server has stopped listening for connections.");
+    }
+
+    /**
+     * This method overrides the one in the superclass.  Called
+     * when the server is closed; the history and the offline messages are
+     * written to the disk.
+     */
+    protected void serverClosed() {
+        if (history != null)
+            history.force();
+        if (offline != null) {
+            try {
+                offline.spillAll();
+            } catch (IOException e) {
+                LOG.error("ERROR - Could not save the offline messages: ", e);
+            }
+        }
     }
 
     /**
@@ -102,7 +450,7 @@ public class EchoServer extends AbstractServer {
      */
     @Override
     synchronized protected void clientConnected(ConnectionToClient client) {
-        System.out.println("Client " + client.toString() + " has connected.");
+        LOG.info("Client ", client, " has connected.");
     }
 
     /**
@@ -114,7 +462,7 @@ public class EchoServer extends AbstractServer {
      */
     @Override
     synchronized protected void clientDisconnected(ConnectionToClient client) {
-        System.out.println("Client " + client.toString() + " has disconnected.");
+        LOG.info("Client ", client, " has disconnected.");
     }
 
     /**
@@ -127,7 +475,23 @@ public class EchoServer extends AbstractServer {
      */
     synchronized protected void clientException(
             ConnectionToClient client, Throwable exception) {
-        System.out.println("ERROR - Client " + client.toString() + " has exception: " + exception.toString());
+        LOG.error("ERROR - Client ", client, " has exception: ", exception);
+    }
+
+    /**
+     * Implemented the hook method called when a client sending too fast has
+     * messages dropped. Tells the client, once per run of dropped messages.
+     *
+     * @param client The client.
+     */
+    @Override
+    protected void rateLimitExceeded(ConnectionToClient client) {
+        LOG.debug("Dropping messages from ", client);
+        try {
+            client.sendToClient("ERROR - You are sending too fast; messages are being dropped.");
+        } catch (IOException e) {
+            LOG.error("ERROR - Could not warn ", client, " about its rate limit.");
+        }
     }
 
     /**
@@ -137,74 +501,119 @@ public class EchoServer extends AbstractServer {
      * @param message The message from the UI.
      */
     private void handleMessageFromServerConsole(String message) {
-        if (message.startsWith("#")) {
-            String[] args = message.split(" ");
-            String command = args[0];
+        try {
+            if (consoleCommands.dispatch(message, this))
+                return;
+        } catch (IOException e) {
+            LOG.error("ERROR - Command ", CommandRegistry.nameOf(message), " failed: ", e);
+            return;
+        }
+
+        if (CommandRegistry.isCommand(message)) {
+            LOG.error("ERROR - Unknown command:", CommandRegistry.nameOf(message));
+        } else {
+            LOG.debug("SERVER MSG > ", message);
+            broadcast(message);
+        }
+    }
 
-            switch (command) {
+    /**
+     * Registers the handlers of the commands typed on the server console.
+     */
+    private void registerConsoleCommands() {
+        consoleCommands
                 // i) Causes the server to terminate gracefully.
-                case "#quit":
+                .register("#quit", (server, args) -> {
                     try {
-                        this.close();
+                        server.close();
                     } catch (Exception e) {
                         System.exit(1);
                     }
-                    break;
+                })
 
                 // ii)  Causes the server to stop listening for new clients.
-                case "#stop":
-                    this.stopListening();
-                    break;
+                .register("#stop", (server, args) -> server.stopListening())
 
                 // (iii)  Causes the server not only to stop listening for new clients,
                 // but also to disconnect all existing clients.
-                case "#close":
+                .register("#close", (server, args) -> {
                     try {
-                        this.close();
+                        server.close();
                     } catch (Exception e) {
-                        System.out.println("ERROR - Could not close connection.");
+                        LOG.error("ERROR - Could not close connection.");
                     }
-                    break;
+                })
 
                 // (iv) Calls the setPort method in the server.
                 // Only allowed if the server is closed.
-                case "#setport":
-                    if (!this.isListening() && this.getNumberOfClients() < 1) {
-                        super.setPort(Integer.parseInt(args[1]));
-                        System.out.println("Port is set to " + (args[1]));
+                .register("#setport", (server, args) -> {
+                    if (!server.isListening() && server.getNumberOfClients() < 1) {
+                        try {
+                            server.setPort(args.getInt(0));
+                            LOG.info("Port is set to ", args.get(0));
+                        } catch (NumberFormatException e) {
+                            LOG.error("ERROR - Usage: #setport <port>");
+                        }
                     } else {
-                        System.out.println("ERROR - Server is still connected.");
+                        LOG.error("ERROR - Server is still connected.");
                     }
-                    break;
+                })
 
                 // (v) Causes the server to start listening for new clients.
                 // Only valid if the server is stopped.
-                case "#start":
-                    if (!this.isListening()) {
+                .register("#start", (server, args) -> {
+                    if (!server.isListening()) {
                         try {
-                            this.listen();
+                            server.listen();
                         } catch (Exception e) {
-                            System.out.println("ERROR - Could not start listening for clients.");
+                            LOG.error("ERROR - Could not start listening for clients.");
                         }
                     } else {
-                        System.out.println("ERROR - Already listening for clients.");
+                        LOG.error("ERROR - Already listening for clients.");
                     }
-                    break;
+                })
 
                 // (vi) Displays the current port number.
-                case "#getport":
-                    System.out.println("Current port is " + this.getPort());
-                    break;
+                .register("#getport", (server, args) -> LOG.info("Current port is ", server.getPort()))
 
-                default:
-                    System.out.println("ERROR - Unknown command:" + command);
-                    break;
-            }
-        } else {
-            this.sendToAllClients(message);
-        }
+                // (vii) Displays the traffic, queues and latencies of the server.
+                .register("#stats", (server, args) -> LOG.info(server.getMetrics().snapshot()))
+
+                // (viii) Sets the rate limit of a login ID; a rate of 0 restores
+                // that of all clients.
+                .register("#ratelimit", (server, args) -> {
+                    if (args.count() < 2) {
+                        LOG.error("ERROR - Usage: #ratelimit <loginID> <rate> [<burst> [drop]]");
+                        return;
+                    }
+                    try {
+                        double rate = Double.parseDouble(args.get(1));
+                        int burst = args.count() > 2 ? args.getInt(2) : server.getRateLimit(null).getBurst();
+                        server.setRateLimit(args.get(0),
+                                rate > 0 ? rateLimit(rate, Math.max(1, burst), args.is(3, "drop")) : null);
+                        LOG.info("Rate limit of ", args.get(0), " is ", server.getRateLimit(args.get(0)));
+                    } catch (NumberFormatException e) {
+                        LOG.error("ERROR - Usage: #ratelimit <loginID> <rate> [<burst> [drop]]");
+                    }
+                });
     }
 
     //Class methods ***************************************************
+
+    /**
+     * Returns the rate limit letting clients send a number of messages per
+     * second.
+     *
+     * @param rate  The messages per second, or 0 for no limit.
+     * @param burst The messages that may be sent at once.
+     * @param drop  true to drop the messages sent too fast, false to stop
+     *              reading them.
+     * @return The rate limit.
+     */
+    private static RateLimit rateLimit(double rate, int burst, boolean drop) {
+        if (rate <= 0)
+            return RateLimit.NONE;
+        return drop ? RateLimit.drop(rate, burst) : RateLimit.throttle(rate, burst);
+    }
 }
 //End of EchoServer class
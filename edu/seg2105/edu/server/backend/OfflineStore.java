@@ -0,0 +1,312 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the messages sent to users who are not logged in, until
+ * they log in again. Each user known to the server has a mailbox, but a
+ * mailbox only takes memory while it holds messages: they are packed into
+ * a byte array, in UTF-8 with the length of each.
+ * <p>
+ * The memory of all the mailboxes together is bounded. A mailbox that
+ * outgrows its own share, or that was written least recently when the
+ * total is over budget, is spilled: its messages are appended to a file
+ * of its own and its array is released. The file keeps the older messages
+ * and the array the more recent ones. When the user logs in, the whole
+ * mailbox, file and array, is read back as a single message.
+ * <p>
+ * The users known are those who logged in since the server started, and
+ * those whose mailbox files are found in the directory; all mailboxes are
+ * spilled when the server closes, so that no message is lost.
+ * <p>
+ * The shared settings are read from the system properties
+ * <code>seg2105.offline.dir</code> (the directory, "offline" by default),
+ * <code>seg2105.offline.memory</code> (the bytes kept in memory, 4 MB) and
+ * <code>seg2105.offline.mailbox</code> (the bytes kept in memory for one
+ * user, 16 KB).
+ */
+public final class OfflineStore {
+    //Class variables *************************************************
+
+    /**
+     * The extension of the mailbox files.
+     */
+    private static final String EXTENSION = ".box";
+
+    /**
+     * The array of a mailbox without messages in memory.
+     */
+    private static final byte[] EMPTY = new byte[0];
+
+    //Instance variables **********************************************
+
+    /**
+     * The directory of the mailbox files.
+     */
+    private final Path directory;
+
+    /**
+     * The bytes all the mailboxes may keep in memory.
+     */
+    private final long memoryBudget;
+
+    /**
+     * The bytes one mailbox may keep in memory.
+     */
+    private final int mailboxBudget;
+
+    /**
+     * The login IDs of the users known.
+     */
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The mailboxes holding messages in memory, from the least to the most
+     * recently written.
+     */
+    private final LinkedHashMap<String, Mailbox> resident = new LinkedHashMap<String, Mailbox>();
+
+    /**
+     * The bytes the mailboxes keep in memory.
+     */
+    private long memoryUsed = 0;
+
+    //Constructors ****************************************************
+
+    /**
+     * Opens the mailboxes kept in a directory, creating it if needed.
+     *
+     * @param directory     The directory of the mailbox files.
+     * @param memoryBudget  The bytes all the mailboxes may keep in memory.
+     * @param mailboxBudget The bytes one mailbox may keep in memory.
+     * @throws IOException if the directory cannot be read.
+     */
+    public OfflineStore(Path directory, long memoryBudget, int mailboxBudget) throws IOException {
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.mailboxBudget = mailboxBudget;
+
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                known.add(decode(name.substring(0, name.length() - EXTENSION.length())));
+            }
+        }
+    }
+
+    //Class methods ***************************************************
+
+    /**
+     * Opens the mailboxes with the settings of the system properties.
+     *
+     * @return The store.
+     * @throws IOException if the directory cannot be read.
+     */
+    public static OfflineStore open() throws IOException {
+        return new OfflineStore(Paths.get(System.getProperty("seg2105.offline.dir", "offline")),
+                Long.getLong("seg2105.offline.memory", 4 << 20),
+                Integer.getInteger("seg2105.offline.mailbox", 16 << 10));
+    }
+
+    //Instance methods ************************************************
+
+    /**
+     * Makes a user known, so that messages are kept for them while they
+     * are away.
+     *
+     * @param loginID The login ID of the user.
+     */
+    public void register(String loginID) {
+        known.add(loginID);
+    }
+
+    /**
+     * Puts a message in the mailbox of a user.
+     *
+     * @param loginID The login ID of the user.
+     * @param message The message.
+     * @return true if the user is known and the message kept.
+     * @throws IOException if a mailbox could not be spilled to its file.
+     */
+    public synchronized boolean deposit(String loginID, String message) throws IOException {
+        if (!known.contains(loginID))
+            return false;
+
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        Mailbox mailbox = resident.remove(loginID); // Put back as the most recent
+        if (mailbox == null)
+            mailbox = new Mailbox();
+        resident.put(loginID, mailbox);
+        memoryUsed += mailbox.add(bytes);
+
+        if (mailbox.size > mailboxBudget) {
+            resident.remove(loginID);
+            spill(loginID, mailbox);
+        }
+        Iterator<Map.Entry<String, Mailbox>> eldest = resident.entrySet().iterator();
+        while (memoryUsed > memoryBudget && eldest.hasNext()) {
+            Map.Entry<String, Mailbox> entry = eldest.next();
+            eldest.remove();
+            spill(entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Empties the mailbox of a user.
+     *
+     * @param loginID The login ID of the user.
+     * @return The messages, oldest first, one per line after a heading; or
+     * null if there are none.
+     * @throws IOException if the mailbox file cannot be read.
+     */
+    public synchronized String collect(String loginID) throws IOException {
+        byte[] stored = null;
+        Path file = fileOf(loginID);
+        if (Files.exists(file)) {
+            stored = Files.readAllBytes(file);
+            Files.delete(file);
+        }
+        Mailbox mailbox = resident.remove(loginID);
+        if (mailbox != null)
+            memoryUsed -= mailbox.data.length;
+
+        StringBuilder text = new StringBuilder();
+        int count = 0;
+        if (stored != null)
+            count += unpack(stored, stored.length, text);
+        if (mailbox != null)
+            count += unpack(mailbox.data, mailbox.size, text);
+        if (count == 0)
+            return null;
+
+        text.setLength(text.length() - 1);
+        return text.insert(0, "--- " + count + " messages while you were away ---\n").toString();
+    }
+
+    /**
+     * Spills all the mailboxes to their files, as the server closes.
+     *
+     * @throws IOException if a mailbox could not be spilled.
+     */
+    public synchronized void spillAll() throws IOException {
+        Iterator<Map.Entry<String, Mailbox>> entries = resident.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Mailbox> entry = entries.next();
+            entries.remove();
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Appends the messages of a mailbox to its file, and releases them.
+     * The mailbox must no longer be resident.
+     *
+     * @param loginID The login ID of the user.
+     * @param mailbox The mailbox.
+     * @throws IOException if the file cannot be written.
+     */
+    private void spill(String loginID, Mailbox mailbox) throws IOException {
+        try (OutputStream out = Files.newOutputStream(fileOf(loginID),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(mailbox.data, 0, mailbox.size);
+        }
+        memoryUsed -= mailbox.data.length;
+        mailbox.release();
+    }
+
+    /**
+     * Appends the messages packed in an array to a text, one per line.
+     *
+     * @param data The array.
+     * @param size The bytes used in it.
+     * @param text The text.
+     * @return The number of messages.
+     */
+    private static int unpack(byte[] data, int size, StringBuilder text) {
+        int count = 0;
+        for (int offset = 0; offset + 4 <= size; count++) {
+            int length = (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                    | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+            text.append(new String(data, offset + 4, length, StandardCharsets.UTF_8)).append('\n');
+            offset += 4 + length;
+        }
+        return count;
+    }
+
+    /**
+     * @param loginID The login ID of a user.
+     * @return The file of the user's mailbox.
+     */
+    private Path fileOf(String loginID) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : loginID.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve(name.append(EXTENSION).toString());
+    }
+
+    /**
+     * @param name The name of a mailbox file, without its extension.
+     * @return The login ID of its user.
+     */
+    private static String decode(String name) {
+        byte[] bytes = new byte[name.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(name.substring(2 * i, 2 * i + 2), 16);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //Inner classes ***************************************************
+
+    /**
+     * The messages of a mailbox kept in memory, each as its length on four
+     * bytes followed by its bytes.
+     */
+    private static final class Mailbox {
+        byte[] data = EMPTY;
+        int size = 0;
+
+        /**
+         * Packs a message at the end of the array, growing it if needed.
+         *
+         * @param bytes The message.
+         * @return The bytes by which the array grew.
+         */
+        int add(byte[] bytes) {
+            int grown = 0;
+            if (size + 4 + bytes.length > data.length) {
+                byte[] larger = new byte[Math.max(64, Math.max(2 * data.length, size + 4 + bytes.length))];
+                System.arraycopy(data, 0, larger, 0, size);
+                grown = larger.length - data.length;
+                data = larger;
+            }
+            data[size] = (byte) (bytes.length >>> 24);
+            data[size + 1] = (byte) (bytes.length >>> 16);
+            data[size + 2] = (byte) (bytes.length >>> 8);
+            data[size + 3] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, data, size + 4, bytes.length);
+            size += 4 + bytes.length;
+            return grown;
+        }
+
+        /**
+         * Releases the messages, once spilled.
+         */
+        void release() {
+            data = EMPTY;
+            size = 0;
+        }
+    }
+}
+//End of OfflineStore class
@@ -7,6 +7,25 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.common.CoalescingOutputStream;
+import ocsf.common.Codec;
+import ocsf.common.FlushPolicy;
+import ocsf.common.Frames;
+import ocsf.common.Handshake;
+import ocsf.common.ManagedObjectOutputStream;
+import ocsf.common.ResetPolicy;
+import ocsf.common.VirtualThreads;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -31,6 +50,40 @@ import java.net.*;
  */
 public abstract class AbstractClient implements Runnable {
 
+    // CLASS VARIABLES **************************************************
+
+    /**
+     * The executor writing the messages sent with
+     * <code>sendToServerAsync</code>, shared by all clients. Its threads
+     * are daemon threads that end when left idle.
+     */
+    private static final Executor ASYNC_WRITER = Executors.newCachedThreadPool(task -> {
+        Thread writer = new Thread(task, "AbstractClient async writer");
+        writer.setDaemon(true);
+        return writer;
+    });
+
+    /**
+     * The thread checking the connections of all clients that send
+     * heartbeats. It never writes to a socket itself, so a stalled
+     * connection cannot delay the others.
+     */
+    private static final ScheduledThreadPoolExecutor HEARTBEATS;
+
+    static {
+        HEARTBEATS = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread checker = new Thread(task, "AbstractClient heartbeat");
+            checker.setDaemon(true);
+            return checker;
+        });
+        HEARTBEATS.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * The heartbeat frame, the same for every codec.
+     */
+    private static final byte[] HEARTBEAT = Frames.encodeHeartbeat();
+
     // INSTANCE VARIABLES ***********************************************
 
     /**
@@ -42,9 +95,10 @@ public abstract class AbstractClient implements Runnable {
     private Socket clientSocket;
 
     /**
-     * The stream to handle data going to the server.
+     * The stream to handle data going to the server, when the legacy object
+     * stream is used.
      */
-    private ObjectOutputStream output;
+    private ManagedObjectOutputStream output;
 
     /**
      * The stream to handle data from the server.
@@ -52,9 +106,61 @@ public abstract class AbstractClient implements Runnable {
     private ObjectInputStream input;
 
     /**
-     * The thread created to read data from the server.
+     * The buffer over the socket's own stream, flushed as dictated by the
+     * flush policy. Frames are written to it directly, and the object stream
+     * writes through it. Writers synchronize on it.
+     */
+    private CoalescingOutputStream socketOutput;
+
+    /**
+     * The buffered stream from the socket, under <code>input</code> or
+     * <code>frameInput</code>. Its available bytes tell if more messages
+     * have already been received.
+     */
+    private InputStream rawInput;
+
+    /**
+     * The stream to handle frames from the server, when a codec was
+     * negotiated.
+     */
+    private DataInputStream frameInput;
+
+    /**
+     * The codecs offered to the server, in order of preference. When
+     * empty, the legacy continuous object stream is used instead. Text and
+     * Java serialization by default.
+     */
+    private Codec[] codecs = Handshake.defaultCodecs();
+
+    /**
+     * The codec chosen by the server for the current connection, or null
+     * if the legacy object stream is used.
+     */
+    private volatile Codec codec = null;
+
+    /**
+     * The policy deciding when the legacy object stream is reset. Set to
+     * never by default.
+     */
+    private ResetPolicy resetPolicy = ResetPolicy.NEVER;
+
+    /**
+     * The policy deciding when the output to the server is flushed. Set to
+     * immediate by default.
+     */
+    private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+
+    /**
+     * Indicates if the thread reading data from the server is a virtual
+     * thread rather than a platform thread. Set to false by default.
+     */
+    private boolean virtualThreads = false;
+
+    /**
+     * The thread created to read data from the server. Cleared by the
+     * reader itself when the connection is lost, before any reconnection.
      */
-    private Thread clientReader;
+    private volatile Thread clientReader;
 
     /**
      * Indicates if the thread is ready to stop. Needed so that the loop in the
@@ -62,6 +168,89 @@ public abstract class AbstractClient implements Runnable {
      */
     private boolean readyToStop = false;
 
+    /**
+     * The messages sent with <code>sendToServerAsync</code> that wait for
+     * room in the send window, oldest first.
+     */
+    private final ConcurrentLinkedQueue<PendingSend> unsent = new ConcurrentLinkedQueue<PendingSend>();
+
+    /**
+     * The messages written to the server and not yet acknowledged, in the
+     * order of their sequence numbers.
+     */
+    private final ConcurrentLinkedQueue<PendingSend> unacknowledged = new ConcurrentLinkedQueue<PendingSend>();
+
+    /**
+     * The number of messages in <code>unacknowledged</code>.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * The number of messages that may be written to the server without
+     * having been acknowledged. Set to 256 by default.
+     */
+    private volatile int sendWindow = 256;
+
+    /**
+     * Indicates if a task writing the unsent messages is scheduled or
+     * running, so that there is never more than one.
+     */
+    private final AtomicBoolean asyncWriterScheduled = new AtomicBoolean(false);
+
+    /**
+     * The sequence number of the next message written by
+     * <code>sendToServerAsync</code>. Only used by the async writer.
+     */
+    private long nextSequence = 0;
+
+    /**
+     * The policy deciding whether a lost connection is opened again. Set
+     * to never by default.
+     */
+    private volatile ReconnectPolicy reconnectPolicy = ReconnectPolicy.NEVER;
+
+    /**
+     * Indicates if the client is opening a lost connection again, until
+     * the messages sent meanwhile have been written.
+     */
+    private volatile boolean reconnecting = false;
+
+    /**
+     * The thread opening a lost connection again.
+     */
+    private Thread reconnector;
+
+    /**
+     * The number of calls to <code>closeConnection</code>, which tells the
+     * thread opening a lost connection again that it was closed meanwhile.
+     */
+    private volatile long closings = 0;
+
+    /**
+     * The messages sent while the connection is being opened again, oldest
+     * first. Guards <code>reconnecting</code> changes.
+     */
+    private final ArrayDeque<Object> buffered = new ArrayDeque<Object>();
+
+    /**
+     * The time, in ms, after which the client sends a heartbeat if nothing
+     * was sent or received, and the time after which the connection is
+     * considered lost if nothing was received; zero for no heartbeats.
+     */
+    private long heartbeatInterval = 0, heartbeatTimeout = 0;
+
+    /**
+     * The times anything was last written to and received from the server,
+     * as given by <code>System.nanoTime</code>.
+     */
+    private volatile long lastWritten, lastReceived;
+
+    /**
+     * The periodic check of the current connection, when heartbeats are
+     * sent.
+     */
+    private volatile ScheduledFuture<?> heartbeatCheck;
+
     /**
      * The server's host name.
      */
@@ -99,11 +288,31 @@ public abstract class AbstractClient implements Runnable {
         if (isConnected())
             return;
 
+        connect();
+    }
+
+    /**
+     * Opens the connection with the server and starts the thread reading
+     * from it.
+     *
+     * @throws IOException if an I/O error occurs when opening.
+     */
+    private void connect() throws IOException {
         // Create the sockets and the data streams
         try {
             clientSocket = new Socket(host, port);
-            output = new ObjectOutputStream(clientSocket.getOutputStream());
-            input = new ObjectInputStream(clientSocket.getInputStream());
+            socketOutput = new CoalescingOutputStream(
+                    clientSocket.getOutputStream(), flushPolicy, null);
+            rawInput = new BufferedInputStream(clientSocket.getInputStream());
+            if (codecs.length > 0) {
+                frameInput = new DataInputStream(rawInput);
+                Handshake.writeHello(socketOutput, codecs);
+                codec = Handshake.readReply(frameInput, codecs);
+            } else {
+                output = new ManagedObjectOutputStream(socketOutput, resetPolicy, socketOutput);
+                socketOutput.flush();
+                input = new ObjectInputStream(rawInput);
+            }
         } catch (IOException ex)
         // All three of the above must be closed when there is a failure
         // to create any of them
@@ -116,7 +325,12 @@ public abstract class AbstractClient implements Runnable {
             throw ex; // Rethrow the exception.
         }
 
-        clientReader = new Thread(this); // Create the data reader thread
+        if (heartbeatInterval > 0 && codec != null)
+            startHeartbeats();
+
+        // Create the data reader thread
+        clientReader = virtualThreads ?
+                VirtualThreads.newThread(this, "AbstractClient reader") : new Thread(this);
         readyToStop = false;
         clientReader.start(); // Start the thread
     }
@@ -125,16 +339,91 @@ public abstract class AbstractClient implements Runnable {
      * Sends an object to the server. This is the only way that methods should
      * communicate with the server.
      *
+     * While a lost connection is being opened again, the message is kept
+     * and sent once it is open, after the messages that
+     * <code>connectionEstablished</code> sends, such as a login.
+     *
      * @param msg The message to be sent.
-     * @throws IOException if an I/O error occurs when sending
+     * @throws IOException if an I/O error occurs when sending, or the
+     *                     messages kept while reconnecting are too many.
      */
     final public void sendToServer(Object msg) throws IOException {
-        if (clientSocket == null || output == null)
+        if (reconnecting && Thread.currentThread() != clientReader) {
+            synchronized (buffered) {
+                if (reconnecting) {
+                    if (buffered.size() >= reconnectPolicy.getBuffered())
+                        throw new SocketException("too many messages sent while reconnecting");
+                    buffered.add(msg);
+                    return;
+                }
+            }
+        }
+        write(msg);
+    }
+
+    /**
+     * Writes an object to the server.
+     *
+     * @param msg The message to be sent.
+     * @throws IOException if an I/O error occurs when sending
+     */
+    private void write(Object msg) throws IOException {
+        CoalescingOutputStream out = socketOutput;
+        ManagedObjectOutputStream objectOut = output;
+        Codec frameCodec = codec;
+        if (clientSocket == null || out == null || (objectOut == null && frameCodec == null))
             throw new SocketException("socket does not exist");
 
-        output.writeObject(msg);
+        byte[] frame = objectOut == null ? Frames.encode(frameCodec, msg) : null;
+        synchronized (out) {
+            if (frame != null)
+                out.write(frame);
+            else
+                objectOut.writeMessage(msg);
+            out.messageWritten();
+        }
+        lastWritten = System.nanoTime();
     }
 
+    /**
+     * Sends an object to the server without waiting for it to be written.
+     * The returned future completes with the message's sequence number
+     * once the server has handled it, which the server acknowledges with
+     * a single frame for all the messages it handled from one read.<p>
+     * <p>
+     * Up to <code>getSendWindow</code> messages may be in flight at once;
+     * the following ones wait in a queue until acknowledgements make room,
+     * without blocking the caller. Messages sent this way reach the server
+     * in order, but not necessarily in order with those sent with
+     * <code>sendToServer</code>. The futures complete on the thread
+     * reading from the server, so dependent stages that may block should
+     * be made asynchronous.<p>
+     * <p>
+     * The future fails if the message cannot be encoded, or if the
+     * connection is lost or closed before the acknowledgement arrives, in
+     * which case the server may or may not have handled the message.
+     * Acknowledgements need a codec: with the legacy object stream the
+     * future fails at once.
+     *
+     * @param msg The message to be sent.
+     * @return the future of the message's sequence number.
+     */
+    final public CompletableFuture<Long> sendToServerAsync(Object msg) {
+        CompletableFuture<Long> future = new CompletableFuture<Long>();
+        if (codec == null) {
+            future.completeExceptionally(output != null ?
+                    new ProtocolException("acknowledgements need a codec")
+                    : new SocketException("socket does not exist"));
+            return future;
+        }
+
+        unsent.add(new PendingSend(msg, future));
+        if (codec == null)
+            failPending(new SocketException("connection closed")); // Closed meanwhile
+        else
+            scheduleAsyncWriter();
+        return future;
+    }
 
     /**
      * Closes the connection to the server.
@@ -144,6 +433,12 @@ public abstract class AbstractClient implements Runnable {
     final public void closeConnection() throws IOException {
         // Prevent the thread from looping anymore
         readyToStop = true;
+        stopReconnecting();
+
+        // Deliver the messages still held back by the flush policy
+        CoalescingOutputStream out = socketOutput;
+        if (out != null)
+            out.flushPending();
 
         try {
             closeAll();
@@ -162,6 +457,101 @@ public abstract class AbstractClient implements Runnable {
         return clientReader != null && clientReader.isAlive();
     }
 
+    /**
+     * @return the number of messages that may be written to the server
+     * without having been acknowledged.
+     */
+    final public int getSendWindow() {
+        return sendWindow;
+    }
+
+    /**
+     * Sets the number of messages sent with <code>sendToServerAsync</code>
+     * that may be written to the server without having been acknowledged.
+     * A larger window hides more of the round trip to the server, at the
+     * cost of more messages possibly lost with the connection. The change
+     * takes effect at once.
+     *
+     * @param sendWindow the number of messages, at least 1.
+     */
+    final public void setSendWindow(int sendWindow) {
+        if (sendWindow < 1)
+            throw new IllegalArgumentException("sendWindow < 1");
+        this.sendWindow = sendWindow;
+        if (!unsent.isEmpty())
+            scheduleAsyncWriter();
+    }
+
+    /**
+     * @return the number of messages written to the server and not yet
+     * acknowledged.
+     */
+    final public int getUnacknowledged() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return true if the client is opening a lost connection again.
+     */
+    final public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * @return the policy deciding whether a lost connection is opened
+     * again.
+     */
+    final public ReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    /**
+     * Sets the policy deciding whether a lost connection is opened again,
+     * and how many messages are kept meanwhile. The default never opens it
+     * again. The change takes effect at the next loss of the connection;
+     * <code>closeConnection</code> stops any attempt under way.
+     *
+     * @param reconnectPolicy the policy.
+     */
+    final public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        if (reconnectPolicy == null)
+            throw new NullPointerException("reconnectPolicy");
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * Makes the client send heartbeats, which keep the connection open on
+     * a server with an idle timeout and tell the client when the server
+     * can no longer be reached. When nothing was written to or received
+     * from the server for the interval, the client sends a heartbeat,
+     * which the server answers. When nothing was received for the timeout,
+     * the connection is closed and reported to
+     * <code>connectionException</code> as if the server had closed it,
+     * so that it may be opened again. All clients share a single thread
+     * for these checks. The legacy object stream cannot carry heartbeats.
+     * The default sends none. The change only takes effect at the time of
+     * the next call to openConnection().
+     *
+     * @param interval the time in ms after which a heartbeat is sent, or
+     *                 zero for no heartbeats.
+     * @param timeout  the time in ms after which the server is considered
+     *                 lost; longer than the interval.
+     */
+    final public void setHeartbeat(long interval, long timeout) {
+        if (interval < 0 || (interval > 0 && timeout <= interval))
+            throw new IllegalArgumentException("invalid heartbeat");
+        this.heartbeatInterval = interval;
+        this.heartbeatTimeout = interval > 0 ? timeout : 0;
+    }
+
+    /**
+     * @return the time in ms after which a heartbeat is sent, or zero if
+     * the client sends none.
+     */
+    final public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
     /**
      * @return the port number.
      */
@@ -179,6 +569,97 @@ public abstract class AbstractClient implements Runnable {
         this.port = port;
     }
 
+    /**
+     * Returns the number of objects the object stream to the server keeps
+     * reachable because it may have to refer back to them. Only the legacy
+     * object stream retains objects.
+     *
+     * @return the number of objects written since the stream's last reset.
+     */
+    final public int getRetainedObjects() {
+        ManagedObjectOutputStream objectOut = output;
+        return objectOut == null ? 0 : objectOut.getRetainedObjects();
+    }
+
+    /**
+     * Returns the number of socket writes saved so far by coalescing the
+     * output to the server.
+     *
+     * @return the writes requested minus the writes made on the socket.
+     */
+    final public long getSyscallsSaved() {
+        CoalescingOutputStream out = socketOutput;
+        return out == null ? 0 : out.getSyscallsSaved();
+    }
+
+    /**
+     * Sets the policy deciding when the output to the server is flushed to
+     * the socket. Every message is buffered until it is complete, so even
+     * the default, immediate policy writes it with a single system call;
+     * the other policies let several messages share one. The change only
+     * takes effect at the time of the next call to openConnection().
+     *
+     * @param flushPolicy the policy.
+     */
+    final public void setFlushPolicy(FlushPolicy flushPolicy) {
+        if (flushPolicy == null)
+            throw new NullPointerException("flushPolicy");
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Sets the policy deciding when the legacy object stream to the server
+     * is reset, releasing the objects it retains. The default never resets
+     * the stream. The change only takes effect at the time of the next call
+     * to openConnection().
+     *
+     * @param resetPolicy the policy.
+     */
+    final public void setResetPolicy(ResetPolicy resetPolicy) {
+        if (resetPolicy == null)
+            throw new NullPointerException("resetPolicy");
+        this.resetPolicy = resetPolicy;
+    }
+
+    /**
+     * @return the codec chosen by the server for the current connection,
+     * or null if the legacy object stream is used.
+     */
+    final public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the codecs offered to the server at the next connection, in
+     * order of preference; the server picks the first one it supports. The
+     * default offers text, which serializes the messages that are not
+     * strings, then Java serialization;
+     * <code>Handshake.withCompression</code> offers them compressed first.
+     * With no codec at all, the client uses the legacy continuous object
+     * stream, which servers using selector threads refuse. The change only
+     * takes effect at the time of the next call to openConnection().
+     *
+     * @param codecs the codecs offered, or none for the legacy stream.
+     */
+    final public void setCodecs(Codec... codecs) {
+        this.codecs = codecs.clone();
+    }
+
+    /**
+     * Selects a virtual thread, rather than a platform thread, as the thread
+     * reading data from the server. Virtual threads need Java 21 or later.
+     * The change only takes effect at the time of the next call to
+     * openConnection().
+     *
+     * @param virtualThreads true to use a virtual thread.
+     * @throws UnsupportedOperationException if the JVM has no virtual threads.
+     */
+    final public void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isSupported())
+            throw new UnsupportedOperationException("virtual threads are not supported");
+        this.virtualThreads = virtualThreads;
+    }
+
     /**
      * @return the host name.
      */
@@ -220,15 +701,31 @@ public abstract class AbstractClient implements Runnable {
         // Loop waiting for data
 
         try {
+            if (reconnecting)
+                flushBuffered();
+
             while (!readyToStop) {
                 // Get data from Server and send it to the handler
                 // The thread waits indefinitely at the following
                 // statement until something is received from the server
-                msg = input.readObject();
+                msg = frameInput != null ? Frames.readMessage(frameInput, codec) : input.readObject();
 
                 // Concrete subclasses do what they want with the
-                // msg by implementing the following method
-                handleMessageFromServer(msg);
+                // msg by implementing the following method. The messages
+                // already received form a batch, so that the messages they
+                // cause may share socket writes
+                CoalescingOutputStream.beginBatch();
+                try {
+                    receiveMessageFromServer(msg);
+                    for (int handled = 1; handled < CoalescingOutputStream.BATCH_LIMIT
+                            && !readyToStop && rawInput.available() > 0; handled++) {
+                        msg = frameInput != null ?
+                                Frames.readMessage(frameInput, codec) : input.readObject();
+                        receiveMessageFromServer(msg);
+                    }
+                } finally {
+                    CoalescingOutputStream.endBatch();
+                }
             }
         } catch (Exception exception) {
             if (!readyToStop) {
@@ -236,11 +733,19 @@ public abstract class AbstractClient implements Runnable {
                     closeAll();
                 } catch (Exception ex) {
                 }
+                clientReader = null; // Before any reconnection starts another
 
+                // Set first, so that the hook can tell the client will reconnect
+                boolean reconnect = reconnectPolicy.isEnabled();
+                if (reconnect)
+                    reconnecting = true;
                 connectionException(exception);
+                if (reconnect && reconnecting && !readyToStop)
+                    startReconnecting();
             }
         } finally {
-            clientReader = null;
+            if (clientReader == Thread.currentThread())
+                clientReader = null;
         }
     }
 
@@ -273,6 +778,22 @@ public abstract class AbstractClient implements Runnable {
     protected void connectionEstablished() {
     }
 
+    /**
+     * Hook method called, in order with the messages, when the server opens
+     * a session for the client, resumes it, or could not resume it; see
+     * <code>ocsf.server.Session</code>. The messages received after the
+     * session was opened are numbered from 1, and those received after it
+     * was resumed follow the last one the client said it received. Only
+     * the server can send this notice. The default implementation does
+     * nothing.
+     *
+     * @param token   the token of the session, or null if the session the
+     *                client asked to resume could not be.
+     * @param resumed true if the session was resumed rather than opened.
+     */
+    protected void sessionChanged(String token, boolean resumed) {
+    }
+
     /**
      * Handles a message sent from the server to this client. This MUST be
      * implemented by subclasses, who should respond to messages.
@@ -283,12 +804,244 @@ public abstract class AbstractClient implements Runnable {
 
     // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+    /**
+     * Starts the thread opening the lost connection again, waiting longer
+     * after each failed attempt, until it succeeds or the connection is
+     * closed.
+     */
+    private void startReconnecting() {
+        long closing = closings;
+        Thread thread = new Thread(() -> {
+            ReconnectPolicy policy = reconnectPolicy;
+            for (int attempt = 0; reconnecting; attempt++) {
+                try {
+                    Thread.sleep(policy.delay(attempt));
+                    if (!reconnecting)
+                        return;
+                    connect();
+                    if (closings != closing) {
+                        // Closed while connecting: close the new connection too
+                        readyToStop = true;
+                        closeAll();
+                    }
+                    return;
+                } catch (InterruptedException ex) {
+                    return; // Stopped by closeConnection
+                } catch (IOException ex) {
+                    // The server is still down; wait longer
+                }
+            }
+        }, "AbstractClient reconnect");
+        thread.setDaemon(true);
+        synchronized (buffered) {
+            reconnector = thread;
+        }
+        thread.start();
+    }
+
+    /**
+     * Stops opening the lost connection again, and drops the messages
+     * kept meanwhile.
+     */
+    private void stopReconnecting() {
+        synchronized (buffered) {
+            closings++;
+            reconnecting = false;
+            buffered.clear();
+            if (reconnector != null && reconnector != Thread.currentThread())
+                reconnector.interrupt();
+            reconnector = null;
+        }
+    }
+
+    /**
+     * Writes the messages kept while reconnecting, once the connection is
+     * open again, then lets messages be written directly. A message is
+     * only dropped once written, so that those left are kept if the
+     * connection is lost again.
+     *
+     * @throws IOException if an I/O error occurs when sending.
+     */
+    private void flushBuffered() throws IOException {
+        CoalescingOutputStream.beginBatch();
+        try {
+            synchronized (buffered) {
+                while (!buffered.isEmpty()) {
+                    write(buffered.peek());
+                    buffered.poll();
+                }
+                reconnecting = false;
+            }
+        } finally {
+            CoalescingOutputStream.endBatch();
+        }
+    }
+
+    /**
+     * Starts checking the connection just opened every half interval.
+     */
+    private void startHeartbeats() {
+        Socket socket = clientSocket;
+        long interval = TimeUnit.MILLISECONDS.toNanos(heartbeatInterval);
+        long timeout = TimeUnit.MILLISECONDS.toNanos(heartbeatTimeout);
+        lastWritten = lastReceived = System.nanoTime();
+        heartbeatCheck = HEARTBEATS.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            if (now - lastReceived >= timeout) {
+                // The reader fails and reports the connection lost
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                }
+            } else if (now - lastWritten >= interval || now - lastReceived >= interval) {
+                ASYNC_WRITER.execute(this::writeHeartbeat);
+            }
+        }, interval / 2, interval / 2, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Writes a heartbeat to the server. A failure is left to the reader
+     * to find.
+     */
+    private void writeHeartbeat() {
+        CoalescingOutputStream out = socketOutput;
+        if (out == null)
+            return;
+        try {
+            synchronized (out) {
+                out.write(HEARTBEAT);
+                out.messageWritten();
+            }
+            lastWritten = System.nanoTime();
+        } catch (IOException ex) {
+        }
+    }
+
+    /**
+     * Passes a message received to <code>handleMessageFromServer</code>,
+     * unless it acknowledges messages sent, tells about the session, or is
+     * a heartbeat.
+     *
+     * @param msg the message received.
+     */
+    private void receiveMessageFromServer(Object msg) {
+        lastReceived = System.nanoTime();
+        if (msg instanceof Frames.Heartbeat)
+            return;
+        if (msg instanceof Frames.Ack) {
+            acknowledged(((Frames.Ack) msg).getSequence());
+        } else if (msg instanceof Frames.SessionNotice) {
+            Frames.SessionNotice notice = (Frames.SessionNotice) msg;
+            sessionChanged(notice.getToken(), notice.isResumed());
+        } else {
+            handleMessageFromServer(msg);
+        }
+    }
+
+    /**
+     * Completes the futures of the messages acknowledged by the server,
+     * those whose sequence number is at most the one acknowledged, and
+     * lets the async writer use the room made in the window.
+     *
+     * @param sequence the sequence number acknowledged.
+     */
+    private void acknowledged(long sequence) {
+        PendingSend send;
+        while ((send = unacknowledged.peek()) != null && send.sequence <= sequence) {
+            if (unacknowledged.remove(send)) {
+                inFlight.decrementAndGet();
+                send.future.complete(send.sequence);
+            }
+        }
+        if (!unsent.isEmpty())
+            scheduleAsyncWriter();
+    }
+
+    /**
+     * Schedules the async writer, unless it is already scheduled.
+     */
+    private void scheduleAsyncWriter() {
+        if (asyncWriterScheduled.compareAndSet(false, true))
+            ASYNC_WRITER.execute(this::writeAsync);
+    }
+
+    /**
+     * Writes the unsent messages that fit in the send window, then
+     * reschedules itself if more arrived meanwhile. The messages written
+     * form a batch, so that they share socket writes.
+     */
+    private void writeAsync() {
+        CoalescingOutputStream.beginBatch();
+        try {
+            CoalescingOutputStream out = socketOutput;
+            Codec frameCodec = codec;
+            if (out == null || frameCodec == null) {
+                failPending(new SocketException("connection closed"));
+                return;
+            }
+
+            PendingSend send;
+            while (inFlight.get() < sendWindow && (send = unsent.poll()) != null) {
+                byte[] frame;
+                try {
+                    frame = Frames.encodeSequenced(frameCodec, send.msg, nextSequence);
+                } catch (IOException ex) {
+                    send.future.completeExceptionally(ex);
+                    continue;
+                }
+
+                // Pending before written, for the acknowledgement may be quick
+                send.sequence = nextSequence++;
+                inFlight.incrementAndGet();
+                unacknowledged.add(send);
+                synchronized (out) {
+                    out.write(frame);
+                    out.messageWritten();
+                }
+                lastWritten = System.nanoTime();
+            }
+        } catch (IOException ex) {
+            failPending(ex);
+        } finally {
+            CoalescingOutputStream.endBatch();
+            asyncWriterScheduled.set(false);
+        }
+
+        if (codec == null)
+            failPending(new SocketException("connection closed")); // Closed meanwhile
+        else if (!unsent.isEmpty() && inFlight.get() < sendWindow)
+            scheduleAsyncWriter();
+    }
+
+    /**
+     * Fails the futures of all the messages sent with
+     * <code>sendToServerAsync</code> and not yet acknowledged.
+     *
+     * @param cause the reason.
+     */
+    private void failPending(IOException cause) {
+        PendingSend send;
+        while ((send = unacknowledged.poll()) != null) {
+            inFlight.decrementAndGet();
+            send.future.completeExceptionally(cause);
+        }
+        while ((send = unsent.poll()) != null) {
+            send.future.completeExceptionally(cause);
+        }
+    }
+
     /**
      * Closes all aspects of the connection to the server.
      *
      * @throws IOException if an I/O error occurs when closing.
      */
     private void closeAll() throws IOException {
+        ScheduledFuture<?> check = heartbeatCheck;
+        if (check != null) {
+            check.cancel(false);
+            heartbeatCheck = null;
+        }
+
         try {
             // Close the socket
             if (clientSocket != null)
@@ -301,6 +1054,13 @@ public abstract class AbstractClient implements Runnable {
             // Close the input stream
             if (input != null)
                 input.close();
+
+            // Close the frame streams
+            if (socketOutput != null)
+                socketOutput.close();
+
+            if (frameInput != null)
+                frameInput.close();
         } finally {
             // Set the streams and the sockets to NULL no matter what
             // Doing so allows, but does not require, any finalizers
@@ -308,7 +1068,31 @@ public abstract class AbstractClient implements Runnable {
             // when they are garbage collected.
             output = null;
             input = null;
+            socketOutput = null;
+            rawInput = null;
+            frameInput = null;
+            codec = null;
             clientSocket = null;
+
+            // Unacknowledged messages may have been lost with the socket
+            failPending(new SocketException("connection closed"));
+        }
+    }
+
+    // INNER CLASSES ----------------------------------------------------
+
+    /**
+     * A message sent with <code>sendToServerAsync</code>, with its future
+     * and, once written, its sequence number.
+     */
+    private static final class PendingSend {
+        final Object msg;
+        final CompletableFuture<Long> future;
+        long sequence = -1;
+
+        PendingSend(Object msg, CompletableFuture<Long> future) {
+            this.msg = msg;
+            this.future = future;
         }
     }
 }
@@ -0,0 +1,151 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A <code> ReconnectPolicy </code> tells an <code> AbstractClient </code>
+ * whether to open its connection again when it is lost, how long to wait
+ * before each attempt, and how many messages to keep meanwhile.<p>
+ * <p>
+ * The two kinds of policies are:
+ * <ul>
+ * <li> <code>NEVER</code>: a lost connection stays closed, and messages
+ * sent while it is closed fail. This is the default.
+ * <li> <code>backoff(initialDelay, maxDelay, buffered)</code>: the client
+ * tries again and again, waiting a random time before each attempt, up
+ * to a limit that doubles after each failure from
+ * <code>initialDelay</code> to <code>maxDelay</code> milliseconds. The
+ * randomness spreads out the clients that lost their connection at the
+ * same moment, so that a restarted server does not take them all at
+ * once. Up to <code>buffered</code> messages sent meanwhile are kept and
+ * sent once the connection is open again.
+ * </ul>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#setReconnectPolicy(ReconnectPolicy)
+ */
+public final class ReconnectPolicy {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The policy never opening a lost connection again.
+     */
+    public static final ReconnectPolicy NEVER = new ReconnectPolicy(0, 0, 0);
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The longest wait, in ms, before the first attempt, or zero if the
+     * client does not reconnect.
+     */
+    private final long initialDelay;
+
+    /**
+     * The longest wait, in ms, before any attempt.
+     */
+    private final long maxDelay;
+
+    /**
+     * The number of messages kept while the connection is lost.
+     */
+    private final int buffered;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs a policy; see <code>NEVER</code> and <code>backoff</code>.
+     *
+     * @param initialDelay the longest wait before the first attempt.
+     * @param maxDelay     the longest wait before any attempt.
+     * @param buffered     the messages kept while the connection is lost.
+     */
+    private ReconnectPolicy(long initialDelay, long maxDelay, int buffered) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.buffered = buffered;
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Returns the policy reconnecting with randomized exponential backoff.
+     *
+     * @param initialDelay the longest wait, in ms, before the first attempt.
+     * @param maxDelay     the longest wait, in ms, before any attempt.
+     * @param buffered     the number of messages kept while the connection
+     *                     is lost.
+     * @return the policy.
+     * @throws IllegalArgumentException if a delay is not positive, the
+     *                                  initial delay exceeds the maximum or
+     *                                  the number of messages is negative.
+     */
+    public static ReconnectPolicy backoff(long initialDelay, long maxDelay, int buffered) {
+        if (initialDelay <= 0 || maxDelay < initialDelay || buffered < 0)
+            throw new IllegalArgumentException("invalid backoff");
+        return new ReconnectPolicy(initialDelay, maxDelay, buffered);
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Returns the time to wait before an attempt: a random time, of at
+     * least 1 ms, up to the initial delay doubled once per failed attempt,
+     * within the maximum.
+     *
+     * @param attempt the number of attempts already failed.
+     * @return the time, in ms.
+     */
+    public long delay(int attempt) {
+        long limit = initialDelay;
+        for (int i = 0; i < attempt && limit < maxDelay; i++) {
+            limit = Math.min(maxDelay, 2 * limit);
+        }
+        return 1 + ThreadLocalRandom.current().nextLong(limit);
+    }
+
+    // ACCESSING METHODS ------------------------------------------------
+
+    /**
+     * @return true if the client opens a lost connection again.
+     */
+    public boolean isEnabled() {
+        return initialDelay > 0;
+    }
+
+    /**
+     * @return the longest wait, in ms, before the first attempt, or zero.
+     */
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    /**
+     * @return the longest wait, in ms, before any attempt, or zero.
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * @return the number of messages kept while the connection is lost.
+     */
+    public int getBuffered() {
+        return buffered;
+    }
+
+    /**
+     * @return a description of the policy.
+     */
+    public String toString() {
+        if (!isEnabled())
+            return "ReconnectPolicy[NEVER]";
+        return "ReconnectPolicy[initialDelay=" + initialDelay + ", maxDelay=" + maxDelay
+                + ", buffered=" + buffered + "]";
+    }
+}
+// End of ReconnectPolicy class
@@ -0,0 +1,341 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code> CoalescingOutputStream </code> buffers the bytes written to a
+ * socket and hands them over as dictated by a <code> FlushPolicy </code>.
+ * The writers call <code>messageWritten</code> after each complete message,
+ * and the policy decides whether the buffered messages are flushed then,
+ * at the end of the current batch, or after a short delay. The buffer is
+ * also flushed whenever it is full.<p>
+ * <p>
+ * A batch is delimited by <code>beginBatch</code> and
+ * <code>endBatch</code>, called by the framework on the thread handling a
+ * run of received messages; batches may be nested, and only the outermost
+ * one flushes the streams written to during it. A batch takes in at most
+ * <code>BATCH_LIMIT</code> received messages, so that a peer sending
+ * without pause cannot hold back the flushes to everyone else.<p>
+ * <p>
+ * The stream counts the writes it was asked to perform and those it made
+ * on the underlying stream, each of which is a system call; the
+ * difference is the number of system calls saved.<p>
+ * <p>
+ * All writes must hold the lock given to the constructor; flushes done at
+ * the end of a batch or after a delay take the same lock.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class CoalescingOutputStream extends OutputStream {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The batch under way on each thread, if any.
+     */
+    private static final ThreadLocal<Batch> BATCH = ThreadLocal.withInitial(Batch::new);
+
+    /**
+     * The most received messages handled in one batch. The framework ends
+     * the batch after that many, even if more have arrived.
+     */
+    public static final int BATCH_LIMIT = 64;
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The stream written to, usually the socket's own.
+     */
+    private final OutputStream out;
+
+    /**
+     * The policy deciding when to flush.
+     */
+    private final FlushPolicy policy;
+
+    /**
+     * The lock held by the writers.
+     */
+    private final Object lock;
+
+    /**
+     * The bytes waiting to be flushed.
+     */
+    private final byte[] buffer;
+
+    /**
+     * The number of bytes waiting in <code>buffer</code>.
+     */
+    private int count = 0;
+
+    /**
+     * The delayed flush scheduled, or null if none is.
+     */
+    private volatile ScheduledFuture<?> delayedFlush = null;
+
+    /**
+     * The batch that will flush this stream when it ends, or null.
+     */
+    private Batch enlistedIn = null;
+
+    /**
+     * The exception raised by a flush no writer was waiting for; thrown to
+     * the next writer.
+     */
+    private IOException failure = null;
+
+    /**
+     * The number of writes requested by the writers.
+     */
+    private volatile long writesRequested = 0;
+
+    /**
+     * The number of writes made on the underlying stream.
+     */
+    private volatile long writesMade = 0;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs a stream.
+     *
+     * @param out    the stream to write to.
+     * @param policy the policy deciding when to flush.
+     * @param lock   the lock held by the writers of this stream, or null to
+     *               use the stream itself.
+     */
+    public CoalescingOutputStream(OutputStream out, FlushPolicy policy, Object lock) {
+        this.out = out;
+        this.policy = policy;
+        this.lock = lock == null ? this : lock;
+        this.buffer = new byte[policy.getBytes() > 0 ?
+                policy.getBytes() : FlushPolicy.DEFAULT_BUFFER_SIZE];
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Starts a batch on the current thread. Every call must be matched by a
+     * call to <code>endBatch</code>, in a <code>finally</code> block.
+     */
+    public static void beginBatch() {
+        BATCH.get().depth++;
+    }
+
+    /**
+     * Ends a batch on the current thread. When the outermost batch ends, the
+     * streams written to during it are flushed; a stream that fails to flush
+     * throws to its next writer.
+     */
+    public static void endBatch() {
+        Batch batch = BATCH.get();
+        if (--batch.depth > 0)
+            return;
+
+        ArrayList<CoalescingOutputStream> streams = batch.streams;
+        for (int i = 0; i < streams.size(); i++) {
+            streams.get(i).flushFor(batch);
+        }
+        streams.clear();
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Writes a byte to the buffer.
+     *
+     * @param b the byte.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(int b) throws IOException {
+        checkFailure();
+        writesRequested++;
+        if (count == buffer.length)
+            flushBuffer();
+        buffer[count++] = (byte) b;
+    }
+
+    /**
+     * Writes bytes to the buffer, or directly to the underlying stream if
+     * they do not fit in an empty buffer.
+     *
+     * @param b   the bytes.
+     * @param off the offset of the first byte.
+     * @param len the number of bytes.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkFailure();
+        writesRequested++;
+        if (len > buffer.length - count)
+            flushBuffer();
+        if (len >= buffer.length) {
+            out.write(b, off, len);
+            writesMade++;
+            return;
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * Signals that a complete message was written, and flushes as dictated
+     * by the policy. Must be called holding the writers' lock.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void messageWritten() throws IOException {
+        if (count == 0)
+            return;
+
+        if (policy.isEndOfBatch()) {
+            Batch batch = BATCH.get();
+            if (batch.depth == 0) {
+                flushBuffer();
+            } else if (enlistedIn != batch) {
+                enlistedIn = batch;
+                batch.streams.add(this);
+            }
+        } else if (policy.getDelayMicros() > 0) {
+            if (count >= policy.getBytes())
+                flushBuffer();
+            else if (delayedFlush == null)
+                delayedFlush = SharedScheduler.get().schedule(
+                        this::delayedFlush, policy.getDelayMicros(), TimeUnit.MICROSECONDS);
+        } else {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes and flushes the underlying stream.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void flush() throws IOException {
+        if (count > 0) {
+            checkFailure();
+            flushBuffer();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the buffered bytes, if possible, when the batch of the current
+     * thread or a delayed flush is holding them back. Any exception is kept
+     * for the next writer. Called before closing the socket, so that the
+     * messages the closing thread has just written are delivered; a thread
+     * that wrote nothing does not wait for the writers' lock.
+     */
+    public void flushPending() {
+        if (delayedFlush != null || BATCH.get().streams.contains(this))
+            flushFor(null);
+    }
+
+    /**
+     * Writes the buffered bytes, if possible, and closes the underlying
+     * stream. Bytes that cannot be written are dropped.
+     *
+     * @throws IOException if an I/O error occurs when closing.
+     */
+    public void close() throws IOException {
+        try {
+            if (failure == null)
+                flushBuffer();
+        } catch (IOException ex) {
+            failure = ex;
+        } finally {
+            if (delayedFlush != null)
+                delayedFlush.cancel(false);
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the underlying stream in one call.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            int length = count;
+            count = 0;
+            out.write(buffer, 0, length);
+            writesMade++;
+        }
+    }
+
+    /**
+     * Flushes the buffer from a thread that is not writing a message, and
+     * keeps any exception for the next writer.
+     *
+     * @param batch the batch ending, or null.
+     */
+    private void flushFor(Batch batch) {
+        synchronized (lock) {
+            if (batch != null && enlistedIn == batch)
+                enlistedIn = null;
+            if (failure != null)
+                return;
+            try {
+                flushBuffer();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+    }
+
+    /**
+     * Runs a delayed flush. Called by the shared scheduler.
+     */
+    private void delayedFlush() {
+        synchronized (lock) {
+            delayedFlush = null;
+        }
+        flushFor(null);
+    }
+
+    /**
+     * Throws the exception raised by an earlier background flush.
+     *
+     * @throws IOException if a background flush failed.
+     */
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw failure;
+    }
+
+    // ACCESSING METHODS ------------------------------------------------
+
+    /**
+     * @return the number of writes saved by coalescing: the writes
+     * requested, minus those made on the underlying stream.
+     */
+    public long getSyscallsSaved() {
+        return writesRequested - writesMade;
+    }
+
+    /**
+     * @return the number of writes made on the underlying stream.
+     */
+    public long getWritesMade() {
+        return writesMade;
+    }
+
+    // INNER CLASSES ----------------------------------------------------
+
+    /**
+     * The batch state of one thread.
+     */
+    private static final class Batch {
+        int depth = 0;
+        final ArrayList<CoalescingOutputStream> streams = new ArrayList<CoalescingOutputStream>();
+    }
+}
+// End of CoalescingOutputStream class
@@ -0,0 +1,54 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A <code> Codec </code> turns the messages exchanged by a client and a
+ * server into the payload of the frames of <code> Frames </code>, and back.
+ * Both ends list the codecs they support when the connection opens, and the
+ * first codec offered by the client that the server also supports is used
+ * for the whole connection; see <code> Handshake </code>. A codec is
+ * identified by its name, so implementations must be stateless and may be
+ * shared by any number of connections.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.TextCodec
+ * @see ocsf.common.SerializationCodec
+ */
+public interface Codec {
+    /**
+     * Returns the name identifying this codec during the handshake. Names
+     * are at most 255 bytes of UTF-8.
+     *
+     * @return the name of the codec.
+     */
+    String getName();
+
+    /**
+     * Writes the payload encoding a message.
+     *
+     * @param msg the message to encode.
+     * @param out the stream receiving the payload.
+     * @throws IOException if the message cannot be encoded by this codec.
+     */
+    void encode(Object msg, OutputStream out) throws IOException;
+
+    /**
+     * Decodes the payload of a frame.
+     *
+     * @param buf    the buffer holding the payload.
+     * @param offset the offset of the first byte of the payload.
+     * @param length the length of the payload.
+     * @return the decoded message.
+     * @throws IOException            if the payload is invalid.
+     * @throws ClassNotFoundException if the payload names an unknown class.
+     */
+    Object decode(byte[] buf, int offset, int length)
+            throws IOException, ClassNotFoundException;
+}
+// End of Codec interface
@@ -0,0 +1,447 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The <code> DeflateCodec </code> compresses the payloads of another codec.
+ * It is negotiated like any other codec, under the name of the codec it
+ * wraps prefixed with <code>deflate-</code>, so a client offering
+ * <code>deflate-text</code> before <code>text</code> gets compression from
+ * the servers that support it and plain text from the others.<p>
+ * <p>
+ * Every payload is compressed on its own, so that frames can still be
+ * decoded independently and encoded once for any number of connections.
+ * Chat messages being short, the compressor starts from a preset
+ * dictionary of the words and serialization headers they usually contain.
+ * Payloads shorter than a threshold, and payloads that would not shrink,
+ * are sent as they are: each payload starts with a byte telling which.<p>
+ * <p>
+ * A compressed payload is the byte 1, the length of the original payload
+ * on four big-endian bytes, then the deflated bytes; a payload sent as it
+ * is, the byte 0 then the original bytes. The codec counts what it
+ * compresses and the time it spends doing so, for the metrics of the
+ * server.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.common.Handshake#serverCodecs()
+ */
+public final class DeflateCodec implements Codec {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The prefix of the names of compressing codecs in the handshake.
+     */
+    public static final String PREFIX = "deflate-";
+
+    /**
+     * The payload length below which payloads are not compressed, unless
+     * changed with the system property <code>ocsf.deflate.threshold</code>.
+     */
+    public static final int DEFAULT_THRESHOLD = Integer.getInteger("ocsf.deflate.threshold", 96);
+
+    /**
+     * The preset dictionary, shared by both ends. Deflate finds matches
+     * more cheaply near its end, so the most frequent strings come last.
+     */
+    private static final byte[] DICTIONARY = dictionary();
+
+    /**
+     * The kinds of payload.
+     */
+    private static final int RAW = 0, DEFLATED = 1;
+
+    /**
+     * The workspaces not in use. A thread borrows one for each payload, so
+     * that their native zlib state is shared by all the threads, however
+     * many virtual threads there are.
+     */
+    private static final ConcurrentLinkedQueue<Workspace> WORKSPACES =
+            new ConcurrentLinkedQueue<Workspace>();
+
+    /**
+     * The most workspaces kept unused; those returned beyond are freed.
+     */
+    private static final int POOLED = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The largest buffers a workspace keeps between payloads.
+     */
+    private static final int RETAINED = 64 * 1024;
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The codec whose payloads are compressed.
+     */
+    private final Codec codec;
+
+    /**
+     * The payload length below which payloads are not compressed.
+     */
+    private final int threshold;
+
+    /**
+     * The name of this codec.
+     */
+    private final String name;
+
+    /**
+     * The payloads encoded as they are and compressed.
+     */
+    private final LongAdder rawPayloads = new LongAdder(), deflatedPayloads = new LongAdder();
+
+    /**
+     * The bytes of the payloads compressed, before and after compression.
+     */
+    private final LongAdder bytesBefore = new LongAdder(), bytesAfter = new LongAdder();
+
+    /**
+     * The time spent compressing and decompressing, in ns.
+     */
+    private final LongAdder deflateNanos = new LongAdder(), inflateNanos = new LongAdder();
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs a codec compressing the payloads of another.
+     *
+     * @param codec     the codec whose payloads are compressed.
+     * @param threshold the payload length below which payloads are not
+     *                  compressed.
+     */
+    public DeflateCodec(Codec codec, int threshold) {
+        this.codec = codec;
+        this.threshold = threshold;
+        this.name = PREFIX + codec.getName();
+    }
+
+    /**
+     * Constructs a codec compressing the payloads of another, with the
+     * default threshold.
+     *
+     * @param codec the codec whose payloads are compressed.
+     */
+    public DeflateCodec(Codec codec) {
+        this(codec, DEFAULT_THRESHOLD);
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * @return the name of this codec.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Encodes a message with the wrapped codec, then compresses the payload
+     * if it is long enough.
+     *
+     * @param msg the message to encode.
+     * @param out the stream receiving the payload.
+     * @throws IOException if the wrapped codec cannot encode the message.
+     */
+    public void encode(Object msg, OutputStream out) throws IOException {
+        Workspace workspace = Workspace.acquire();
+        try {
+            encode(msg, out, workspace);
+        } finally {
+            workspace.release();
+        }
+    }
+
+    /**
+     * Encodes a message in a workspace.
+     *
+     * @param msg       the message to encode.
+     * @param out       the stream receiving the payload.
+     * @param workspace the workspace.
+     * @throws IOException if the wrapped codec cannot encode the message.
+     */
+    private void encode(Object msg, OutputStream out, Workspace workspace) throws IOException {
+        Workspace.Buffer payload = workspace.payload;
+        payload.reset();
+        codec.encode(msg, payload);
+
+        int length = payload.size();
+        if (length >= threshold) {
+            long start = System.nanoTime();
+            int deflated = workspace.deflate(payload.array(), length);
+            deflateNanos.add(System.nanoTime() - start);
+
+            if (deflated >= 0) {
+                out.write(DEFLATED);
+                out.write(length >>> 24);
+                out.write(length >>> 16);
+                out.write(length >>> 8);
+                out.write(length);
+                out.write(workspace.output, 0, deflated);
+                deflatedPayloads.increment();
+                bytesBefore.add(length);
+                bytesAfter.add(5 + deflated);
+                return;
+            }
+        }
+
+        out.write(RAW);
+        out.write(payload.array(), 0, length);
+        rawPayloads.increment();
+    }
+
+    /**
+     * Decompresses a payload if needed, then decodes it with the wrapped
+     * codec.
+     *
+     * @param buf    the buffer holding the payload.
+     * @param offset the offset of the first byte of the payload.
+     * @param length the length of the payload.
+     * @return the decoded message.
+     * @throws IOException            if the payload is invalid.
+     * @throws ClassNotFoundException if the payload names an unknown class.
+     */
+    public Object decode(byte[] buf, int offset, int length)
+            throws IOException, ClassNotFoundException {
+        if (length < 1)
+            throw new StreamCorruptedException("empty compressed payload");
+        if (buf[offset] == RAW)
+            return codec.decode(buf, offset + 1, length - 1);
+        if (buf[offset] != DEFLATED || length < 5)
+            throw new StreamCorruptedException("invalid compressed payload");
+
+        int original = Frames.checkLength((buf[offset + 1] & 0xFF) << 24 | (buf[offset + 2] & 0xFF) << 16
+                | (buf[offset + 3] & 0xFF) << 8 | (buf[offset + 4] & 0xFF));
+        long start = System.nanoTime();
+        byte[] inflated;
+        Workspace workspace = Workspace.acquire();
+        try {
+            inflated = workspace.inflate(buf, offset + 5, length - 5, original);
+        } finally {
+            workspace.release();
+        }
+        inflateNanos.add(System.nanoTime() - start);
+        return codec.decode(inflated, 0, original);
+    }
+
+    // ACCESSING METHODS ------------------------------------------------
+
+    /**
+     * @return the codec whose payloads are compressed.
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the payload length below which payloads are not compressed.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return the payloads encoded as they are, being too short or not
+     * shrinking.
+     */
+    public long getRawPayloads() {
+        return rawPayloads.sum();
+    }
+
+    /**
+     * @return the payloads encoded compressed.
+     */
+    public long getDeflatedPayloads() {
+        return deflatedPayloads.sum();
+    }
+
+    /**
+     * @return the bytes of the payloads compressed, before compression.
+     */
+    public long getBytesBeforeCompression() {
+        return bytesBefore.sum();
+    }
+
+    /**
+     * @return the bytes of the payloads compressed, after compression.
+     */
+    public long getBytesAfterCompression() {
+        return bytesAfter.sum();
+    }
+
+    /**
+     * @return the time spent compressing payloads, including those that did
+     * not shrink, in ns.
+     */
+    public long getDeflateNanos() {
+        return deflateNanos.sum();
+    }
+
+    /**
+     * @return the time spent decompressing payloads, in ns.
+     */
+    public long getInflateNanos() {
+        return inflateNanos.sum();
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Builds the preset dictionary: the header Java serialization writes
+     * before a string, then words and commands frequent in chat messages.
+     *
+     * @return the dictionary.
+     */
+    private static byte[] dictionary() {
+        String words = "http://www. https:// .com  @  :)  :( ... ?  !  "
+                + "#join #leave #channel #msg #login #logoff "
+                + "Joined channel Left channel Current channel is "
+                + "ERROR - messages while you were away Last messages "
+                + "would could should about there their have this with from your "
+                + "yes no ok okay thanks thank you please sorry hello hi hey "
+                + "what when where why how who is are was were will can "
+                + "it in on at to of for and the that not you I ";
+        byte[] text = words.getBytes(StandardCharsets.UTF_8);
+        byte[] header = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05, 0x74, 0x00};
+        byte[] dictionary = new byte[header.length + text.length];
+        System.arraycopy(header, 0, dictionary, 0, header.length);
+        System.arraycopy(text, 0, dictionary, header.length, text.length);
+        return dictionary;
+    }
+
+    // INNER CLASSES ----------------------------------------------------
+
+    /**
+     * A compressor, a decompressor and buffers, reused from one payload to
+     * the next by whichever thread borrows them. The compressor and the
+     * decompressor are only created when first needed.
+     */
+    private static final class Workspace {
+        Deflater deflater;
+        Inflater inflater;
+        Buffer payload = new Buffer();
+        byte[] output = new byte[1024];
+
+        /**
+         * @return an unused workspace, new if none is left.
+         */
+        static Workspace acquire() {
+            Workspace workspace = WORKSPACES.poll();
+            return workspace != null ? workspace : new Workspace();
+        }
+
+        /**
+         * Returns the workspace once the payload is done with, or frees its
+         * native state if enough are unused. The buffers grown beyond
+         * <code>RETAINED</code> bytes by a large payload are dropped, so
+         * that the workspaces do not keep the largest ever encoded.
+         */
+        void release() {
+            if (WORKSPACES.size() >= POOLED) {
+                if (deflater != null)
+                    deflater.end();
+                if (inflater != null)
+                    inflater.end();
+                return;
+            }
+            if (payload.array().length > RETAINED)
+                payload = new Buffer();
+            if (output.length > RETAINED)
+                output = new byte[1024];
+            WORKSPACES.add(this);
+        }
+
+        /**
+         * Compresses a payload into <code>output</code>.
+         *
+         * @param input  the payload.
+         * @param length its length.
+         * @return the length of the compressed bytes, or -1 if they would
+         * not be shorter than the payload.
+         */
+        int deflate(byte[] input, int length) {
+            if (output.length < length)
+                output = new byte[Math.max(length, 2 * output.length)];
+
+            if (deflater == null)
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(input, 0, length);
+            deflater.finish();
+
+            // Worth sending only if it saves more than the length prefix
+            int limit = length - 5;
+            int deflated = limit > 0 ? deflater.deflate(output, 0, limit) : 0;
+            return deflater.finished() && deflated > 0 ? deflated : -1;
+        }
+
+        /**
+         * Decompresses a payload. The output buffer grows with the bytes
+         * actually inflated, so that the length announced by the peer cannot
+         * make a short frame allocate a large buffer.
+         *
+         * @param input    the buffer holding the compressed bytes.
+         * @param offset   the offset of the compressed bytes.
+         * @param length   the length of the compressed bytes.
+         * @param original the length of the payload before compression.
+         * @return the payload, exactly <code>original</code> bytes long.
+         * @throws StreamCorruptedException if the bytes are not a valid
+         *                                  compressed payload of that length.
+         */
+        byte[] inflate(byte[] input, int offset, int length, int original)
+                throws StreamCorruptedException {
+            if (inflater == null)
+                inflater = new Inflater();
+            byte[] inflated = new byte[Math.min(original, Math.max(1024, 4 * length))];
+            inflater.reset();
+            inflater.setInput(input, offset, length);
+            try {
+                int total = 0;
+                while (!inflater.finished()) {
+                    if (total == inflated.length) {
+                        if (total == original)
+                            break; // More than announced
+                        inflated = Arrays.copyOf(inflated, (int) Math.min(original, 2L * total));
+                    }
+                    int count = inflater.inflate(inflated, total, inflated.length - total);
+                    total += count;
+                    if (count == 0) {
+                        if (!inflater.needsDictionary())
+                            break;
+                        inflater.setDictionary(DICTIONARY);
+                    }
+                }
+                if (total != original || !inflater.finished())
+                    throw new StreamCorruptedException("compressed payload of the wrong length");
+            } catch (DataFormatException ex) {
+                throw new StreamCorruptedException("invalid compressed payload: " + ex.getMessage());
+            }
+            return inflated;
+        }
+
+        /**
+         * A byte array stream whose array can be read without copying.
+         */
+        static final class Buffer extends ByteArrayOutputStream {
+            Buffer() {
+                super(1024);
+            }
+
+            byte[] array() {
+                return buf;
+            }
+        }
+    }
+}
+// End of DeflateCodec class
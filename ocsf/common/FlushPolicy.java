@@ -0,0 +1,134 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+/**
+ * A <code> FlushPolicy </code> tells when the bytes of the messages written
+ * to a <code> CoalescingOutputStream </code> are handed to the socket.
+ * Holding back a few messages lets them share a system call and a TCP
+ * segment, at the cost of delaying the first of them.<p>
+ * <p>
+ * The three policies are:
+ * <ul>
+ * <li> <code>IMMEDIATE</code>: every message is flushed as soon as it is
+ * written, in a single system call however many pieces it was written in.
+ * <li> <code>END_OF_BATCH</code>: the messages written while the framework
+ * handles a batch of received messages are flushed when the batch is over,
+ * after at most <code>CoalescingOutputStream.BATCH_LIMIT</code> received
+ * messages. Messages written by any other thread are flushed immediately.
+ * <li> <code>delayed(micros, bytes)</code>: the messages are flushed once
+ * <code>bytes</code> bytes are waiting, or <code>micros</code>
+ * microseconds after the first of them was written, whichever comes first.
+ * </ul>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.CoalescingOutputStream
+ */
+public final class FlushPolicy {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The policy flushing every message as soon as it is written.
+     */
+    public static final FlushPolicy IMMEDIATE = new FlushPolicy(false, 0, 0);
+
+    /**
+     * The policy flushing the messages written during a batch when the batch
+     * is over.
+     */
+    public static final FlushPolicy END_OF_BATCH = new FlushPolicy(true, 0, 0);
+
+    /**
+     * The size of the buffer of a stream whose policy sets no byte limit.
+     */
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * Indicates if flushing waits for the end of the current batch.
+     */
+    private final boolean endOfBatch;
+
+    /**
+     * The delay, in microseconds, after which waiting bytes are flushed, or
+     * zero.
+     */
+    private final long delayMicros;
+
+    /**
+     * The number of waiting bytes that triggers a flush, or zero.
+     */
+    private final int bytes;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs a policy; see the constants and <code>delayed</code>.
+     *
+     * @param endOfBatch  true to flush at the end of batches.
+     * @param delayMicros the delay before flushing, or zero.
+     * @param bytes       the waiting bytes triggering a flush, or zero.
+     */
+    private FlushPolicy(boolean endOfBatch, long delayMicros, int bytes) {
+        this.endOfBatch = endOfBatch;
+        this.delayMicros = delayMicros;
+        this.bytes = bytes;
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Returns the policy flushing the messages once enough bytes are
+     * waiting, or once the oldest of them has waited long enough.
+     *
+     * @param delayMicros the longest time, in microseconds, a message waits.
+     * @param bytes       the number of waiting bytes triggering a flush.
+     * @return the policy.
+     * @throws IllegalArgumentException if a limit is not positive.
+     */
+    public static FlushPolicy delayed(long delayMicros, int bytes) {
+        if (delayMicros <= 0 || bytes <= 0)
+            throw new IllegalArgumentException("limits must be positive");
+        return new FlushPolicy(false, delayMicros, bytes);
+    }
+
+    // ACCESSING METHODS ------------------------------------------------
+
+    /**
+     * @return true if flushing waits for the end of the current batch.
+     */
+    public boolean isEndOfBatch() {
+        return endOfBatch;
+    }
+
+    /**
+     * @return the delay, in microseconds, after which waiting bytes are
+     * flushed, or zero.
+     */
+    public long getDelayMicros() {
+        return delayMicros;
+    }
+
+    /**
+     * @return the number of waiting bytes that triggers a flush, or zero.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return a description of the policy.
+     */
+    public String toString() {
+        if (endOfBatch)
+            return "FlushPolicy[END_OF_BATCH]";
+        if (delayMicros == 0)
+            return "FlushPolicy[IMMEDIATE]";
+        return "FlushPolicy[delayMicros=" + delayMicros + ", bytes=" + bytes + "]";
+    }
+}
+// End of FlushPolicy class
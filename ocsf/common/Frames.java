@@ -0,0 +1,400 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The <code> Frames </code> class implements the framed wire format used
+ * once a <code> Handshake </code> has chosen the codec of a connection.
+ * Each frame is a four byte big-endian payload length, a one byte kind, and
+ * the payload itself. Message frames carry a message encoded by the
+ * connection's codec. Sequenced frames carry a sequence number on eight
+ * bytes before the message, and ask the receiver to acknowledge the
+ * message once handled; acknowledgement frames carry the sequence number
+ * of the last sequenced message handled, which also acknowledges all the
+ * previous ones. Heartbeat frames are empty, and only tell the receiver
+ * that the connection is alive. Session frames are only sent by servers:
+ * they give a client the token of the session opened or resumed for it,
+ * or tell it that its session could not be resumed, out of the reach of
+ * the messages other clients send. Other kinds are reserved for the
+ * framework. Because
+ * every frame can be decoded on its own, a frame can be parsed from a
+ * partially filled buffer and the same encoded bytes can be written to any
+ * number of connections using the same codec.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Frames {
+    // CONSTANTS *********************************************************
+
+    /**
+     * The number of bytes before the payload of each frame: the length
+     * prefix and the kind.
+     */
+    public static final int HEADER_LENGTH = 5;
+
+    /**
+     * The largest payload accepted. Longer length prefixes are treated as
+     * a corrupted stream rather than as a request to allocate the memory.
+     */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * The size of the buffer first given to a payload read from a stream.
+     * Longer payloads double it as their bytes arrive, so that a length
+     * prefix alone allocates no more than this.
+     */
+    private static final int READ_CHUNK = 8192;
+
+    /**
+     * The kind of the frames carrying a message.
+     */
+    public static final byte MESSAGE = 0;
+
+    /**
+     * The kind of the frames carrying a message to be acknowledged.
+     */
+    public static final byte SEQUENCED = 1;
+
+    /**
+     * The kind of the frames acknowledging sequenced messages.
+     */
+    public static final byte ACK = 2;
+
+    /**
+     * The kind of the empty frames keeping an idle connection alive.
+     */
+    public static final byte HEARTBEAT = 3;
+
+    /**
+     * The kind of the frames telling a client about its session.
+     */
+    public static final byte SESSION = 4;
+
+    /**
+     * The states told by session frames, in their first byte.
+     */
+    private static final byte SESSION_OPENED = 0;
+    private static final byte SESSION_RESUMED = 1;
+    private static final byte SESSION_REFUSED = 2;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Not to be instantiated.
+     */
+    private Frames() {
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Encodes a message as a complete frame, header included.
+     *
+     * @param codec the codec of the connection.
+     * @param msg   the message to encode.
+     * @return the encoded frame.
+     * @throws IOException if the codec cannot encode the message.
+     */
+    public static byte[] encode(Codec codec, Object msg) throws IOException {
+        FrameBuffer frame = new FrameBuffer();
+        codec.encode(msg, frame);
+        return frame.finish(MESSAGE);
+    }
+
+    /**
+     * Encodes a message to be acknowledged as a complete frame.
+     *
+     * @param codec    the codec of the connection.
+     * @param msg      the message to encode.
+     * @param sequence the sequence number of the message.
+     * @return the encoded frame.
+     * @throws IOException if the codec cannot encode the message.
+     */
+    public static byte[] encodeSequenced(Codec codec, Object msg, long sequence)
+            throws IOException {
+        FrameBuffer frame = new FrameBuffer();
+        frame.writeLong(sequence);
+        codec.encode(msg, frame);
+        return frame.finish(SEQUENCED);
+    }
+
+    /**
+     * Encodes the acknowledgement of the sequenced messages handled so far.
+     *
+     * @param sequence the sequence number of the last message handled.
+     * @return the encoded frame.
+     */
+    public static byte[] encodeAck(long sequence) {
+        byte[] frame = new byte[HEADER_LENGTH + 8];
+        frame[3] = 8;
+        frame[4] = ACK;
+        for (int i = 0; i < 8; i++) {
+            frame[HEADER_LENGTH + i] = (byte) (sequence >>> (56 - 8 * i));
+        }
+        return frame;
+    }
+
+    /**
+     * Encodes a heartbeat as a complete frame.
+     *
+     * @return the encoded frame.
+     */
+    public static byte[] encodeHeartbeat() {
+        byte[] frame = new byte[HEADER_LENGTH];
+        frame[4] = HEARTBEAT;
+        return frame;
+    }
+
+    /**
+     * Encodes the frame telling a client about its session.
+     *
+     * @param token   the token of the session, or null if the session the
+     *                client asked to resume could not be.
+     * @param resumed true if the session was resumed rather than opened.
+     * @return the encoded frame.
+     */
+    public static byte[] encodeSession(String token, boolean resumed) {
+        byte[] bytes = token == null ? new byte[0] : token.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + bytes.length;
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        frame[4] = SESSION;
+        frame[HEADER_LENGTH] = token == null ? SESSION_REFUSED : resumed ? SESSION_RESUMED : SESSION_OPENED;
+        System.arraycopy(bytes, 0, frame, HEADER_LENGTH + 1, bytes.length);
+        return frame;
+    }
+
+    /**
+     * Reads a frame from a blocking stream and decodes it. The payload
+     * buffer grows with the bytes received, not with the length announced.
+     *
+     * @param input the stream to read from.
+     * @param codec the codec of the connection.
+     * @return the decoded message, a <code>Sequenced</code> message, an
+     * <code>Ack</code>, a <code>Heartbeat</code> or a
+     * <code>SessionNotice</code>.
+     * @throws IOException            if an I/O error occurs or the frame is invalid.
+     * @throws ClassNotFoundException if the message names an unknown class.
+     */
+    public static Object readMessage(DataInputStream input, Codec codec)
+            throws IOException, ClassNotFoundException {
+        int length = checkLength(input.readInt());
+        byte kind = input.readByte();
+        byte[] payload = new byte[Math.min(length, READ_CHUNK)];
+        input.readFully(payload);
+        while (payload.length < length) {
+            int read = payload.length;
+            payload = Arrays.copyOf(payload, (int) Math.min(length, 2L * read));
+            input.readFully(payload, read, payload.length - read);
+        }
+        return decode(kind, payload, 0, length, codec);
+    }
+
+    /**
+     * Decodes the payload of a frame.
+     *
+     * @param kind   the kind of the frame.
+     * @param buf    the buffer holding the payload.
+     * @param offset the offset of the first byte of the payload.
+     * @param length the length of the payload.
+     * @param codec  the codec of the connection.
+     * @return the decoded message, a <code>Sequenced</code> message, an
+     * <code>Ack</code>, a <code>Heartbeat</code> or a
+     * <code>SessionNotice</code>.
+     * @throws IOException            if the frame is invalid.
+     * @throws ClassNotFoundException if the message names an unknown class.
+     */
+    public static Object decode(byte kind, byte[] buf, int offset, int length, Codec codec)
+            throws IOException, ClassNotFoundException {
+        switch (kind) {
+            case MESSAGE:
+                return codec.decode(buf, offset, length);
+            case SEQUENCED:
+                if (length < 8)
+                    throw new StreamCorruptedException("sequenced frame too short");
+                return new Sequenced(readLong(buf, offset),
+                        codec.decode(buf, offset + 8, length - 8));
+            case ACK:
+                if (length != 8)
+                    throw new StreamCorruptedException("invalid acknowledgement");
+                return new Ack(readLong(buf, offset));
+            case HEARTBEAT:
+                if (length != 0)
+                    throw new StreamCorruptedException("invalid heartbeat");
+                return Heartbeat.INSTANCE;
+            case SESSION:
+                if (length < 1 || buf[offset] < SESSION_OPENED || buf[offset] > SESSION_REFUSED
+                        || (buf[offset] == SESSION_REFUSED) != (length == 1))
+                    throw new StreamCorruptedException("invalid session frame");
+                return new SessionNotice(buf[offset] == SESSION_REFUSED ? null
+                        : new String(buf, offset + 1, length - 1, StandardCharsets.UTF_8),
+                        buf[offset] == SESSION_RESUMED);
+            default:
+                throw new StreamCorruptedException("unknown frame kind " + kind);
+        }
+    }
+
+    /**
+     * Reads a big-endian long.
+     *
+     * @param buf    the buffer.
+     * @param offset the offset of the long.
+     * @return the long.
+     */
+    private static long readLong(byte[] buf, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buf[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Validates the length prefix of a frame.
+     *
+     * @param length the payload length read from, or about to be written
+     *               to, a frame.
+     * @return the length.
+     * @throws StreamCorruptedException if the length is out of range.
+     */
+    public static int checkLength(int length) throws StreamCorruptedException {
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new StreamCorruptedException("invalid frame length " + length);
+        return length;
+    }
+
+    // INNER CLASSES ----------------------------------------------------
+
+    /**
+     * A message the sender asked to be acknowledged once handled.
+     */
+    public static final class Sequenced {
+        private final long sequence;
+        private final Object message;
+
+        Sequenced(long sequence, Object message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+
+        /**
+         * @return the sequence number of the message.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the message.
+         */
+        public Object getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * The acknowledgement of the sequenced messages handled so far.
+     */
+    public static final class Ack {
+        private final long sequence;
+
+        Ack(long sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return the sequence number of the last message handled.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    /**
+     * A heartbeat received. All heartbeats are the same object.
+     */
+    public static final class Heartbeat {
+        static final Heartbeat INSTANCE = new Heartbeat();
+
+        private Heartbeat() {
+        }
+    }
+
+    /**
+     * What a server told a client about its session.
+     */
+    public static final class SessionNotice {
+        private final String token;
+        private final boolean resumed;
+
+        SessionNotice(String token, boolean resumed) {
+            this.token = token;
+            this.resumed = resumed;
+        }
+
+        /**
+         * @return the token of the session, or null if the session the
+         * client asked to resume could not be.
+         */
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * @return true if the session was resumed rather than opened.
+         */
+        public boolean isResumed() {
+            return resumed;
+        }
+    }
+
+    /**
+     * A buffer that reserves room for the frame header before the payload
+     * is written, so that the frame is assembled without copying the
+     * payload.
+     */
+    private static final class FrameBuffer extends ByteArrayOutputStream {
+        FrameBuffer() {
+            super(256);
+            count = HEADER_LENGTH;
+        }
+
+        /**
+         * Writes a big-endian long to the payload.
+         *
+         * @param value the long.
+         */
+        void writeLong(long value) {
+            for (int i = 0; i < 8; i++) {
+                write((int) (value >>> (56 - 8 * i)));
+            }
+        }
+
+        /**
+         * Fills in the header and returns the frame.
+         *
+         * @param kind the kind of the frame.
+         * @return the frame.
+         * @throws StreamCorruptedException if the payload is too long.
+         */
+        byte[] finish(byte kind) throws StreamCorruptedException {
+            int length = checkLength(count - HEADER_LENGTH);
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            buf[4] = kind;
+            return count == buf.length ? buf : Arrays.copyOf(buf, count);
+        }
+    }
+}
+// End of Frames class
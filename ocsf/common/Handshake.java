@@ -0,0 +1,294 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The <code> Handshake </code> class implements the exchange that opens a
+ * framed connection and chooses its codec. The client sends a hello made of
+ * the four ASCII bytes <code>OCSF</code>, a version byte, a count byte and,
+ * for each codec it supports in order of preference, a length byte followed
+ * by the UTF-8 name of the codec. The server answers with the same magic
+ * bytes, the version and the length and name of the chosen codec, the first
+ * one of the client's list it supports. An empty name means that no codec
+ * was in common, and the server then closes the connection.<p>
+ * <p>
+ * A client using the legacy continuous object stream starts instead with
+ * the serialization magic number <code>0xACED</code>, which servers
+ * recognize to keep serving such clients.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Handshake {
+    // CONSTANTS *********************************************************
+
+    /**
+     * The bytes starting a hello and its reply.
+     */
+    private static final byte[] MAGIC = {'O', 'C', 'S', 'F'};
+
+    /**
+     * The version of the handshake.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The number of bytes of a hello before the codec names.
+     */
+    private static final int HELLO_HEADER_LENGTH = MAGIC.length + 2;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Not to be instantiated.
+     */
+    private Handshake() {
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * @return the codecs offered or accepted by default, in order of
+     * preference: text, then Java serialization.
+     */
+    public static Codec[] defaultCodecs() {
+        return new Codec[]{TextCodec.INSTANCE, SerializationCodec.INSTANCE};
+    }
+
+    /**
+     * Returns the codecs accepted by servers by default: the default codecs,
+     * and each of them compressed by a new <code>DeflateCodec</code>, so
+     * that compression is used with the clients that offer it.
+     *
+     * @return the codecs.
+     */
+    public static Codec[] serverCodecs() {
+        return new Codec[]{TextCodec.INSTANCE, SerializationCodec.INSTANCE,
+                new DeflateCodec(TextCodec.INSTANCE), new DeflateCodec(SerializationCodec.INSTANCE)};
+    }
+
+    /**
+     * Returns codecs compressing each of the given codecs, followed by the
+     * codecs themselves, for clients preferring compression.
+     *
+     * @param codecs the codecs, in order of preference.
+     * @return the compressed codecs, then the codecs.
+     */
+    public static Codec[] withCompression(Codec... codecs) {
+        Codec[] all = new Codec[2 * codecs.length];
+        for (int i = 0; i < codecs.length; i++) {
+            all[i] = new DeflateCodec(codecs[i]);
+            all[codecs.length + i] = codecs[i];
+        }
+        return all;
+    }
+
+    /**
+     * Indicates if the first bytes received from a client start a legacy
+     * object stream rather than a hello.
+     *
+     * @param first  the first byte received.
+     * @param second the second byte received.
+     * @return true for the serialization magic number.
+     */
+    public static boolean isObjectStream(int first, int second) {
+        return (first & 0xFF) == 0xAC && (second & 0xFF) == 0xED;
+    }
+
+    /**
+     * Writes the hello of a client.
+     *
+     * @param out    the stream to the server.
+     * @param codecs the codecs offered, in order of preference.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void writeHello(OutputStream out, Codec[] codecs) throws IOException {
+        ByteArrayOutputStream hello = new ByteArrayOutputStream(64);
+        hello.write(MAGIC, 0, MAGIC.length);
+        hello.write(VERSION);
+        hello.write(codecs.length);
+        for (Codec codec : codecs) {
+            writeName(hello, codec.getName());
+        }
+        out.write(hello.toByteArray());
+        out.flush();
+    }
+
+    /**
+     * Reads the hello of a client from a blocking stream.
+     *
+     * @param in the stream from the client.
+     * @return the names of the codecs offered, in order of preference.
+     * @throws IOException if an I/O error occurs or the hello is invalid.
+     */
+    public static String[] readHello(DataInputStream in) throws IOException {
+        byte[] header = new byte[HELLO_HEADER_LENGTH];
+        in.readFully(header);
+        checkHeader(header, 0);
+
+        String[] names = new String[header[HELLO_HEADER_LENGTH - 1] & 0xFF];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = readName(in);
+        }
+        return names;
+    }
+
+    /**
+     * Parses the hello of a client from the bytes received so far. The
+     * buffer, in read mode, is only consumed when the hello is complete.
+     *
+     * @param buf the bytes received.
+     * @return the names of the codecs offered, or null if more bytes are
+     * needed.
+     * @throws IOException if the hello is invalid.
+     */
+    public static String[] parseHello(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        if (buf.remaining() >= 2 && isObjectStream(buf.get(start), buf.get(start + 1)))
+            throw new StreamCorruptedException("legacy object stream not supported here");
+        if (buf.remaining() < HELLO_HEADER_LENGTH)
+            return null;
+
+        byte[] header = new byte[HELLO_HEADER_LENGTH];
+        buf.get(start, header, 0, HELLO_HEADER_LENGTH);
+        checkHeader(header, 0);
+
+        String[] names = new String[header[HELLO_HEADER_LENGTH - 1] & 0xFF];
+        int position = start + HELLO_HEADER_LENGTH;
+        for (int i = 0; i < names.length; i++) {
+            if (position >= buf.limit())
+                return null;
+            int length = buf.get(position) & 0xFF;
+            if (position + 1 + length > buf.limit())
+                return null;
+
+            byte[] name = new byte[length];
+            buf.get(position + 1, name, 0, length);
+            names[i] = new String(name, StandardCharsets.UTF_8);
+            position += 1 + length;
+        }
+
+        buf.position(position);
+        return names;
+    }
+
+    /**
+     * Chooses the codec of a connection: the first one offered by the
+     * client that the server supports.
+     *
+     * @param offered   the names offered by the client.
+     * @param supported the codecs supported by the server.
+     * @return the chosen codec, or null if none is in common.
+     */
+    public static Codec choose(String[] offered, Codec[] supported) {
+        for (String name : offered) {
+            for (Codec codec : supported) {
+                if (codec.getName().equals(name))
+                    return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes the reply of a server.
+     *
+     * @param codec the chosen codec, or null if none is in common.
+     * @return the reply.
+     */
+    public static byte[] reply(Codec codec) {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream(32);
+        reply.write(MAGIC, 0, MAGIC.length);
+        reply.write(VERSION);
+        writeName(reply, codec == null ? "" : codec.getName());
+        return reply.toByteArray();
+    }
+
+    /**
+     * Reads the reply of a server and finds the codec it chose.
+     *
+     * @param in     the stream from the server.
+     * @param codecs the codecs the client offered.
+     * @return the chosen codec.
+     * @throws IOException if an I/O error occurs, the reply is invalid or
+     *                     no codec was in common.
+     */
+    public static Codec readReply(DataInputStream in, Codec[] codecs) throws IOException {
+        byte[] header = new byte[MAGIC.length + 1];
+        in.readFully(header);
+        checkMagic(header, 0);
+
+        String name = readName(in);
+        for (Codec codec : codecs) {
+            if (codec.getName().equals(name))
+                return codec;
+        }
+        throw new ProtocolException(name.isEmpty() ?
+                "the server supports none of the codecs offered" : "unexpected codec " + name);
+    }
+
+    /**
+     * Checks the magic bytes, version and count of a hello.
+     *
+     * @param header the bytes of the header.
+     * @param offset the offset of the header.
+     * @throws StreamCorruptedException if the header is invalid.
+     */
+    private static void checkHeader(byte[] header, int offset) throws StreamCorruptedException {
+        checkMagic(header, offset);
+        if (header[offset + HELLO_HEADER_LENGTH - 1] == 0)
+            throw new StreamCorruptedException("no codec offered");
+    }
+
+    /**
+     * Checks the magic bytes and version of a hello or reply.
+     *
+     * @param header the bytes of the header.
+     * @param offset the offset of the header.
+     * @throws StreamCorruptedException if the header is invalid.
+     */
+    private static void checkMagic(byte[] header, int offset) throws StreamCorruptedException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[offset + i] != MAGIC[i])
+                throw new StreamCorruptedException("not an OCSF handshake");
+        }
+        if ((header[offset + MAGIC.length] & 0xFF) != VERSION)
+            throw new StreamCorruptedException(
+                    "unsupported handshake version " + (header[offset + MAGIC.length] & 0xFF));
+    }
+
+    /**
+     * Writes a codec name preceded by its length.
+     *
+     * @param out  the stream.
+     * @param name the name.
+     * @throws IllegalArgumentException if the name is longer than 255 bytes.
+     */
+    private static void writeName(ByteArrayOutputStream out, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 255)
+            throw new IllegalArgumentException("codec name too long: " + name);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Reads a codec name preceded by its length.
+     *
+     * @param in the stream.
+     * @return the name.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static String readName(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedByte()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+// End of Handshake class
@@ -0,0 +1,167 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A <code> Histogram </code> counts latencies recorded concurrently by many
+ * threads, without locks, and reports their percentiles. The buckets grow
+ * geometrically: each power of two is split into sixteen buckets, so a
+ * percentile is exact to within about six percent whatever its magnitude.
+ * Values above about eighteen minutes, in nanoseconds, fall in the last
+ * bucket.<p>
+ * <p>
+ * <code>snapshot</code> copies the counts recorded so far, while
+ * <code>drain</code> takes them and empties the histogram at once, so that
+ * a reporter can print one interval while the recorders carry on. Neither
+ * stops the recorders; a value recorded meanwhile may or may not be
+ * included.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Histogram {
+    // CLASS VARIABLES **************************************************
+
+    /**
+     * The number of bits distinguishing the buckets within a power of two.
+     */
+    private static final int SUB_BITS = 4;
+
+    /**
+     * The number of buckets within a power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * The largest power of two counted precisely.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    /**
+     * The number of buckets, and the length of the arrays of counts.
+     */
+    public static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The count of each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Records a value.
+     *
+     * @param value the value; negative values count as zero.
+     */
+    public void record(long value) {
+        counts.incrementAndGet(bucketOf(value));
+    }
+
+    /**
+     * Copies the counts recorded so far.
+     *
+     * @return the counts of each bucket.
+     */
+    public long[] snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * Takes the counts recorded so far and empties the histogram.
+     *
+     * @return the counts of each bucket.
+     */
+    public long[] drain() {
+        long[] taken = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            taken[i] = counts.getAndSet(i, 0);
+        }
+        return taken;
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Adds counts taken from a histogram to others.
+     *
+     * @param total the counts added to.
+     * @param more  the counts added.
+     */
+    public static void add(long[] total, long[] more) {
+        for (int i = 0; i < BUCKETS; i++) {
+            total[i] += more[i];
+        }
+    }
+
+    /**
+     * @param counts counts taken from a histogram.
+     * @return the number of values counted.
+     */
+    public static long total(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Returns a percentile of counts taken from a histogram.
+     *
+     * @param counts     the counts.
+     * @param percentile the percentile, between 0 and 100.
+     * @return the lowest value of the bucket holding the percentile, or
+     * zero if nothing was counted.
+     */
+    public static long percentile(long[] counts, double percentile) {
+        long total = total(counts);
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return valueOf(i);
+        }
+        return valueOf(BUCKETS - 1);
+    }
+
+    /**
+     * @param value a value.
+     * @return the bucket counting it.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) Math.max(value, 0);
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT + 1);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket a bucket.
+     * @return the lowest value it counts.
+     */
+    static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+}
+// End of Histogram class
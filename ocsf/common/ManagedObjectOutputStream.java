@@ -0,0 +1,231 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+import java.io.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code> ManagedObjectOutputStream </code> is the object stream of a
+ * connection using the legacy wire format. It resets itself as dictated by
+ * a <code> ResetPolicy </code>, so that the objects it has written do not
+ * stay reachable for the whole life of the connection, and it counts the
+ * objects it currently retains.<p>
+ * <p>
+ * The count is exact: an object enters the stream's table of
+ * back-references the first time it is written after a reset, which is
+ * also the only time <code>replaceObject</code> is called for it.<p>
+ * <p>
+ * Messages must be written with <code>writeMessage</code>, holding the lock
+ * given to the constructor; the idle check takes the same lock.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class ManagedObjectOutputStream extends ObjectOutputStream {
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The stream under this one, counting the bytes written.
+     */
+    private final CountingStream counter;
+
+    /**
+     * The policy deciding when the stream is reset.
+     */
+    private final ResetPolicy policy;
+
+    /**
+     * The lock held while writing to the stream.
+     */
+    private final Object lock;
+
+    /**
+     * The periodic idle check, or null if the policy has no idle limit.
+     */
+    private final ScheduledFuture<?> idleCheck;
+
+    /**
+     * The number of objects referenced by the stream since its last reset.
+     */
+    private volatile int retainedObjects = 0;
+
+    /**
+     * The number of messages written since the last reset.
+     */
+    private int messagesSinceReset = 0;
+
+    /**
+     * The value of the byte counter at the last reset.
+     */
+    private long bytesAtReset;
+
+    /**
+     * The time, in ms, of the last message written.
+     */
+    private long lastWrite = System.currentTimeMillis();
+
+    /**
+     * The number of times the stream was reset.
+     */
+    private volatile long resets = 0;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs a stream and writes its header.
+     *
+     * @param out    the stream to write to.
+     * @param policy the policy deciding when the stream is reset.
+     * @param lock   the lock held by the writers of this stream, or null to
+     *               use the stream itself.
+     * @throws IOException if an I/O error occurs.
+     */
+    public ManagedObjectOutputStream(OutputStream out, ResetPolicy policy, Object lock)
+            throws IOException {
+        this(new CountingStream(out), policy, lock);
+    }
+
+    /**
+     * Constructs a stream over a byte counter.
+     *
+     * @param counter the byte counter.
+     * @param policy  the reset policy.
+     * @param lock    the lock of the writers, or null.
+     * @throws IOException if an I/O error occurs.
+     */
+    private ManagedObjectOutputStream(CountingStream counter, ResetPolicy policy, Object lock)
+            throws IOException {
+        super(counter);
+        this.counter = counter;
+        this.policy = policy;
+        this.lock = lock == null ? this : lock;
+        this.bytesAtReset = counter.count;
+        enableReplaceObject(true);
+
+        long idle = policy.getIdleMillis();
+        long period = Math.max(idle / 2, 1);
+        idleCheck = idle <= 0 ? null : SharedScheduler.get().scheduleWithFixedDelay(
+                this::checkIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Writes a message, then resets the stream if the policy's message or
+     * byte limit is reached. Must be called holding the writers' lock.
+     *
+     * @param msg the message.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeMessage(Object msg) throws IOException {
+        writeObject(msg);
+        lastWrite = System.currentTimeMillis();
+        messagesSinceReset++;
+
+        int maxMessages = policy.getMessages();
+        long maxBytes = policy.getBytes();
+        if ((maxMessages > 0 && messagesSinceReset >= maxMessages)
+                || (maxBytes > 0 && counter.count - bytesAtReset >= maxBytes))
+            reset();
+    }
+
+    /**
+     * Resets the stream, forgetting every object written so far.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void reset() throws IOException {
+        super.reset();
+        retainedObjects = 0;
+        messagesSinceReset = 0;
+        bytesAtReset = counter.count;
+        resets++;
+    }
+
+    /**
+     * Stops the idle check and closes the stream.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void close() throws IOException {
+        if (idleCheck != null)
+            idleCheck.cancel(false);
+        super.close();
+    }
+
+    /**
+     * Counts the objects entering the table of back-references.
+     *
+     * @param obj the object written for the first time since the last reset.
+     * @return the object itself.
+     */
+    protected Object replaceObject(Object obj) {
+        retainedObjects++;
+        return obj;
+    }
+
+    /**
+     * Resets the stream if it holds objects and has been idle for the time
+     * given by the policy, and flushes the reset so that the peer's stream
+     * releases the objects too. Called periodically by the shared
+     * scheduler.
+     */
+    private void checkIdle() {
+        synchronized (lock) {
+            if (retainedObjects == 0
+                    || System.currentTimeMillis() - lastWrite < policy.getIdleMillis())
+                return;
+            try {
+                reset();
+                flush();
+            } catch (IOException ex) {
+                // The connection is failing; its reader will find out.
+                idleCheck.cancel(false);
+            }
+        }
+    }
+
+    // ACCESSING METHODS ------------------------------------------------
+
+    /**
+     * @return the number of objects the stream keeps reachable, that is,
+     * written since its last reset.
+     */
+    public int getRetainedObjects() {
+        return retainedObjects;
+    }
+
+    /**
+     * @return the number of times the stream was reset.
+     */
+    public long getResets() {
+        return resets;
+    }
+
+    // INNER CLASSES ----------------------------------------------------
+
+    /**
+     * Counts the bytes written to the underlying stream.
+     */
+    private static final class CountingStream extends FilterOutputStream {
+        volatile long count = 0;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
+// End of ManagedObjectOutputStream class
@@ -0,0 +1,126 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+/**
+ * A <code> ResetPolicy </code> tells when a connection using the legacy
+ * continuous object stream resets the stream. An
+ * <code> ObjectOutputStream </code> keeps a reference to every object it
+ * has written so that it can send a back-reference if the object is written
+ * again; until the stream is reset, none of these objects can be garbage
+ * collected. A reset frees them all, at the cost of sending again the class
+ * descriptions and objects written afterwards.<p>
+ * <p>
+ * The stream is reset once it has written a number of messages, a number of
+ * bytes, or once it has been idle for some time, whichever comes first.
+ * A limit of zero is never reached.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.ManagedObjectOutputStream
+ */
+public final class ResetPolicy {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The policy that never resets the stream; the stream keeps every
+     * object it has written for as long as the connection is open.
+     */
+    public static final ResetPolicy NEVER = new ResetPolicy(0, 0, 0);
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The number of messages after which the stream is reset, or zero.
+     */
+    private final int messages;
+
+    /**
+     * The number of bytes after which the stream is reset, or zero.
+     */
+    private final long bytes;
+
+    /**
+     * The time, in milliseconds, after which an idle stream is reset, or
+     * zero.
+     */
+    private final long idleMillis;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs a policy. Each limit is ignored when zero.
+     *
+     * @param messages   the number of messages after which the stream is reset.
+     * @param bytes      the number of bytes after which the stream is reset.
+     * @param idleMillis the time in ms after which an idle stream is reset.
+     * @throws IllegalArgumentException if a limit is negative.
+     */
+    public ResetPolicy(int messages, long bytes, long idleMillis) {
+        if (messages < 0 || bytes < 0 || idleMillis < 0)
+            throw new IllegalArgumentException("negative limit");
+        this.messages = messages;
+        this.bytes = bytes;
+        this.idleMillis = idleMillis;
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * @param messages the number of messages after which the stream is reset.
+     * @return a policy resetting the stream every <code>messages</code> messages.
+     */
+    public static ResetPolicy everyMessages(int messages) {
+        return new ResetPolicy(messages, 0, 0);
+    }
+
+    /**
+     * @param bytes the number of bytes after which the stream is reset.
+     * @return a policy resetting the stream every <code>bytes</code> bytes.
+     */
+    public static ResetPolicy everyBytes(long bytes) {
+        return new ResetPolicy(0, bytes, 0);
+    }
+
+    /**
+     * @param idleMillis the time in ms after which an idle stream is reset.
+     * @return a policy resetting the stream when idle.
+     */
+    public static ResetPolicy whenIdle(long idleMillis) {
+        return new ResetPolicy(0, 0, idleMillis);
+    }
+
+    // ACCESSING METHODS ------------------------------------------------
+
+    /**
+     * @return the number of messages after which the stream is reset, or zero.
+     */
+    public int getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the number of bytes after which the stream is reset, or zero.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the time in ms after which an idle stream is reset, or zero.
+     */
+    public long getIdleMillis() {
+        return idleMillis;
+    }
+
+    /**
+     * @return a description of the policy.
+     */
+    public String toString() {
+        return "ResetPolicy[messages=" + messages + ", bytes=" + bytes
+                + ", idleMillis=" + idleMillis + "]";
+    }
+}
+// End of ResetPolicy class
@@ -0,0 +1,77 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The <code> SerializationCodec </code> carries any serializable object as a
+ * complete Java serialization stream. It is the fallback for applications
+ * that exchange more than strings; every payload is self-contained, so it
+ * pays for a stream header and class descriptors on every message.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class SerializationCodec implements Codec {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The name of this codec in the handshake.
+     */
+    public static final String NAME = "java";
+
+    /**
+     * The shared instance.
+     */
+    public static final SerializationCodec INSTANCE = new SerializationCodec();
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Use <code>INSTANCE</code>.
+     */
+    private SerializationCodec() {
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * @return the name of this codec.
+     */
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Serializes a message.
+     *
+     * @param msg the message to encode.
+     * @param out the stream receiving the payload.
+     * @throws IOException if the message cannot be serialized.
+     */
+    public void encode(Object msg, OutputStream out) throws IOException {
+        ObjectOutputStream output = new ObjectOutputStream(out);
+        output.writeObject(msg);
+        output.flush();
+    }
+
+    /**
+     * Deserializes a message.
+     *
+     * @param buf    the buffer holding the payload.
+     * @param offset the offset of the first byte of the payload.
+     * @param length the length of the payload.
+     * @return the decoded message.
+     * @throws IOException            if the payload is not a valid stream.
+     * @throws ClassNotFoundException if the class of the message is unknown.
+     */
+    public Object decode(byte[] buf, int offset, int length)
+            throws IOException, ClassNotFoundException {
+        ObjectInputStream input =
+                new ObjectInputStream(new ByteArrayInputStream(buf, offset, length));
+        return input.readObject();
+    }
+}
+// End of SerializationCodec class
@@ -0,0 +1,50 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * The <code> SharedScheduler </code> class provides the single daemon
+ * thread on which the streams of the framework run their timed work, such
+ * as idle resets and delayed flushes. The tasks must be short and must not
+ * block on the network.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+final class SharedScheduler {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The scheduler, created when first needed.
+     */
+    private static ScheduledThreadPoolExecutor scheduler = null;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Not to be instantiated.
+     */
+    private SharedScheduler() {
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * @return the shared scheduler.
+     */
+    static synchronized ScheduledThreadPoolExecutor get() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "OCSF scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+        return scheduler;
+    }
+}
+// End of SharedScheduler class
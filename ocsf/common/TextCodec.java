@@ -0,0 +1,87 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The <code> TextCodec </code> carries <code> String </code> messages as
+ * plain UTF-8, with no other header than the frame's. It is the default
+ * codec: chat lines cost exactly their UTF-8 length on the wire, and any
+ * language able to read a length-prefixed buffer can talk to the framework.
+ * <p>
+ * Messages of any other type fall back to Java serialization, one message
+ * at a time, so that applications sending objects keep working. The
+ * serialization stream starts with the bytes <code>0xAC 0xED</code>, which
+ * cannot start UTF-8 text, so the payload tells which it is without any
+ * tag being added to the strings.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class TextCodec implements Codec {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The name of this codec in the handshake.
+     */
+    public static final String NAME = "text";
+
+    /**
+     * The shared instance.
+     */
+    public static final TextCodec INSTANCE = new TextCodec();
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Use <code>INSTANCE</code>.
+     */
+    private TextCodec() {
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * @return the name of this codec.
+     */
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Writes a string as UTF-8, or serializes any other message.
+     *
+     * @param msg the message to encode.
+     * @param out the stream receiving the payload.
+     * @throws IOException if the message is neither a string nor
+     *                     serializable.
+     */
+    public void encode(Object msg, OutputStream out) throws IOException {
+        if (msg instanceof String)
+            out.write(((String) msg).getBytes(StandardCharsets.UTF_8));
+        else
+            SerializationCodec.INSTANCE.encode(msg, out);
+    }
+
+    /**
+     * Decodes UTF-8 text, or deserializes a message that was not a string.
+     *
+     * @param buf    the buffer holding the payload.
+     * @param offset the offset of the first byte of the payload.
+     * @param length the length of the payload.
+     * @return the decoded message.
+     * @throws IOException            if a serialized message is invalid.
+     * @throws ClassNotFoundException if the class of a serialized message
+     *                                is unknown.
+     */
+    public Object decode(byte[] buf, int offset, int length)
+            throws IOException, ClassNotFoundException {
+        if (length >= 2 && Handshake.isObjectStream(buf[offset], buf[offset + 1]))
+            return SerializationCodec.INSTANCE.decode(buf, offset, length);
+        return new String(buf, offset, length, StandardCharsets.UTF_8);
+    }
+}
+// End of TextCodec class
@@ -0,0 +1,83 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.common;
+
+import java.lang.reflect.Method;
+
+/**
+ * The <code> VirtualThreads </code> class creates the reader threads of the
+ * framework as virtual threads when the running JVM provides them (Java 21
+ * and later). The framework itself still compiles and runs on older JVMs,
+ * where <code> isSupported </code> simply returns false.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class VirtualThreads {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * <code>Thread.ofVirtual()</code>, or null if the JVM lacks it.
+     */
+    private static final Method OF_VIRTUAL;
+
+    /**
+     * <code>Thread.Builder.unstarted(Runnable)</code>, or null if the JVM
+     * lacks it.
+     */
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = ofVirtual.getReturnType().getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException ex) {
+            ofVirtual = null;
+            unstarted = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Not to be instantiated.
+     */
+    private VirtualThreads() {
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * @return true if the running JVM can create virtual threads.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates an unstarted virtual thread.
+     *
+     * @param task the task run by the thread.
+     * @param name the name of the thread.
+     * @return the new thread.
+     * @throws UnsupportedOperationException if the JVM has no virtual threads.
+     */
+    public static Thread newThread(Runnable task, String name) {
+        if (!isSupported())
+            throw new UnsupportedOperationException("virtual threads are not supported");
+
+        try {
+            Thread thread = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+            thread.setName(name);
+            return thread;
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException("virtual threads are not supported", ex);
+        }
+    }
+}
+// End of VirtualThreads class
@@ -7,12 +7,31 @@ package ocsf.server;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import ocsf.common.Codec;
+import ocsf.common.FlushPolicy;
+import ocsf.common.Frames;
+import ocsf.common.Handshake;
+import ocsf.common.ResetPolicy;
+import ocsf.common.VirtualThreads;
 
 /**
  * The <code> AbstractServer </code> class maintains a thread that waits
  * for connection attempts from clients. When a connection attempt occurs
  * it creates a new <code> ConnectionToClient </code> instance which
- * runs as a thread. When a client is thus connected to the
+ * is run by its own reader thread. When a client is thus connected to the
  * server, the two programs can then exchange <code> Object </code>
  * instances.<p>
  * <p>
@@ -23,6 +42,11 @@ import java.io.*;
  * Several public service methods are provided to applications that use
  * this framework, and several hook methods are also available<p>
  * <p>
+ * The reader threads may be virtual threads; see
+ * <code> setVirtualThreads </code>. Instead of one thread per client, the
+ * connections may also be served by a small, fixed set of event-loop
+ * threads; see <code> setSelectorThreads </code>.<p>
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)<p>
  *
  * @author Dr Robert Lagani&egrave;re
@@ -36,28 +60,32 @@ public abstract class AbstractServer implements Runnable {
     // INSTANCE VARIABLES *********************************************
 
     /**
-     * The server socket: listens for clients who want to connect.
+     * The acceptors: listen for clients who want to connect. Null while the
+     * server is closed.
      */
-    private ServerSocket serverSocket = null;
+    private Acceptor[] acceptors = null;
 
     /**
      * The connection listener thread.
      */
     private Thread connectionListener;
 
+    /**
+     * The number of acceptors. Set to one by default.
+     */
+    private int acceptorThreads = 1;
+
     /**
      * The port number
      */
     private int port;
 
     /**
-     * The server timeout while for accepting connections.
-     * After timing out, the server will check to see if a command to
-     * stop the server has been issued; it not it will resume accepting
-     * connections.
-     * Set to half a second by default.
+     * The time, in ms, an accepted client served by a reader thread has to
+     * open its connection: to start its object stream or send its
+     * handshake. Set to ten seconds by default.
      */
-    private int timeout = 500;
+    private int timeout = 10000;
 
     /**
      * The maximum queue length; i.e. the maximum number of clients that
@@ -67,16 +95,156 @@ public abstract class AbstractServer implements Runnable {
     private int backlog = 10;
 
     /**
-     * The thread group associated with client threads. Each member of the
-     * thread group is a <code> ConnectionToClient </code>.
+     * The connections currently open, whichever way they are served.
+     */
+    private final ConnectionRegistry clientConnections = new ConnectionRegistry();
+
+    /**
+     * The subscribers of each channel.
+     */
+    private final ChannelIndex channelIndex = new ChannelIndex();
+
+    /**
+     * The connection of each client that has a login ID.
+     */
+    private final ConcurrentHashMap<String, ConnectionToClient> logins =
+            new ConcurrentHashMap<String, ConnectionToClient>();
+
+    /**
+     * The sessions of the clients, attached or detached, by token.
+     */
+    private final ConcurrentHashMap<String, Session> sessions =
+            new ConcurrentHashMap<String, Session>();
+
+    /**
+     * The sessions detached from any connection, which keep the frames
+     * broadcast until they are resumed or expire.
+     */
+    private final Set<Session> detachedSessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The number of frames each session keeps. When zero, sessions are not
+     * opened. Set to zero by default.
+     */
+    private volatile int sessionFrames = 0;
+
+    /**
+     * The time, in ns, a detached session is kept. Set to one minute by
+     * default.
+     */
+    private volatile long sessionGracePeriod = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * The lock making broadcasts atomic with the sessions detaching and
+     * resuming. Broadcasts share it, so that a session changing connection
+     * either gets a frame on its connection or keeps it in its ring, never
+     * both nor neither.
+     */
+    private final ReentrantReadWriteLock sessionLock = new ReentrantReadWriteLock();
+
+    /**
+     * Indicates if the reader thread of each client is a virtual thread
+     * rather than a platform thread. Set to false by default.
      */
-    private ThreadGroup clientThreadGroup;
+    private boolean virtualThreads = false;
 
     /**
      * Indicates if the listening thread is ready to stop.  Set to
      * false by default.
      */
-    private boolean readyToStop = false;
+    private volatile boolean readyToStop = false;
+
+    /**
+     * The exception that made an acceptor fail while listening, reported
+     * by the listening thread once every acceptor has stopped.
+     */
+    private volatile Throwable acceptFailure = null;
+
+    /**
+     * The number of event-loop threads of the selector engine. When zero,
+     * each client is served by its own <code> ConnectionToClient </code>
+     * thread. Set to zero by default.
+     */
+    private int selectorThreads = 0;
+
+    /**
+     * The engine serving the clients when selector threads are used;
+     * null otherwise. Created along with the server socket.
+     */
+    private volatile SelectorEngine selectorEngine = null;
+
+    /**
+     * The time, in ms, a client may stay silent before its connection is
+     * closed, or zero for no limit. Set to zero by default.
+     */
+    private long idleTimeout = 0;
+
+    /**
+     * The reaper closing idle connections, when there is an idle timeout;
+     * null otherwise. Created along with the server socket.
+     */
+    private volatile IdleReaper idleReaper = null;
+
+    /**
+     * The rate limit of the clients that have none of their own. Set to no
+     * limit by default.
+     */
+    private volatile RateLimit rateLimit = RateLimit.NONE;
+
+    /**
+     * The rate limits of particular login IDs.
+     */
+    private final Map<String, RateLimit> loginRateLimits =
+            new ConcurrentHashMap<String, RateLimit>();
+
+    /**
+     * The number of queued bytes at or below which a client's outbound queue
+     * accepts messages again. Only used when the high watermark is set.
+     */
+    private int lowWaterMark = 0;
+
+    /**
+     * The number of queued bytes at which a client's outbound queue stops
+     * accepting messages. When zero, messages are written directly by the
+     * sending thread. Set to zero by default.
+     */
+    private int highWaterMark = 0;
+
+    /**
+     * The threads draining the outbound queues of the clients served by
+     * reader threads. Created when first needed.
+     */
+    private Executor writerExecutor = null;
+
+    /**
+     * The executor on which messages from clients are handled, or null to
+     * handle them on the thread that read them. Set to null by default.
+     */
+    private volatile Executor dispatchExecutor = null;
+
+    /**
+     * The codecs the server accepts, in no particular order; each client
+     * gets the first one of its own list that appears here. Text and Java
+     * serialization, each plain or compressed, by default.
+     */
+    private volatile Codec[] codecs = Handshake.serverCodecs();
+
+    /**
+     * The policy deciding when the object streams of legacy clients are
+     * reset. Set to never by default.
+     */
+    private volatile ResetPolicy resetPolicy = ResetPolicy.NEVER;
+
+    /**
+     * The policy deciding when the output to clients served by reader
+     * threads is flushed. Set to immediate by default.
+     */
+    private volatile FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+
+    /**
+     * The counters and histograms describing the server's activity.
+     */
+    private final ServerMetrics metrics = new ServerMetrics(this);
 
 
     // CONSTRUCTOR ******************************************************
@@ -88,16 +256,6 @@ public abstract class AbstractServer implements Runnable {
      */
     public AbstractServer(int port) {
         this.port = port;
-
-        this.clientThreadGroup =
-                new ThreadGroup("ConnectionToClient threads") {
-                    // All uncaught exceptions in connection threads will
-                    // be sent to the clientException callback method.
-                    public void uncaughtException(
-                            Thread thread, Throwable exception) {
-                        clientException((ConnectionToClient) thread, exception);
-                    }
-                };
     }
 
 
@@ -113,11 +271,21 @@ public abstract class AbstractServer implements Runnable {
      */
     final public void listen() throws IOException {
         if (!isListening()) {
-            if (serverSocket == null) {
-                serverSocket = new ServerSocket(getPort(), backlog);
+            if (acceptors == null) {
+                acceptors = Acceptor.open(getPort(), backlog, acceptorThreads);
+                if (selectorThreads > 0) {
+                    try {
+                        selectorEngine = new SelectorEngine(this, selectorThreads);
+                    } catch (IOException ex) {
+                        Acceptor.close(acceptors);
+                        acceptors = null;
+                        throw ex;
+                    }
+                }
+                if (idleTimeout > 0)
+                    idleReaper = new IdleReaper(this);
             }
 
-            serverSocket.setSoTimeout(timeout);
             readyToStop = false;
             connectionListener = new Thread(this);
             connectionListener.start();
@@ -125,10 +293,18 @@ public abstract class AbstractServer implements Runnable {
     }
 
     /**
-     * Causes the server to stop accepting new connections.
+     * Causes the server to stop accepting new connections. The listening
+     * threads stop at once.
      */
     final public void stopListening() {
         readyToStop = true;
+
+        Acceptor[] current = acceptors;
+        if (current != null) {
+            for (Acceptor acceptor : current) {
+                acceptor.wakeup();
+            }
+        }
     }
 
     /**
@@ -144,23 +320,23 @@ public abstract class AbstractServer implements Runnable {
      *                     closing the server socket.
      */
     final synchronized public void close() throws IOException {
-        if (serverSocket == null)
+        if (acceptors == null)
             return;
         stopListening();
         try {
-            serverSocket.close();
+            Acceptor.close(acceptors);
         } finally {
             // Close the client sockets of the already connected clients
-            Thread[] clientThreadList = getClientConnections();
-            for (int i = 0; i < clientThreadList.length; i++) {
-                try {
-                    ((ConnectionToClient) clientThreadList[i]).close();
-                }
-                // Ignore all exceptions when closing clients.
-                catch (Exception ex) {
-                }
+            clientConnections.forEach(AbstractServer::closeQuietly, null);
+            acceptors = null;
+            if (selectorEngine != null) {
+                selectorEngine.shutdown();
+                selectorEngine = null;
+            }
+            if (idleReaper != null) {
+                idleReaper.stop();
+                idleReaper = null;
             }
-            serverSocket = null;
             serverClosed();
         }
     }
@@ -173,18 +349,196 @@ public abstract class AbstractServer implements Runnable {
      * function of sending to all clients, perhaps after some kind
      * of filtering is done. Any exception thrown while
      * sending the message to a particular client is ignored.
+     * The message is serialized once into a <code>Frame</code> whose
+     * bytes are written to every client, and kept by the detached sessions
+     * as one step. The time taken is recorded in the server's metrics.
      *
      * @param msg Object The message to be sent
      */
     public void sendToAllClients(Object msg) {
-        Thread[] clientThreadList = getClientConnections();
+        long start = System.nanoTime();
+        Frame frame = Frame.of(msg);
+        Lock lock = sessionLock.readLock();
+        lock.lock();
+        try {
+            clientConnections.forEach(AbstractServer::sendQuietly, frame);
+            keepForDetached(frame, null);
+        } finally {
+            lock.unlock();
+        }
+        metrics.fanoutTime(System.nanoTime() - start);
+    }
 
-        for (int i = 0; i < clientThreadList.length; i++) {
-            try {
-                ((ConnectionToClient) clientThreadList[i]).sendToClient(msg);
-            } catch (Exception ex) {
+    /**
+     * Sends a message to every client subscribed to a channel; see
+     * <code>ConnectionToClient.joinChannel</code>. Only the subscribers
+     * are visited, so the cost grows with the audience of the channel, not
+     * with the number of clients connected. As with
+     * <code>sendToAllClients</code>, the message is serialized once, any
+     * exception thrown while sending to a particular client is ignored, and
+     * the time taken is recorded in the server's metrics. This method may
+     * be overriden, but should still send to the channel's subscribers.
+     *
+     * @param channel the name of the channel.
+     * @param msg     the message to be sent.
+     */
+    public void sendToChannel(String channel, Object msg) {
+        long start = System.nanoTime();
+        Frame frame = Frame.of(msg);
+        Lock lock = sessionLock.readLock();
+        lock.lock();
+        try {
+            channelIndex.forEach(channel, AbstractServer::sendQuietly, frame);
+            keepForDetached(frame, channel);
+        } finally {
+            lock.unlock();
+        }
+        metrics.fanoutTime(System.nanoTime() - start);
+    }
+
+    /**
+     * Sends a message to the client with the given login ID; see
+     * <code>ConnectionToClient.setLoginID</code>. The client is found in
+     * constant time, however many are connected.
+     *
+     * @param loginID the login ID of the client.
+     * @param msg     the message to be sent.
+     * @return true if a client has that login ID, false otherwise.
+     * @throws IOException if an I/O error occurs when sending the message.
+     */
+    public boolean sendToLogin(String loginID, Object msg) throws IOException {
+        ConnectionToClient client = logins.get(loginID);
+        if (client == null)
+            return false;
+        client.sendToClient(msg);
+        return true;
+    }
+
+    /**
+     * Opens a session for a client, so that it can resume where it left off
+     * if its connection drops; see <code>Session</code>. The client is given
+     * the session's token in a session frame, and the frames sent to it
+     * from then on are numbered from 1. Any previous session of the client
+     * is forgotten.
+     *
+     * @param client the connection of the client.
+     * @return the session, or null if sessions are disabled or the client
+     * uses the legacy object stream.
+     */
+    final public Session openSession(ConnectionToClient client) {
+        expireSessions();
+        int frames = sessionFrames;
+        if (frames == 0 || client.getCodec() == null)
+            return null;
+
+        Session previous = client.getSession();
+        if (previous != null)
+            sessions.remove(previous.getToken(), previous);
+        Session session = new Session(client, frames);
+        sessions.put(session.getToken(), session);
+        try {
+            session.open();
+        } catch (IOException ex) {
+            // The connection is failing; its reader reports it
+        }
+        return session;
+    }
+
+    /**
+     * Resumes a session on the new connection of its client: the client
+     * gets back its login ID, the information saved about it and its
+     * channels, and is sent the frames it missed. A connection the session
+     * is still attached to, which the server may not yet know is broken,
+     * is closed first, once the token and the last frame received are
+     * known to be valid. Whether resumed or not, the client is told so in a
+     * session frame.
+     *
+     * @param client   the new connection of the client.
+     * @param token    the token of the session.
+     * @param lastSeen the number of the last frame the client received.
+     * @return true if the session was resumed; false if it is unknown or
+     * expired, its login ID was taken, the last frame received is not one
+     * that was sent, or some of the frames missed are no longer kept, in
+     * which case the client needs a new session.
+     * @throws IOException if the frames missed cannot be sent.
+     */
+    final public boolean resumeSession(ConnectionToClient client, String token, long lastSeen)
+            throws IOException {
+        if (attachSession(client, token, lastSeen))
+            return true;
+        client.writeSession(null, false);
+        return false;
+    }
+
+    /**
+     * Resumes a session on the new connection of its client; see
+     * <code>resumeSession</code>.
+     *
+     * @param client   the new connection of the client.
+     * @param token    the token of the session.
+     * @param lastSeen the number of the last frame the client received.
+     * @return true if the session was resumed.
+     * @throws IOException if the frames missed cannot be sent.
+     */
+    private boolean attachSession(ConnectionToClient client, String token, long lastSeen)
+            throws IOException {
+        expireSessions();
+        Session session = token == null || client.getCodec() == null ? null : sessions.get(token);
+        if (session == null || !session.canResume(lastSeen))
+            return false;
+
+        ConnectionToClient previous = session.getClient();
+        if (previous != null && previous != client)
+            previous.close();
+        if (session.getLoginID() != null && !client.setLoginID(session.getLoginID()))
+            return false;
+
+        // No broadcast may fall between the frames replayed and the channels joined
+        Lock lock = sessionLock.writeLock();
+        lock.lock();
+        try {
+            if (!session.resume(client, lastSeen)) {
+                if (session.getClient() == null)
+                    forgetSession(session); // Of no more use
+                return false;
+            }
+            detachedSessions.remove(session);
+
+            for (Map.Entry<String, Object> info : session.getSavedInfo().entrySet()) {
+                client.setInfo(info.getKey(), info.getValue());
+            }
+            for (String channel : session.getSavedChannels()) {
+                client.joinChannel(channel);
             }
+        } finally {
+            lock.unlock();
         }
+        return true;
+    }
+
+    /**
+     * Calls an action once for every client connected to the server, without
+     * copying the connections into an array. Clients connecting or
+     * disconnecting during the call may or may not be visited.
+     *
+     * @param action the action to perform on each connection.
+     */
+    final public void forEachClient(Consumer<? super ConnectionToClient> action) {
+        clientConnections.forEach((client, visit) -> visit.accept(client), action);
+    }
+
+    /**
+     * Calls a visitor once for every client connected to the server, passing
+     * it an extra argument. With a method reference that captures nothing,
+     * the visit allocates no object at all.
+     *
+     * @param visitor  the visitor.
+     * @param argument the extra argument passed to the visitor.
+     * @param <T>      the type of the extra argument.
+     */
+    final public <T> void forEachClient(
+            BiConsumer<? super ConnectionToClient, ? super T> visitor, T argument) {
+        clientConnections.forEach(visitor, argument);
     }
 
 
@@ -207,17 +561,13 @@ public abstract class AbstractServer implements Runnable {
      * Remember that after this array is obtained, some clients
      * in this migth disconnect. New clients can also connect,
      * these later will not appear in the array.
+     * To visit every connection without allocating an array, use
+     * <code>forEachClient</code> instead.
      *
-     * @return an array of <code>Thread</code> containing
-     * <code>ConnectionToClient</code> instances.
+     * @return an array of the <code>ConnectionToClient</code> instances.
      */
-    synchronized final public Thread[] getClientConnections() {
-        Thread[] clientThreadList = new
-                Thread[clientThreadGroup.activeCount()];
-
-        clientThreadGroup.enumerate(clientThreadList);
-
-        return clientThreadList;
+    final public ConnectionToClient[] getClientConnections() {
+        return clientConnections.toArray();
     }
 
     /**
@@ -226,7 +576,90 @@ public abstract class AbstractServer implements Runnable {
      * @return the number of clients currently connected.
      */
     final public int getNumberOfClients() {
-        return clientThreadGroup.activeCount();
+        return clientConnections.size();
+    }
+
+    /**
+     * @return the number of sessions kept, attached to a connection or
+     * waiting to be resumed.
+     */
+    final public int getNumberOfSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * Finds the client that has a login ID.
+     *
+     * @param loginID the login ID.
+     * @return the connection of the client, or null if none has that ID.
+     */
+    final public ConnectionToClient getClientByLogin(String loginID) {
+        return logins.get(loginID);
+    }
+
+    /**
+     * Returns the rate limit of a login ID: its own, if it was given one,
+     * or that of all clients.
+     *
+     * @param loginID the login ID, or null for clients without one.
+     * @return the rate limit.
+     */
+    final public RateLimit getRateLimit(String loginID) {
+        RateLimit limit = loginID == null ? null : loginRateLimits.get(loginID);
+        return limit != null ? limit : rateLimit;
+    }
+
+    /**
+     * Returns the channels that currently have subscribers.
+     *
+     * @return the names of the channels.
+     */
+    final public String[] getChannels() {
+        return channelIndex.names();
+    }
+
+    /**
+     * Counts the clients subscribed to a channel.
+     *
+     * @param channel the name of the channel.
+     * @return the number of subscribers, zero if the channel does not exist.
+     */
+    final public int getChannelSize(String channel) {
+        return channelIndex.size(channel);
+    }
+
+    /**
+     * Returns the counters and histograms describing the server's activity;
+     * call <code>snapshot</code> on them to read the figures.
+     *
+     * @return the metrics of the server.
+     */
+    final public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the codecs the server accepts from clients.
+     *
+     * @return a copy of the array of codecs.
+     */
+    final public Codec[] getCodecs() {
+        return codecs.clone();
+    }
+
+    /**
+     * @return the policy deciding when the object streams of legacy clients
+     * are reset.
+     */
+    final public ResetPolicy getResetPolicy() {
+        return resetPolicy;
+    }
+
+    /**
+     * @return the policy deciding when the output to clients is flushed.
+     */
+    final public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
     }
 
     /**
@@ -250,18 +683,91 @@ public abstract class AbstractServer implements Runnable {
     }
 
     /**
-     * Sets the timeout time when accepting connections.
-     * The default is half a second. This means that stopping the
-     * server may take up to timeout duration to actually stop.
-     * The server must be stopped and restarted for the timeout
-     * change to be effective.
+     * Sets the time an accepted client has to open its connection, that is
+     * to start its object stream or to send its handshake, before it is
+     * dropped. The default is ten seconds. Listening itself never times
+     * out: stopping the server takes effect at once. Applies to clients
+     * served by reader threads and accepted from now on.
      *
-     * @param timeout the timeout time in ms.
+     * @param timeout the timeout time in ms, or zero for none.
      */
     final public void setTimeout(int timeout) {
         this.timeout = timeout;
     }
 
+    /**
+     * Sets the time a client may stay silent before its connection is
+     * closed, so that the resources of a client that vanished without
+     * closing its connection are reclaimed. Clients that have nothing to
+     * send keep their connection open by sending heartbeats; see
+     * <code>AbstractClient.setHeartbeat</code>. A single thread watches
+     * all the connections, and also closes those whose handshake takes
+     * longer than the timeout set by <code>setTimeout</code>. Clients using
+     * the legacy object stream cannot send heartbeats and are never closed
+     * for being idle. A connection closed is reported to
+     * <code>clientException</code> with a
+     * <code>SocketTimeoutException</code>. The default is zero, for no
+     * limit. The server must be closed and restarted for the change to be
+     * in effect.
+     *
+     * @param idleTimeout the time in ms, or zero for none.
+     */
+    final public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 0)
+            throw new IllegalArgumentException("negative idle timeout");
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Sets how fast clients may send messages, unless their login ID has
+     * a limit of its own. The default is no limit. Applies to the clients
+     * already connected.
+     *
+     * @param rateLimit the limit.
+     */
+    final public void setRateLimit(RateLimit rateLimit) {
+        if (rateLimit == null)
+            throw new NullPointerException("rateLimit");
+        this.rateLimit = rateLimit;
+        forEachClient(ConnectionToClient::applyRateLimit);
+    }
+
+    /**
+     * Sets how fast the client with a login ID may send messages,
+     * whichever connection it uses. Applies to the client at once if it is
+     * connected, or when it is given the ID.
+     *
+     * @param loginID   the login ID.
+     * @param rateLimit the limit, or null for that of all clients.
+     */
+    final public void setRateLimit(String loginID, RateLimit rateLimit) {
+        if (rateLimit == null)
+            loginRateLimits.remove(loginID);
+        else
+            loginRateLimits.put(loginID, rateLimit);
+
+        ConnectionToClient client = logins.get(loginID);
+        if (client != null)
+            client.applyRateLimit();
+    }
+
+    /**
+     * Sets the number of threads accepting connections. With more than one,
+     * each thread accepts on its own socket bound to the port with
+     * <code>SO_REUSEPORT</code>, so that the operating system spreads a
+     * storm of connection attempts over them; where the option is not
+     * supported, the threads share a single socket. The default is one.
+     * The server must be closed and restarted for the change to be in
+     * effect.
+     *
+     * @param acceptorThreads the number of accepting threads.
+     */
+    final public void setAcceptorThreads(int acceptorThreads) {
+        if (acceptorThreads < 1)
+            throw new IllegalArgumentException("at least one acceptor is needed");
+        this.acceptorThreads = acceptorThreads;
+    }
+
     /**
      * Sets the maximum number of waiting connections accepted by the
      * operating system. The default is 20.
@@ -274,6 +780,144 @@ public abstract class AbstractServer implements Runnable {
         this.backlog = backlog;
     }
 
+    /**
+     * Gives every client accepted from now on a bounded outbound queue.
+     * Sending to such a client never blocks: the message is queued and
+     * written by a separate writer, and a client whose queue holds
+     * <code>highWaterMark</code> bytes or more refuses messages, with an
+     * <code>IOException</code>, until its writer has brought the queue down
+     * to <code>lowWaterMark</code> bytes. A high watermark of zero, the
+     * default, has messages written directly by the sending thread.
+     *
+     * @param lowWaterMark  the queued bytes at which a client accepts messages again.
+     * @param highWaterMark the queued bytes at which a client refuses messages, or zero.
+     */
+    final public void setOutboundQueue(int lowWaterMark, int highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < 0
+                || (highWaterMark > 0 && lowWaterMark >= highWaterMark))
+            throw new IllegalArgumentException("invalid watermarks");
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+
+    /**
+     * Sets the executor on which messages from clients are handled. The
+     * messages of one client are still handled one at a time and in the
+     * order they were received, but those of different clients are handed
+     * to the executor independently. Unless <code>isHandlerThreadSafe</code>
+     * is overridden to return true, handling still holds the server's lock,
+     * so only the reading is done in parallel. Passing null, the default,
+     * handles every message on the thread that read it.
+     *
+     * @param dispatchExecutor the executor, or null.
+     */
+    final public void setDispatchExecutor(Executor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * Sets the codecs the server accepts from clients connecting from now
+     * on. A client offers its codecs when it connects, in order of
+     * preference, and gets the first one that appears here; a client
+     * offering none of them is refused. Clients opening a legacy object
+     * stream are still served by reader threads, whatever the codecs.
+     *
+     * @param codecs the codecs accepted.
+     * @throws IllegalArgumentException if no codec is given.
+     */
+    final public void setCodecs(Codec... codecs) {
+        if (codecs.length == 0)
+            throw new IllegalArgumentException("no codec");
+        this.codecs = codecs.clone();
+    }
+
+    /**
+     * Sets the policy deciding when the object stream to each legacy client
+     * accepted from now on is reset. Such a stream keeps every object it
+     * has written reachable until it is reset, so a long-lived connection
+     * never given a policy holds on to all its past messages; see
+     * <code>ConnectionToClient.getRetainedObjects</code>. The default never
+     * resets the streams. Clients that negotiated a codec retain nothing.
+     *
+     * @param resetPolicy the policy.
+     */
+    final public void setResetPolicy(ResetPolicy resetPolicy) {
+        if (resetPolicy == null)
+            throw new NullPointerException("resetPolicy");
+        this.resetPolicy = resetPolicy;
+    }
+
+    /**
+     * Sets the policy deciding when the output to each client accepted from
+     * now on is flushed to its socket. Every message is buffered until it
+     * is complete, so even the default, immediate policy writes it with a
+     * single system call; the other policies let several messages share
+     * one. See <code>ConnectionToClient.getSyscallsSaved</code>. Clients
+     * with an outbound queue are flushed whenever their writer empties the
+     * queue, and clients served by selector threads always gather their
+     * pending frames into one write.
+     *
+     * @param flushPolicy the policy.
+     */
+    final public void setFlushPolicy(FlushPolicy flushPolicy) {
+        if (flushPolicy == null)
+            throw new NullPointerException("flushPolicy");
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Selects virtual threads, rather than platform threads, as the reader
+     * threads of the clients accepted from now on. Virtual threads need
+     * Java 21 or later. Has no effect on clients served by selector threads.
+     *
+     * @param virtualThreads true to use virtual threads.
+     * @throws UnsupportedOperationException if the JVM has no virtual threads.
+     */
+    final public void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isSupported())
+            throw new UnsupportedOperationException("virtual threads are not supported");
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Enables the sessions opened with <code>openSession</code>, which let
+     * clients whose connection dropped resume where they left off. Each
+     * session keeps the last frames sent to its client, which bounds the
+     * gap a client can catch up on, and is kept that long after its
+     * connection closes. Sessions are disabled by default. The change
+     * applies to the sessions opened from now on.
+     *
+     * @param frames      the number of frames kept per session, or zero to
+     *                    disable sessions.
+     * @param gracePeriod the time, in ms, a session is kept once its
+     *                    connection has closed.
+     */
+    final public void setSessions(int frames, long gracePeriod) {
+        if (frames < 0 || gracePeriod < 0)
+            throw new IllegalArgumentException("negative session setting");
+        this.sessionFrames = frames;
+        this.sessionGracePeriod = TimeUnit.MILLISECONDS.toNanos(gracePeriod);
+    }
+
+    /**
+     * Sets the number of event-loop threads used to serve clients. With a
+     * positive value, the connections are multiplexed over that many
+     * <code>Selector</code> threads instead of each running as its own
+     * thread, and clients must open with the codec handshake of
+     * <code>ocsf.common.Handshake</code>, as <code>AbstractClient</code>
+     * does by default; legacy object-stream clients are refused. The
+     * default is zero, one thread per
+     * client. The server must be closed and restarted for the change
+     * to be in effect.
+     *
+     * @param selectorThreads the number of event-loop threads, or zero.
+     */
+    final public void setSelectorThreads(int selectorThreads) {
+        if (selectorThreads < 0)
+            throw new IllegalArgumentException("negative thread count");
+        this.selectorThreads = selectorThreads;
+    }
+
     // RUN METHOD -------------------------------------------------------
 
     /**
@@ -284,42 +928,66 @@ public abstract class AbstractServer implements Runnable {
         // call the hook method to notify that the server is starting
         serverStarted();
 
-        try {
-            // Repeatedly waits for a new client connection, accepts it, and
-            // starts a new thread to handle data exchange.
-            while (!readyToStop) {
-                try {
-                    // Wait here for new connection attempts, or a timeout
-                    Socket clientSocket = serverSocket.accept();
+        // The other acceptors run on threads of their own
+        Acceptor[] current = acceptors;
+        Thread[] others = new Thread[current.length - 1];
+        for (int i = 0; i < others.length; i++) {
+            Acceptor acceptor = current[i + 1];
+            others[i] = new Thread(() -> accept(acceptor), "AbstractServer acceptor " + (i + 1));
+            others[i].start();
+        }
 
-                    // When a client is accepted, create a thread to handle
-                    // the data exchange, then add it to thread group
+        // Waits for new client connections, accepts them, and hands them
+        // over to the threads handling the data exchange, until the server
+        // stops listening.
+        accept(current[0]);
 
-                    synchronized (this) {
-                        new ConnectionToClient(
-                                this.clientThreadGroup, clientSocket, this);
-                    }
-                } catch (InterruptedIOException exception) {
-                    // This will be thrown when a timeout occurs.
-                    // The server will continue to listen if not ready to stop.
+        // Do not report the end until every acceptor has stopped
+        boolean interrupted = false;
+        for (Thread other : others) {
+            while (other.isAlive()) {
+                try {
+                    other.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
                 }
             }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
 
-            // call the hook method to notify that the server has stopped
-            serverStopped();
-        } catch (IOException exception) {
-            if (!readyToStop) {
-                // Closing the socket must have thrown a SocketException
-                listeningException(exception);
+        try {
+            Throwable failure = acceptFailure;
+            if (failure != null) {
+                listeningException(failure);
             } else {
+                // call the hook method to notify that the server has stopped
                 serverStopped();
             }
         } finally {
-            readyToStop = true;
+            acceptFailure = null;
             connectionListener = null;
         }
     }
 
+    /**
+     * Runs one acceptor until the server stops listening. If it fails while
+     * the server is listening, the failure is recorded and every acceptor
+     * is stopped.
+     *
+     * @param acceptor the acceptor.
+     */
+    private void accept(Acceptor acceptor) {
+        try {
+            acceptor.acceptUntilStopped(this);
+        } catch (IOException | ClosedSelectorException exception) {
+            // Closing the server makes the acceptors fail; that is no error
+            if (!readyToStop)
+                acceptFailure = exception;
+            stopListening();
+        }
+    }
+
 
     // METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
 
@@ -356,6 +1024,19 @@ public abstract class AbstractServer implements Runnable {
             ConnectionToClient client, Throwable exception) {
     }
 
+    /**
+     * Hook method called when a client sending faster than its rate limit
+     * allows has a message dropped; called once for a run of dropped
+     * messages, so that the client may be told without being flooded.
+     * Called on the thread reading from the client. The default
+     * implementation does nothing.
+     *
+     * @param client the client.
+     * @see ocsf.server.RateLimit#drop(double, int)
+     */
+    protected void rateLimitExceeded(ConnectionToClient client) {
+    }
+
     /**
      * Hook method called when the server stops accepting
      * connections because an exception has been raised.
@@ -397,7 +1078,9 @@ public abstract class AbstractServer implements Runnable {
      * This MUST be implemented by subclasses, who should respond to
      * messages.
      * This method is called by a synchronized method so it is also
-     * implcitly synchronized.
+     * implcitly synchronized, unless <code>isHandlerThreadSafe</code>
+     * returns true. The messages of one client are always handled
+     * one at a time and in order.
      *
      * @param msg    the message sent.
      * @param client the connection connected to the client that
@@ -406,24 +1089,328 @@ public abstract class AbstractServer implements Runnable {
     protected abstract void handleMessageFromClient(
             Object msg, ConnectionToClient client);
 
+    /**
+     * Hook method telling whether <code>handleMessageFromClient</code> may
+     * run for several clients at once. When it returns true, messages are
+     * handled without holding the server's lock, in parallel on the
+     * executor given to <code>setDispatchExecutor</code>. The default
+     * implementation returns false.
+     *
+     * @return true if the subclass handles messages in a thread-safe way.
+     */
+    protected boolean isHandlerThreadSafe() {
+        return false;
+    }
+
 
     // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+    /**
+     * Sends a frame to a client, ignoring any exception.
+     *
+     * @param client the client.
+     * @param frame  the frame.
+     */
+    private static void sendQuietly(ConnectionToClient client, Frame frame) {
+        try {
+            client.sendFrame(frame);
+        } catch (Exception ex) {
+        }
+    }
+
+    /**
+     * Closes a client, ignoring any exception.
+     *
+     * @param client the client.
+     * @param unused not used.
+     */
+    private static void closeQuietly(ConnectionToClient client, Object unused) {
+        try {
+            client.close();
+        }
+        // Ignore all exceptions when closing clients.
+        catch (Exception ex) {
+        }
+    }
+
+    /**
+     * Records a newly opened connection.
+     *
+     * @param client the connection.
+     */
+    void addConnection(ConnectionToClient client) {
+        clientConnections.add(client);
+    }
+
+    /**
+     * Forgets a closed connection.
+     *
+     * @param client the connection.
+     */
+    void removeConnection(ConnectionToClient client) {
+        clientConnections.remove(client);
+    }
+
+    /**
+     * Gives a client a login ID, unless another client already has it.
+     *
+     * @param loginID the login ID.
+     * @param client  the client.
+     * @return true if the client now has the ID.
+     */
+    boolean registerLogin(String loginID, ConnectionToClient client) {
+        ConnectionToClient holder = logins.putIfAbsent(loginID, client);
+        return holder == null || holder == client;
+    }
+
+    /**
+     * Takes a login ID from a client, if the client still has it.
+     *
+     * @param loginID the login ID.
+     * @param client  the client.
+     */
+    void unregisterLogin(String loginID, ConnectionToClient client) {
+        logins.remove(loginID, client);
+    }
+
+    /**
+     * Records that a session lost its connection, and forgets those that
+     * were detached for too long.
+     *
+     * @param session the session.
+     */
+    void sessionDetached(Session session) {
+        detachedSessions.add(session);
+        expireSessions();
+    }
+
+    /**
+     * @return the lock under which sessions detach and resume, exclusive
+     * of the broadcasts.
+     */
+    Lock getSessionLock() {
+        return sessionLock.writeLock();
+    }
+
+    /**
+     * Keeps a frame just broadcast in the detached sessions whose client
+     * would have received it. Only the detached sessions are visited.
+     * Called with the session lock shared.
+     *
+     * @param frame   the frame.
+     * @param channel the channel it was sent to, or null for all clients.
+     */
+    private void keepForDetached(Frame frame, String channel) {
+        if (detachedSessions.isEmpty())
+            return;
+        for (Session session : detachedSessions) {
+            session.missed(frame, channel);
+        }
+    }
+
+    /**
+     * Forgets the sessions detached for longer than the grace period.
+     */
+    private void expireSessions() {
+        if (detachedSessions.isEmpty())
+            return;
+        long now = System.nanoTime();
+        for (Session session : detachedSessions) {
+            if (session.isExpired(now, sessionGracePeriod))
+                forgetSession(session);
+        }
+    }
+
+    /**
+     * Forgets a session, which can no longer be resumed.
+     *
+     * @param session the session.
+     */
+    private void forgetSession(Session session) {
+        detachedSessions.remove(session);
+        sessions.remove(session.getToken(), session);
+    }
+
+    /**
+     * @return the index of the subscribers of each channel.
+     */
+    ChannelIndex getChannelIndex() {
+        return channelIndex;
+    }
+
+    /**
+     * Creates the outbound queue of a new connection.
+     *
+     * @return the queue, or null when messages are written directly.
+     */
+    OutboundQueue newOutboundQueue() {
+        return highWaterMark > 0 ? new OutboundQueue(lowWaterMark, highWaterMark) : null;
+    }
+
+    /**
+     * Returns the executor running the writers of the outbound queues.
+     * Its threads are daemon threads that end when left idle, or virtual
+     * threads when reader threads are.
+     *
+     * @return the executor.
+     */
+    synchronized Executor getWriterExecutor() {
+        if (writerExecutor == null) {
+            if (virtualThreads) {
+                writerExecutor = task ->
+                        VirtualThreads.newThread(task, "ConnectionToClient writer").start();
+            } else {
+                writerExecutor = Executors.newCachedThreadPool(task -> {
+                    Thread writer = new Thread(task, "ConnectionToClient writer");
+                    writer.setDaemon(true);
+                    return writer;
+                });
+            }
+        }
+        return writerExecutor;
+    }
+
+    /**
+     * Starts the thread that opens the streams of a new connection and then
+     * reads its messages. All uncaught exceptions in that thread will be
+     * sent to the clientException callback method. The thread is named
+     * after the client's address rather than its host name, whose reverse
+     * lookup could block the acceptor.
+     *
+     * @param client the connection.
+     */
+    private void startReader(ConnectionToClient client) {
+        InetAddress address = client.getInetAddress();
+        String name = "ConnectionToClient " + (address == null ? "" : address.getHostAddress());
+        Thread reader = virtualThreads ?
+                VirtualThreads.newThread(client, name) : new Thread(client, name);
+
+        reader.setUncaughtExceptionHandler(
+                (thread, exception) -> clientException(client, exception));
+        reader.start();
+    }
+
+    /**
+     * Hands a channel just accepted to the selector engine, or to a new
+     * reader thread. Called by the acceptors; never blocks on the client.
+     *
+     * @param channel the accepted channel.
+     */
+    void accepted(SocketChannel channel) {
+        metrics.connectionAccepted();
+
+        SelectorEngine engine = selectorEngine;
+        if (engine != null) {
+            engine.register(channel);
+            return;
+        }
+
+        try {
+            channel.configureBlocking(true);
+        } catch (IOException ex) {
+            // A client that vanished at once is no reason to stop listening
+            try {
+                channel.close();
+            } catch (IOException exc) {
+            }
+            return;
+        }
+        startReader(new ConnectionToClient(channel.socket(), this));
+    }
+
+    /**
+     * @return true once the server has been asked to stop listening.
+     */
+    boolean isStopping() {
+        return readyToStop;
+    }
+
+    /**
+     * @return the time, in ms, an accepted client has to open its
+     * connection.
+     */
+    int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Starts watching a new connection for inactivity, when the server has
+     * an idle timeout.
+     *
+     * @param client the connection.
+     * @return the idle timeout, in ns, or zero for none.
+     */
+    long watchIdle(ConnectionToClient client) {
+        IdleReaper reaper = idleReaper;
+        if (reaper == null)
+            return 0;
+        reaper.watch(client);
+        return TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    }
+
     /**
      * Receives a command sent from the client to the server.
      * Called by the run method of <code>ConnectionToClient</code>
      * instances that are watching for messages coming from the server
-     * This method is synchronized to ensure that whatever effects it has
-     * do not conflict with work being done by other threads. The method
-     * simply calls the <code>handleMessageFromClient</code> slot method.
+     * The message is handled at once, or handed to the dispatch executor
+     * through the client's ordered inbox when one is set.
+     *
+     * @param msg    the message sent.
+     * @param client the connection connected to the client that
+     *               sent the message.
+     */
+    final void receiveMessageFromClient(
+            Object msg, ConnectionToClient client) {
+        client.touch();
+        if (msg instanceof Frames.Ack || msg instanceof Frames.SessionNotice)
+            return; // Clients have nothing to acknowledge, nor sessions to give
+        if (msg instanceof Frames.Heartbeat) {
+            client.heartbeat();
+            return;
+        }
+        metrics.messageReceived();
+
+        Executor executor = dispatchExecutor;
+        if (executor == null) {
+            dispatchMessageFromClient(msg, client);
+        } else {
+            client.dispatch(msg, executor);
+        }
+    }
+
+    /**
+     * Calls the <code>handleMessageFromClient</code> slot method. This
+     * method synchronizes on the server to ensure that whatever effects it
+     * has do not conflict with work being done by other threads, unless the
+     * subclass declares its handler thread-safe. The time taken by the
+     * handler is recorded in the server's metrics. A message the client
+     * asked to be acknowledged is unwrapped, and recorded as handled once
+     * the handler returns.
      *
      * @param msg    the message sent.
      * @param client the connection connected to the client that
      *               sent the message.
      */
-    final synchronized void receiveMessageFromClient(
+    final void dispatchMessageFromClient(
             Object msg, ConnectionToClient client) {
-        this.handleMessageFromClient(msg, client);
+        Frames.Sequenced sequenced = msg instanceof Frames.Sequenced ? (Frames.Sequenced) msg : null;
+        if (sequenced != null)
+            msg = sequenced.getMessage();
+
+        long start = System.nanoTime();
+        try {
+            if (isHandlerThreadSafe()) {
+                this.handleMessageFromClient(msg, client);
+            } else {
+                synchronized (this) {
+                    this.handleMessageFromClient(msg, client);
+                }
+            }
+        } finally {
+            metrics.handlerTime(System.nanoTime() - start);
+        }
+        if (sequenced != null)
+            client.handled(sequenced.getSequence());
     }
 }
 // End of AbstractServer Class
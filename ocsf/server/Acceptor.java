@@ -0,0 +1,164 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/**
+ * The <code> Acceptor </code> class accepts the connections of an
+ * <code> AbstractServer </code>. It waits on a <code> Selector </code>
+ * for connection attempts, so it sleeps until a client arrives or until it
+ * is woken up to stop; nothing is polled. Each accepted channel is handed
+ * to the server at once, and the streams of the connection are set up by
+ * another thread, so a client slow to open its streams never delays the
+ * next one.<p>
+ * <p>
+ * A server may run several acceptors. When the platform supports
+ * <code>SO_REUSEPORT</code>, each acceptor has its own server socket bound
+ * to the same port and the operating system spreads the incoming
+ * connections over them; otherwise they all wait on a single socket.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#setAcceptorThreads(int)
+ */
+final class Acceptor {
+    // INSTANCE VARIABLES *********************************************
+
+    /**
+     * The channel on which connections are accepted; possibly shared with
+     * other acceptors.
+     */
+    private final ServerSocketChannel channel;
+
+    /**
+     * The selector on which this acceptor waits.
+     */
+    private final Selector selector;
+
+    // CONSTRUCTOR ******************************************************
+
+    /**
+     * Constructs an acceptor on an open, bound channel.
+     *
+     * @param channel the channel on which connections are accepted.
+     * @throws IOException if the selector cannot be opened.
+     */
+    private Acceptor(ServerSocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.selector = Selector.open();
+        try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            selector.close();
+            throw ex;
+        }
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Opens the acceptors of a server listening on a port.
+     *
+     * @param port    the port; zero for any free port.
+     * @param backlog the maximum number of connections waiting to be accepted.
+     * @param count   the number of acceptors.
+     * @return the acceptors.
+     * @throws IOException if a socket cannot be bound or a selector opened.
+     */
+    static Acceptor[] open(int port, int backlog, int count) throws IOException {
+        Acceptor[] acceptors = new Acceptor[count];
+        ServerSocketChannel shared = null;
+
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocketChannel channel = shared;
+                if (channel == null) {
+                    channel = ServerSocketChannel.open();
+                    try {
+                        boolean reusePort = count > 1 && channel.supportedOptions()
+                                .contains(StandardSocketOptions.SO_REUSEPORT);
+                        if (reusePort)
+                            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                        else
+                            shared = channel;
+
+                        // Later sockets share the port actually bound by the first
+                        int bound = i == 0 ? port : acceptors[0].getLocalPort();
+                        channel.bind(new InetSocketAddress(bound), backlog);
+                    } catch (IOException ex) {
+                        channel.close();
+                        throw ex;
+                    }
+                }
+                acceptors[i] = new Acceptor(channel);
+            }
+        } catch (IOException ex) {
+            close(acceptors);
+            throw ex;
+        }
+        return acceptors;
+    }
+
+    /**
+     * Closes acceptors and their channels.
+     *
+     * @param acceptors the acceptors; null elements are skipped.
+     */
+    static void close(Acceptor[] acceptors) {
+        for (Acceptor acceptor : acceptors) {
+            if (acceptor != null) {
+                try {
+                    acceptor.selector.close();
+                } catch (IOException ex) {
+                }
+                try {
+                    acceptor.channel.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Waits for connection attempts and hands each accepted channel to the
+     * server, until the server stops listening.
+     *
+     * @param server the server.
+     * @throws IOException if accepting fails.
+     */
+    void acceptUntilStopped(AbstractServer server) throws IOException {
+        while (!server.isStopping()) {
+            selector.select();
+            selector.selectedKeys().clear();
+
+            SocketChannel accepted;
+            while (!server.isStopping() && (accepted = channel.accept()) != null) {
+                server.accepted(accepted);
+            }
+        }
+    }
+
+    /**
+     * Wakes the acceptor up so that it notices that the server stopped
+     * listening.
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * @return the local port of the socket.
+     * @throws IOException if the socket is closed.
+     */
+    int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+}
+// End of Acceptor class
@@ -0,0 +1,108 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * The <code> ChannelIndex </code> class maps the channels of a server to
+ * the connections subscribed to them, so that a message for a channel is
+ * only sent to its audience. Each connection also keeps the set of its
+ * own channels, to leave them all when it closes.<p>
+ * <p>
+ * A channel exists as long as it has subscribers; joining and leaving are
+ * atomic with respect to the creation and removal of the channel. Visits
+ * are weakly consistent: a connection joining or leaving while a visit is
+ * under way may or may not be seen by it.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ */
+final class ChannelIndex {
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The subscribers of each channel.
+     */
+    private final ConcurrentHashMap<String, Set<ConnectionToClient>> channels =
+            new ConcurrentHashMap<String, Set<ConnectionToClient>>();
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Subscribes a connection to a channel, creating the channel if needed.
+     *
+     * @param client  the connection.
+     * @param channel the name of the channel.
+     * @return true if the connection was not subscribed yet.
+     */
+    boolean join(ConnectionToClient client, String channel) {
+        boolean[] added = new boolean[1];
+        channels.compute(channel, (name, subscribers) -> {
+            if (subscribers == null)
+                subscribers = ConcurrentHashMap.newKeySet();
+            added[0] = subscribers.add(client);
+            return subscribers;
+        });
+        return added[0];
+    }
+
+    /**
+     * Unsubscribes a connection from a channel, removing the channel once
+     * nobody is subscribed to it.
+     *
+     * @param client  the connection.
+     * @param channel the name of the channel.
+     * @return true if the connection was subscribed.
+     */
+    boolean leave(ConnectionToClient client, String channel) {
+        boolean[] removed = new boolean[1];
+        channels.computeIfPresent(channel, (name, subscribers) -> {
+            removed[0] = subscribers.remove(client);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Calls a visitor once for every subscriber of a channel.
+     *
+     * @param channel  the name of the channel.
+     * @param visitor  the visitor.
+     * @param argument the extra argument passed to the visitor.
+     * @param <T>      the type of the extra argument.
+     * @return the number of subscribers visited.
+     */
+    <T> int forEach(String channel,
+                    BiConsumer<? super ConnectionToClient, ? super T> visitor, T argument) {
+        Set<ConnectionToClient> subscribers = channels.get(channel);
+        if (subscribers == null)
+            return 0;
+
+        int visited = 0;
+        for (ConnectionToClient client : subscribers) {
+            visitor.accept(client, argument);
+            visited++;
+        }
+        return visited;
+    }
+
+    /**
+     * @param channel the name of a channel.
+     * @return the number of connections subscribed to it.
+     */
+    int size(String channel) {
+        Set<ConnectionToClient> subscribers = channels.get(channel);
+        return subscribers == null ? 0 : subscribers.size();
+    }
+
+    /**
+     * @return the names of the channels that have subscribers.
+     */
+    String[] names() {
+        return channels.keySet().toArray(new String[0]);
+    }
+}
+// End of ChannelIndex class
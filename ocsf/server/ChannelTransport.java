@@ -0,0 +1,426 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.server;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import ocsf.common.CoalescingOutputStream;
+import ocsf.common.Codec;
+import ocsf.common.Frames;
+import ocsf.common.Handshake;
+
+/**
+ * The <code> ChannelTransport </code> class holds the non-blocking channel of
+ * a <code> ConnectionToClient </code> served by a <code> SelectorEngine </code>.
+ * Reads happen on the owning event loop only; writes may come from any
+ * thread and are attempted immediately, the remainder being put in the
+ * connection's <code> OutboundQueue </code> and finished by the event loop
+ * when the socket becomes writable again.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ */
+final class ChannelTransport {
+    // CONSTANTS *********************************************************
+
+    /**
+     * The initial size of the read buffer. It grows to fit larger frames,
+     * doubling each time their bytes fill it.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The channel to the client.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The key of the channel in the selector of its event loop.
+     */
+    private final SelectionKey key;
+
+    /**
+     * The event loop this channel is registered with.
+     */
+    private final SelectorEngine.EventLoop eventLoop;
+
+    /**
+     * The connection using this transport. Set once, before the key is
+     * attached.
+     */
+    private ConnectionToClient client;
+
+    /**
+     * The codec negotiated with the client; null until the handshake is
+     * complete. Used by the event loop only.
+     */
+    private Codec codec = null;
+
+    /**
+     * Bytes read from the channel and not yet decoded. Kept in write mode
+     * between reads.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /**
+     * Frames that could not be written immediately. Also used as the lock
+     * guarding all writes to the channel.
+     */
+    private final OutboundQueue writeQueue;
+
+    /**
+     * Indicates if the key currently includes OP_WRITE.
+     */
+    private boolean writeInterest = false;
+
+    /**
+     * Indicates if the key currently leaves out OP_READ, because the client
+     * is throttled by its rate limit.
+     */
+    private boolean readPaused = false;
+
+    /**
+     * The time, as given by <code>System.nanoTime</code>, at which reading
+     * resumes while paused. Used by the event loop only.
+     */
+    private long resumeTime;
+
+    /**
+     * Set when the transport has been closed.
+     */
+    private volatile boolean closed = false;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs the transport of a registered channel.
+     *
+     * @param channel   the channel to the client.
+     * @param key       the key of the channel.
+     * @param eventLoop the event loop the channel is registered with.
+     * @param queue     the queue of frames not yet written.
+     */
+    ChannelTransport(SocketChannel channel, SelectionKey key,
+                     SelectorEngine.EventLoop eventLoop, OutboundQueue queue) {
+        this.channel = channel;
+        this.key = key;
+        this.eventLoop = eventLoop;
+        this.writeQueue = queue;
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Binds this transport to its connection.
+     *
+     * @param client the connection using this transport.
+     */
+    void setClient(ConnectionToClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Returns the channel of this transport.
+     *
+     * @return the channel.
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the metrics of the server, counting the bytes read and
+     * written.
+     */
+    private ServerMetrics metrics() {
+        return client.getServer().getMetrics();
+    }
+
+    /**
+     * Returns the queue of frames not yet written.
+     *
+     * @return the queue.
+     */
+    OutboundQueue getQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * Writes an encoded frame to the client. What cannot be written without
+     * blocking is queued and written later by the event loop. Never blocks.
+     *
+     * @param frame the frame, positioned at its first byte.
+     * @throws IOException if the channel is closed, the write fails or the
+     *                     queue is full.
+     */
+    void send(ByteBuffer frame) throws IOException {
+        synchronized (writeQueue) {
+            if (closed)
+                throw new SocketException("socket does not exist");
+
+            if (writeQueue.isEmpty()) {
+                metrics().bytesWritten(channel.write(frame));
+                if (!frame.hasRemaining())
+                    return;
+            }
+
+            if (!writeQueue.offer(frame))
+                throw new IOException("outbound queue is full");
+
+            if (!writeInterest) {
+                writeInterest = true;
+                try {
+                    updateInterest();
+                } catch (CancelledKeyException ex) {
+                    throw new SocketException("socket does not exist");
+                }
+                eventLoop.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Marks the transport closed and forgets the queued frames. The channel
+     * itself is closed by the connection along with its socket.
+     */
+    void close() {
+        synchronized (writeQueue) {
+            closed = true;
+            writeQueue.clear();
+        }
+    }
+
+    /**
+     * Sets the interest operations of the key from the state of the
+     * transport. Called with the write lock held.
+     */
+    private void updateInterest() {
+        key.interestOps((readPaused ? 0 : SelectionKey.OP_READ)
+                | (writeInterest ? SelectionKey.OP_WRITE : 0));
+    }
+
+    // EVENT LOOP METHODS -----------------------------------------------
+
+    /**
+     * @return the time, as given by <code>System.nanoTime</code>, at which
+     * reading resumes while paused.
+     */
+    long getResumeTime() {
+        return resumeTime;
+    }
+
+    /**
+     * Reads what is available on the channel, completes the handshake if
+     * needed, and hands every complete frame to the server. Called by the
+     * event loop only.
+     */
+    void readable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read < 0)
+                throw new EOFException();
+            metrics().bytesRead(read);
+            receive();
+        } catch (Exception exception) {
+            failed(exception);
+        }
+    }
+
+    /**
+     * Reads from the channel again once a throttled client may send, after
+     * handing the server the frames already read. Called by the event loop
+     * only.
+     */
+    void resume() {
+        if (closed)
+            return;
+        try {
+            synchronized (writeQueue) {
+                readPaused = false;
+                updateInterest();
+            }
+            receive();
+        } catch (Exception exception) {
+            failed(exception);
+        }
+    }
+
+    /**
+     * Stops reading from the channel for a while, so that a client
+     * sending faster than its rate limit allows is held back by TCP.
+     *
+     * @param wait the time, in ns, before reading resumes.
+     */
+    private void pause(long wait) {
+        synchronized (writeQueue) {
+            readPaused = true;
+            updateInterest();
+        }
+        resumeTime = System.nanoTime() + wait;
+        eventLoop.pause(this);
+    }
+
+    /**
+     * Closes the connection after reading failed.
+     *
+     * @param exception the exception raised.
+     */
+    private void failed(Exception exception) {
+        if (codec == null)
+            client.abort();
+        else
+            client.connectionFailed(exception);
+    }
+
+    /**
+     * Completes the handshake if needed, and hands every complete frame of
+     * the read buffer to the server.
+     *
+     * @throws Exception if the handshake or a frame is invalid.
+     */
+    private void receive() throws Exception {
+        readBuffer.flip();
+        if (codec == null && !handshake())
+            return;
+
+        // The frames received together form a batch, so that the replies
+        // they cause may share socket writes
+        int pending;
+        CoalescingOutputStream.beginBatch();
+        try {
+            pending = receiveFrames();
+        } finally {
+            CoalescingOutputStream.endBatch();
+        }
+        if (pending < 0)
+            return;
+
+        readBuffer.compact();
+
+        // Make room for a frame larger than the buffer once it is full, so
+        // that the buffer grows with the bytes read, not the length announced
+        if (pending > readBuffer.capacity() && !readBuffer.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate((int) Math.min(pending, 2L * readBuffer.capacity()));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    /**
+     * Hands every complete frame of the read buffer, in read mode, to the
+     * server.
+     *
+     * @return the length of the incomplete frame left in the buffer, header
+     * included, zero if none is, or -1 if the connection was closed.
+     * @throws Exception if a frame is invalid.
+     */
+    private int receiveFrames() throws Exception {
+        int handled = 0;
+        try {
+            while (readBuffer.remaining() >= Frames.HEADER_LENGTH) {
+                int start = readBuffer.position();
+                int length = Frames.checkLength(readBuffer.getInt(start));
+
+                if (readBuffer.remaining() < Frames.HEADER_LENGTH + length)
+                    return Frames.HEADER_LENGTH + length;
+
+                // Within the rate limit; acknowledgements and heartbeats are free
+                byte kind = readBuffer.get(start + 4);
+                if (kind != Frames.ACK && kind != Frames.HEARTBEAT) {
+                    long wait = client.admit(kind == Frames.SEQUENCED);
+                    if (wait > 0) {
+                        pause(wait); // The frame is read again on resuming
+                        return 0;
+                    }
+                    if (wait < 0) {
+                        readBuffer.position(start + Frames.HEADER_LENGTH + length);
+                        continue;
+                    }
+                }
+
+                Object msg = Frames.decode(readBuffer.get(start + 4),
+                        readBuffer.array(), start + Frames.HEADER_LENGTH, length, codec);
+                readBuffer.position(start + Frames.HEADER_LENGTH + length);
+
+                client.receiveMessage(msg);
+                if (closed)
+                    return -1;
+
+                // A buffer grown by a large frame may hold many more
+                if (++handled % CoalescingOutputStream.BATCH_LIMIT == 0) {
+                    CoalescingOutputStream.endBatch();
+                    CoalescingOutputStream.beginBatch();
+                }
+            }
+            return 0;
+        } finally {
+            // One acknowledgement for all the frames of this read
+            if (!closed)
+                client.acknowledge();
+        }
+    }
+
+    /**
+     * Parses the client's hello from the read buffer, in read mode, and
+     * answers it. Once a codec is chosen, the connection is opened.
+     *
+     * @return true if the handshake is complete, false if more bytes are
+     * needed, in which case the buffer is back in write mode.
+     * @throws IOException if the hello is invalid or no codec is in common.
+     */
+    private boolean handshake() throws IOException {
+        String[] offered = Handshake.parseHello(readBuffer);
+        if (offered == null) {
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining())
+                throw new StreamCorruptedException("handshake too long");
+            return false;
+        }
+
+        Codec chosen = Handshake.choose(offered, client.getServer().getCodecs());
+        send(ByteBuffer.wrap(Handshake.reply(chosen)));
+        if (chosen == null)
+            throw new ProtocolException("no codec in common with the client");
+
+        if (!client.handshakeCompleted(chosen))
+            throw new SocketException("closed while opening");
+        codec = chosen;
+        return true;
+    }
+
+    /**
+     * Writes queued frames now that the channel accepts more data. Called by
+     * the event loop only.
+     */
+    void writable() {
+        IOException failure = null;
+
+        synchronized (writeQueue) {
+            try {
+                ByteBuffer frame;
+                while ((frame = writeQueue.peek()) != null) {
+                    metrics().bytesWritten(channel.write(frame));
+                    if (frame.hasRemaining())
+                        return;
+                    writeQueue.remove();
+                }
+
+                writeInterest = false;
+                updateInterest();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+
+        if (failure != null)
+            client.connectionFailed(failure);
+    }
+}
+// End of ChannelTransport class
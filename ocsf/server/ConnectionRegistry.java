@@ -0,0 +1,159 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * The <code> ConnectionRegistry </code> class keeps track of the open
+ * connections of a server. Each connection occupies one slot of an array and
+ * remembers the index of its slot, so adding and removing a connection take
+ * constant time; the slots freed by closed connections are reused. The count
+ * is exact, and visiting the connections reads the array without locking or
+ * allocating anything.<p>
+ * <p>
+ * Visits are weakly consistent: a connection added or removed while a visit
+ * is under way may or may not be seen by it.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ */
+final class ConnectionRegistry {
+    // CONSTANTS *********************************************************
+
+    /**
+     * The initial number of slots.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The slots; replaced by a larger copy when full.
+     */
+    private volatile AtomicReferenceArray<ConnectionToClient> slots =
+            new AtomicReferenceArray<ConnectionToClient>(INITIAL_CAPACITY);
+
+    /**
+     * One more than the highest slot index ever used; visits stop there.
+     */
+    private volatile int highWater = 0;
+
+    /**
+     * The number of connections registered.
+     */
+    private volatile int size = 0;
+
+    /**
+     * The indices of the free slots below <code>highWater</code>, used as
+     * a stack. Guarded by the registry.
+     */
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+
+    /**
+     * The number of entries in <code>freeSlots</code>. Guarded by the
+     * registry.
+     */
+    private int freeCount = 0;
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Registers a connection.
+     *
+     * @param client the connection.
+     * @return false if the connection was already registered.
+     */
+    synchronized boolean add(ConnectionToClient client) {
+        if (client.registrySlot >= 0)
+            return false;
+
+        int slot = freeCount > 0 ? freeSlots[--freeCount] : highWater;
+        AtomicReferenceArray<ConnectionToClient> current = slots;
+
+        if (slot >= current.length()) {
+            AtomicReferenceArray<ConnectionToClient> larger =
+                    new AtomicReferenceArray<ConnectionToClient>(current.length() * 2);
+            for (int i = 0; i < current.length(); i++) {
+                larger.set(i, current.get(i));
+            }
+            slots = current = larger;
+        }
+
+        current.set(slot, client);
+        client.registrySlot = slot;
+        if (slot == highWater)
+            highWater = slot + 1;
+        size++;
+        return true;
+    }
+
+    /**
+     * Unregisters a connection.
+     *
+     * @param client the connection.
+     * @return false if the connection was not registered.
+     */
+    synchronized boolean remove(ConnectionToClient client) {
+        int slot = client.registrySlot;
+        if (slot < 0)
+            return false;
+
+        slots.set(slot, null);
+        client.registrySlot = -1;
+
+        if (freeCount == freeSlots.length)
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = slot;
+        size--;
+        return true;
+    }
+
+    /**
+     * Calls a visitor once for every registered connection. The visitor gets
+     * the extra argument too, so that a method reference that captures
+     * nothing can be used and no object is allocated for the visit.
+     *
+     * @param visitor  the visitor.
+     * @param argument the extra argument passed to the visitor.
+     * @param <T>      the type of the extra argument.
+     */
+    <T> void forEach(BiConsumer<? super ConnectionToClient, ? super T> visitor,
+                     T argument) {
+        AtomicReferenceArray<ConnectionToClient> current = slots;
+        int end = Math.min(highWater, current.length());
+
+        for (int i = 0; i < end; i++) {
+            ConnectionToClient client = current.get(i);
+            if (client != null)
+                visitor.accept(client, argument);
+        }
+    }
+
+    /**
+     * @return the number of registered connections.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return an array of the registered connections.
+     */
+    ConnectionToClient[] toArray() {
+        AtomicReferenceArray<ConnectionToClient> current = slots;
+        int end = Math.min(highWater, current.length());
+        ConnectionToClient[] clients = new ConnectionToClient[size];
+        int count = 0;
+
+        for (int i = 0; i < end && count < clients.length; i++) {
+            ConnectionToClient client = current.get(i);
+            if (client != null)
+                clients[count++] = client;
+        }
+        return count == clients.length ? clients : Arrays.copyOf(clients, count);
+    }
+}
+// End of ConnectionRegistry class
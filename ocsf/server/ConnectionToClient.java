@@ -7,12 +7,28 @@ package ocsf.server;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import ocsf.common.CoalescingOutputStream;
+import ocsf.common.Codec;
+import ocsf.common.Frames;
+import ocsf.common.Handshake;
+import ocsf.common.ManagedObjectOutputStream;
 
 /**
  * An instance of this class is created by the server when a client connects. It
  * accepts messages coming from the client and is responsible for sending data
- * to the client since the socket is private to this class. The AbstractServer
+ * to the client since the socket is private to this class. The server runs it
+ * on a reader thread of its own, or serves it from a selector event loop. The AbstractServer
  * contains a set of instances of this class and is responsible for adding and
  * deleting them.
  * <p>
@@ -25,7 +41,14 @@ import java.util.HashMap;
  * @author Paul Holden
  * @version September 2024 (2.14)
  */
-public class ConnectionToClient extends Thread {
+public class ConnectionToClient implements Runnable {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The heartbeat frame, the same for every codec.
+     */
+    private static final byte[] HEARTBEAT = Frames.encodeHeartbeat();
+
     // INSTANCE VARIABLES ***********************************************
 
     /**
@@ -42,51 +65,270 @@ public class ConnectionToClient extends Thread {
     private Socket clientSocket;
 
     /**
-     * Stream used to read from the client.
+     * Stream used to read from the client, when it uses a legacy continuous
+     * object stream.
      */
     private ObjectInputStream input;
 
     /**
-     * Stream used to write to the client.
+     * Stream used to write to the client, when it uses a legacy continuous
+     * object stream. Reset as dictated by the server's reset policy.
+     */
+    private ManagedObjectOutputStream output;
+
+    /**
+     * Stream used to read frames from the client, when it negotiated a codec.
+     */
+    private DataInputStream frameInput;
+
+    /**
+     * The codec negotiated with the client, or null when the client uses a
+     * legacy continuous object stream.
+     */
+    private volatile Codec codec;
+
+    /**
+     * The buffer over the socket's own stream, flushed as dictated by the
+     * server's flush policy. Frames and pre-encoded bytes are written to it
+     * directly, and the object stream writes through it.
+     */
+    private CoalescingOutputStream socketOutput;
+
+    /**
+     * The buffered stream from the socket, under <code>input</code> or
+     * <code>frameInput</code>. Its available bytes tell if more messages
+     * have already been received.
+     */
+    private InputStream rawInput;
+
+    /**
+     * The lock guarding all writes to <code>socketOutput</code> and
+     * <code>output</code>.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Indicates if pre-encoded bytes have been written since the last object,
+     * in which case <code>output</code> must be reset before it writes
+     * again. Guarded by <code>writeLock</code>.
+     */
+    private boolean resetPending = false;
+
+    /**
+     * The frames waiting to be written to the client, or null when messages
+     * are written directly by the sending thread.
+     */
+    private OutboundQueue outboundQueue;
+
+    /**
+     * Runs the writer draining <code>outboundQueue</code> when the connection
+     * has its own reader thread.
+     */
+    private Executor writerExecutor;
+
+    /**
+     * Indicates if the writer is scheduled or running.
+     */
+    private final AtomicBoolean writerScheduled = new AtomicBoolean(false);
+
+    /**
+     * The non-blocking channel of the client when the connection is served
+     * by a <code>SelectorEngine</code>; null when it runs as its own thread.
+     */
+    private ChannelTransport transport;
+
+    /**
+     * Messages read from the client and waiting to be handled on the
+     * server's dispatch executor, oldest first.
+     */
+    private final Queue<Object> inbox = new ConcurrentLinkedQueue<Object>();
+
+    /**
+     * Indicates if a task handling the inbox is scheduled or running.
+     */
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+
+    /**
+     * The sequence number of the last sequenced message handled, or -1.
+     * Written by the thread handling the client's messages.
+     */
+    private volatile long handledSequence = -1;
+
+    /**
+     * The sequence number last acknowledged to the client, or -1.
      */
-    private ObjectOutputStream output;
+    private long acknowledgedSequence = -1;
+
+    /**
+     * The lock guarding <code>acknowledgedSequence</code>.
+     */
+    private final Object ackLock = new Object();
+
+    /**
+     * The index of the slot this connection occupies in the server's
+     * <code>ConnectionRegistry</code>, or -1 when not registered.
+     */
+    int registrySlot = -1;
 
     /**
      * Indicates if the thread is ready to stop. Set to true when closing of the
      * connection is initiated.
      */
-    private boolean readyToStop;
+    private volatile boolean readyToStop;
+
+    /**
+     * The lock under which the handshake is completed, or the connection
+     * closed for taking too long to complete it, but never both.
+     */
+    private final Object openLock = new Object();
 
     /**
      * Map to save information about the client such as its login ID. The
      * initial size of the map is small since it is not expected that concrete
      * servers will want to store many different types of information about each
-     * client. Used by the setInfo and getInfo methods.
+     * client. Used by the setInfo and getInfo methods. Concurrent, since
+     * messages may be handled on threads other than the reader.
+     */
+    private Map<String, Object> savedInfo = new ConcurrentHashMap<String, Object>(10);
+
+    /**
+     * The channels this client is subscribed to; the server's index of the
+     * subscribers of each channel is kept in step with it.
+     */
+    private final Set<String> channels = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The login ID under which the server's index knows this client, or
+     * null.
+     */
+    private volatile String loginID = null;
+
+    /**
+     * The session the frames sent to this client are numbered and kept
+     * in, or null; see <code>AbstractServer.openSession</code>.
+     */
+    private volatile Session session = null;
+
+    /**
+     * The time anything was last received from the client, as given by
+     * <code>System.nanoTime</code>.
+     */
+    private volatile long lastActivity = System.nanoTime();
+
+    /**
+     * The time, in ns, after which the server's <code>IdleReaper</code>
+     * closes the connection if nothing is received, or zero.
+     */
+    private final long idleTimeout;
+
+    /**
+     * The next connection in the same slot of the <code>IdleReaper</code>'s
+     * wheel, and the tick at which this one is due. Only used by the
+     * reaper's thread.
+     */
+    ConnectionToClient wheelNext;
+    long wheelDue;
+
+    /**
+     * The rate limit of the client; see <code>AbstractServer.setRateLimit</code>.
+     */
+    private volatile RateLimit rateLimit;
+
+    /**
+     * The time, as given by <code>System.nanoTime</code>, at which the
+     * client's token bucket is full, and whether its last message was
+     * dropped. Only used by the thread reading from the client.
      */
-    private HashMap<String, Object> savedInfo = new HashMap<String, Object>(10);
+    private long bucketFull = System.nanoTime();
+    private boolean dropping = false;
 
     // CONSTRUCTORS *****************************************************
 
     /**
-     * Constructs a new connection to a client.
+     * Constructs a new connection to a client. No I/O is done here: the
+     * streams are opened by the thread that runs the connection, which the
+     * server starts.
      *
-     * @param group        the thread groupSystem.out.println("Client at " + client + "connected"); that contains the connections.
      * @param clientSocket contains the client's socket.
      * @param server       a reference to the server that created this instance
-     * @throws IOException if an I/O error occur when creating the connection.
      */
-    ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
-        super(group, (Runnable) null);
+    ConnectionToClient(Socket clientSocket, AbstractServer server) {
         // Initialize variables
         this.clientSocket = clientSocket;
         this.server = server;
 
-        clientSocket.setSoTimeout(0); // make sure timeout is infinite
+        outboundQueue = server.newOutboundQueue();
+        if (outboundQueue != null)
+            writerExecutor = server.getWriterExecutor();
+
+        readyToStop = false;
+        rateLimit = server.getRateLimit(null);
+        idleTimeout = server.watchIdle(this);
+    }
+
+    /**
+     * Constructs a new connection to a client served by an event loop of a
+     * <code>SelectorEngine</code>. No thread is started; the event loop reads
+     * the client's frames and hands them to the server.
+     *
+     * @param transport the non-blocking channel of the client.
+     * @param server    a reference to the server that created this instance
+     */
+    ConnectionToClient(ChannelTransport transport, AbstractServer server) {
+        this.transport = transport;
+        this.outboundQueue = transport.getQueue();
+        this.clientSocket = transport.getChannel().socket();
+        this.server = server;
+        this.readyToStop = false;
+        this.rateLimit = server.getRateLimit(null);
+        this.idleTimeout = server.watchIdle(this);
+
+        transport.setClient(this);
+    }
+
+    // INSTANCE METHODS *************************************************
 
-        // Initialize the objects streams
+    /**
+     * Opens the streams of a connection served by a reader thread. The
+     * client either opens with a handshake choosing one of the server's
+     * codecs, or starts a legacy continuous object stream, and must do so
+     * within the server's timeout.
+     *
+     * @throws IOException if an I/O error occurs, the client is too slow
+     *                     or no codec is in common.
+     */
+    private void openStreams() throws IOException {
+        clientSocket.setSoTimeout(server.getTimeout());
+
+        // Initialize the streams, counting the bytes crossing the socket
         try {
-            input = new ObjectInputStream(clientSocket.getInputStream());
-            output = new ObjectOutputStream(clientSocket.getOutputStream());
+            ServerMetrics metrics = server.getMetrics();
+            InputStream in = new BufferedInputStream(metrics.meter(clientSocket.getInputStream()));
+            rawInput = in;
+            socketOutput = new CoalescingOutputStream(metrics.meter(
+                    clientSocket.getOutputStream()), server.getFlushPolicy(), writeLock);
+
+            in.mark(2);
+            int first = in.read();
+            int second = in.read();
+            in.reset();
+
+            if (Handshake.isObjectStream(first, second)) {
+                input = new ObjectInputStream(in);
+                if (!opened(null, new ManagedObjectOutputStream(
+                        socketOutput, server.getResetPolicy(), writeLock)))
+                    throw new SocketException("closed while opening");
+                socketOutput.flush();
+            } else {
+                frameInput = new DataInputStream(in);
+                Codec chosen = Handshake.choose(Handshake.readHello(frameInput), server.getCodecs());
+                socketOutput.write(Handshake.reply(chosen));
+                socketOutput.flush();
+                if (chosen == null)
+                    throw new ProtocolException("no codec in common with the client");
+                if (!opened(chosen, null))
+                    throw new SocketException("closed while opening");
+            }
         } catch (IOException ex) {
             try {
                 closeAll();
@@ -96,23 +338,91 @@ public class ConnectionToClient extends Thread {
             throw ex; // Rethrow the exception.
         }
 
-        readyToStop = false;
-        start(); // Start the thread waits for data from the socket
+        clientSocket.setSoTimeout(0); // make sure timeout is infinite
     }
 
-    // INSTANCE METHODS *************************************************
-
     /**
-     * Sends an object to the client.
+     * Sends an object to the client. When the server gives its clients
+     * outbound queues, the message is queued and this call never blocks.
      *
      * @param msg the message to be sent.
-     * @throws IOException if an I/O error occur when sending the message.
+     * @throws IOException if an I/O error occur when sending the message,
+     *                     or the outbound queue is full.
      */
     final public void sendToClient(Object msg) throws IOException {
-        if (clientSocket == null || output == null)
+        if (codec != null || transport != null || outboundQueue != null || session != null) {
+            sendFrame(Frame.of(msg));
+            return;
+        }
+
+        ManagedObjectOutputStream out = output;
+        CoalescingOutputStream raw = socketOutput;
+        if (clientSocket == null || out == null || raw == null)
             throw new SocketException("socket does not exist");
 
-        output.writeObject(msg);
+        synchronized (writeLock) {
+            if (resetPending) {
+                out.reset();
+                resetPending = false;
+            }
+            out.writeMessage(msg);
+            raw.messageWritten();
+        }
+        server.getMetrics().messageSent();
+    }
+
+    /**
+     * Sends a pre-encoded frame to the client. The frame is encoded at most
+     * once for all the connections it is sent to, and its bytes are written
+     * to the socket in a single call.
+     *
+     * When the server gives its clients outbound queues, the frame is
+     * queued and this call never blocks. When the client has a session,
+     * the frame is numbered and kept in it first, and goes to the
+     * connection the session is attached to.
+     *
+     * @param frame the frame to be sent.
+     * @throws IOException if an I/O error occur when sending the frame,
+     *                     or the outbound queue is full.
+     */
+    final public void sendFrame(Frame frame) throws IOException {
+        Session clientSession = session;
+        if (clientSession != null)
+            clientSession.send(frame);
+        else
+            writeFrame(frame);
+    }
+
+    /**
+     * Writes a frame to this connection, bypassing its session.
+     *
+     * @param frame the frame to be sent.
+     * @throws IOException if an I/O error occur when sending the frame,
+     *                     or the outbound queue is full.
+     */
+    void writeFrame(Frame frame) throws IOException {
+        Codec clientCodec = codec;
+        if (transport != null && clientCodec == null)
+            throw new SocketException("handshake not completed");
+
+        writeBytes(clientCodec != null ? frame.encodedBytes(clientCodec) : frame.streamBytes());
+        server.getMetrics().messageSent();
+    }
+
+    /**
+     * Tells the client about its session in a session frame, which only
+     * the server writes, bypassing the session. Clients using the legacy
+     * object stream cannot be told, and have no session.
+     *
+     * @param token   the token of the session, or null if the session the
+     *                client asked to resume could not be.
+     * @param resumed true if the session was resumed rather than opened.
+     * @throws IOException if an I/O error occur when sending the frame,
+     *                     or the outbound queue is full.
+     */
+    void writeSession(String token, boolean resumed) throws IOException {
+        if (codec != null)
+            writeBytes(Frames.encodeSession(token, resumed));
     }
 
 
@@ -125,6 +435,11 @@ public class ConnectionToClient extends Thread {
     final public void close() throws IOException {
         readyToStop = true; // Set the flag that tells the thread to stop
 
+        // Deliver the messages still held back by the flush policy
+        CoalescingOutputStream raw = socketOutput;
+        if (raw != null)
+            raw.flushPending();
+
         try {
             closeAll();
         } finally {
@@ -134,6 +449,88 @@ public class ConnectionToClient extends Thread {
 
     // ACCESSING METHODS ------------------------------------------------
 
+    /**
+     * @return the server that created this connection.
+     */
+    final AbstractServer getServer() {
+        return server;
+    }
+
+    /**
+     * Returns the number of objects the connection's object stream keeps
+     * reachable because it may have to refer back to them. Only clients
+     * using the legacy continuous object stream retain objects; see
+     * <code>AbstractServer.setResetPolicy</code>.
+     *
+     * @return the number of objects written since the stream's last reset.
+     */
+    final public int getRetainedObjects() {
+        ManagedObjectOutputStream out = output;
+        return out == null ? 0 : out.getRetainedObjects();
+    }
+
+    /**
+     * Returns the number of socket writes saved so far by coalescing the
+     * output to the client; see <code>AbstractServer.setFlushPolicy</code>.
+     * Clients served by selector threads always coalesce their output and
+     * report zero.
+     *
+     * @return the writes requested minus the writes made on the socket.
+     */
+    final public long getSyscallsSaved() {
+        CoalescingOutputStream raw = socketOutput;
+        return raw == null ? 0 : raw.getSyscallsSaved();
+    }
+
+    /**
+     * Returns the codec negotiated with the client.
+     *
+     * @return the codec, or null if the client uses a legacy continuous
+     * object stream or has not completed its handshake.
+     */
+    final public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Indicates if the client currently accepts messages: false while its
+     * outbound queue is above the high watermark.
+     *
+     * @return true if a message sent now would be accepted.
+     */
+    final public boolean isWritable() {
+        return outboundQueue == null || outboundQueue.isWritable();
+    }
+
+    /**
+     * @return the number of messages waiting in the outbound queue.
+     */
+    final public int getOutboundQueueDepth() {
+        return outboundQueue == null ? 0 : outboundQueue.getDepth();
+    }
+
+    /**
+     * @return the number of bytes waiting in the outbound queue.
+     */
+    final public long getOutboundQueueBytes() {
+        return outboundQueue == null ? 0 : outboundQueue.getQueuedBytes();
+    }
+
+    /**
+     * @return the largest number of bytes the outbound queue has held.
+     */
+    final public long getOutboundQueuePeakBytes() {
+        return outboundQueue == null ? 0 : outboundQueue.getPeakBytes();
+    }
+
+    /**
+     * @return the number of messages refused because the outbound queue
+     * was full.
+     */
+    final public long getDroppedMessages() {
+        return outboundQueue == null ? 0 : outboundQueue.getDroppedFrames();
+    }
+
     /**
      * Returns the address of the client.
      *
@@ -156,12 +553,16 @@ public class ConnectionToClient extends Thread {
     /**
      * Saves arbitrary information about this client. Designed to be used by
      * concrete subclasses of AbstractServer. Based on a hash map.
+     * Saving null removes the information.
      *
      * @param infoType identifies the type of information
      * @param info     the information itself.
      */
     public void setInfo(String infoType, Object info) {
-        savedInfo.put(infoType, info);
+        if (info == null)
+            savedInfo.remove(infoType);
+        else
+            savedInfo.put(infoType, info);
     }
 
     /**
@@ -174,14 +575,115 @@ public class ConnectionToClient extends Thread {
         return savedInfo.get(infoType);
     }
 
+    /**
+     * Gives the client a login ID, under which the server finds it in
+     * constant time; see <code>AbstractServer.sendToLogin</code>. The ID is
+     * refused if another client has it. The client's previous ID, if any,
+     * is released, and so is the ID when the client closes. A closed client
+     * is never given an ID. The client takes the rate limit of its new ID.
+     *
+     * @param loginID the login ID, or null to release the current one.
+     * @return true if the client now has the ID.
+     */
+    final public boolean setLoginID(String loginID) {
+        if (readyToStop)
+            return false;
+        if (loginID != null && !server.registerLogin(loginID, this))
+            return false;
+
+        String previous = this.loginID;
+        this.loginID = loginID;
+        if (previous != null && !previous.equals(loginID))
+            server.unregisterLogin(previous, this);
+
+        // Closing may have missed the ID just registered
+        if (readyToStop && loginID != null) {
+            server.unregisterLogin(loginID, this);
+            return false;
+        }
+        applyRateLimit();
+        return true;
+    }
+
+    /**
+     * @return the login ID of the client, or null if it has none.
+     */
+    final public String getLoginID() {
+        return loginID;
+    }
+
+    /**
+     * @return the rate limit of the client.
+     */
+    final public RateLimit getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * @return the session of the client, or null if it has none.
+     */
+    final public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Subscribes the client to a channel, so that it receives the messages
+     * sent to the channel with <code>AbstractServer.sendToChannel</code>.
+     * A channel exists as long as it has subscribers. A closed client is
+     * never subscribed.
+     *
+     * @param channel the name of the channel.
+     * @return true if the client was not subscribed yet.
+     */
+    final public boolean joinChannel(String channel) {
+        if (readyToStop || !channels.add(channel))
+            return false;
+        server.getChannelIndex().join(this, channel);
+
+        // Closing may have missed the channel just added
+        if (readyToStop) {
+            leaveChannel(channel);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Unsubscribes the client from a channel.
+     *
+     * @param channel the name of the channel.
+     * @return true if the client was subscribed.
+     */
+    final public boolean leaveChannel(String channel) {
+        if (!channels.remove(channel))
+            return false;
+        server.getChannelIndex().leave(this, channel);
+        return true;
+    }
+
+    /**
+     * @return the names of the channels the client is subscribed to.
+     */
+    final public String[] getChannels() {
+        return channels.toArray(new String[0]);
+    }
+
     // RUN METHOD -------------------------------------------------------
 
     /**
-     * Constantly reads the client's input stream. Sends all objects that are
-     * read to the server. Not to be called.
+     * Opens the streams, then constantly reads the client's input stream.
+     * Sends all objects that are read to the server. Not to be called.
      */
     final public void run() {
-        server.clientConnected(this);
+        try {
+            openStreams();
+        } catch (IOException exception) {
+            // The client never counted as connected
+            return;
+        }
+
+        if (!register())
+            return;
 
         // This loop reads the input stream and responds to messages
         // from clients
@@ -192,29 +694,450 @@ public class ConnectionToClient extends Thread {
             while (!readyToStop) {
                 // This block waits until it reads a message from the client
                 // and then sends it for handling by the server
-                msg = input.readObject();
-                server.receiveMessageFromClient(msg, this);
+                msg = codec != null ?
+                        Frames.readMessage(frameInput, codec) : input.readObject();
+
+                // The messages already received form a batch, so that the
+                // replies they cause may share socket writes
+                CoalescingOutputStream.beginBatch();
+                try {
+                    receive(msg);
+                    for (int handled = 1; handled < CoalescingOutputStream.BATCH_LIMIT
+                            && !readyToStop && rawInput.available() > 0; handled++) {
+                        msg = codec != null ?
+                                Frames.readMessage(frameInput, codec) : input.readObject();
+                        receive(msg);
+                    }
+                    acknowledge();
+                } finally {
+                    CoalescingOutputStream.endBatch();
+                }
             }
         } catch (Exception exception) {
-            if (!readyToStop) {
+            connectionFailed(exception);
+        }
+    }
+
+    /**
+     * Hands a message read by the thread of the connection to the server,
+     * within the client's rate limit. A throttled client is not read from
+     * until it may send again; the replies and acknowledgements already due
+     * are written first.
+     *
+     * @param msg the message read.
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting.
+     */
+    private void receive(Object msg) throws InterruptedException {
+        if (!(msg instanceof Frames.Ack || msg instanceof Frames.Heartbeat)) {
+            boolean acknowledged = msg instanceof Frames.Sequenced;
+            long wait = admit(acknowledged);
+            if (wait < 0)
+                return;
+            while (wait > 0) {
+                acknowledge();
+                CoalescingOutputStream.endBatch();
                 try {
-                    closeAll();
-                } catch (Exception ex) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } finally {
+                    CoalescingOutputStream.beginBatch();
                 }
-
-                server.clientException(this, exception);
+                wait = admit(acknowledged);
             }
         }
+        server.receiveMessageFromClient(msg, this);
     }
 
     // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+    /**
+     * Makes the frames sent to this client go through a session.
+     *
+     * @param session the session.
+     */
+    void attach(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Writes encoded bytes to the client, through the event loop or the
+     * outbound queue when the connection has one.
+     *
+     * @param bytes the bytes, a complete frame or stream fragment.
+     * @throws IOException if the connection is closed or the queue is full.
+     */
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (transport != null) {
+            transport.send(ByteBuffer.wrap(bytes));
+            return;
+        }
+
+        if (outboundQueue != null) {
+            enqueue(ByteBuffer.wrap(bytes));
+            return;
+        }
+
+        CoalescingOutputStream raw = socketOutput;
+        if (clientSocket == null || raw == null)
+            throw new SocketException("socket does not exist");
+
+        synchronized (writeLock) {
+            raw.write(bytes);
+            resetPending = true;
+            raw.messageWritten();
+        }
+    }
+
+    /**
+     * Records that a sequenced message was handled, to be acknowledged at
+     * the end of the current batch. Called by the thread handling the
+     * client's messages.
+     *
+     * @param sequence the sequence number of the message.
+     */
+    void handled(long sequence) {
+        handledSequence = sequence;
+    }
+
+    /**
+     * Acknowledges the sequenced messages handled since the last
+     * acknowledgement, with a single frame. Does nothing, at the cost of a
+     * volatile read, when the client never asked for acknowledgements.
+     */
+    void acknowledge() {
+        long handled = handledSequence;
+        if (handled < 0)
+            return;
+        synchronized (ackLock) {
+            if (handled <= acknowledgedSequence)
+                return;
+            acknowledgedSequence = handled;
+        }
+
+        try {
+            writeBytes(Frames.encodeAck(handled));
+        } catch (IOException ex) {
+            // The connection is failing; its reader reports it
+        }
+    }
+
+    /**
+     * Gives the client the rate limit of its login ID, or that of all
+     * clients.
+     */
+    void applyRateLimit() {
+        rateLimit = server.getRateLimit(loginID);
+    }
+
+    /**
+     * Takes a token from the client's bucket for a message read, as its
+     * rate limit says. Called by the thread reading from the client, before
+     * the message is handed to the server. A message the client expects
+     * acknowledged is never dropped, only delayed.
+     *
+     * @param acknowledged true if the client expects the message
+     *                     acknowledged.
+     * @return zero if the message may be handled; the time, in ns, to wait
+     * before trying again if the limit throttles the client; or -1 if the
+     * message is dropped.
+     */
+    long admit(boolean acknowledged) {
+        RateLimit limit = rateLimit;
+        if (!limit.isEnabled())
+            return 0;
+
+        long now = System.nanoTime();
+        long wait = limit.wait(bucketFull, now);
+        if (wait <= 0) {
+            bucketFull = limit.take(bucketFull, now);
+            dropping = false;
+            return 0;
+        }
+        if (!limit.isDropping() || acknowledged)
+            return wait;
+
+        server.getMetrics().messageDropped();
+        if (!dropping) {
+            dropping = true;
+            server.rateLimitExceeded(this);
+        }
+        return -1;
+    }
+
+    /**
+     * Records that something was received from the client, which keeps the
+     * connection from being closed as idle.
+     */
+    void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Answers a heartbeat of the client with one of the server's, so that
+     * the client knows the connection is alive too. Heartbeats do not go
+     * through the session.
+     */
+    void heartbeat() {
+        try {
+            writeBytes(HEARTBEAT);
+        } catch (IOException ex) {
+            // The connection is failing; its reader reports it
+        }
+    }
+
+    /**
+     * @return the time, as given by <code>System.nanoTime</code>, anything
+     * was last received from the client.
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Returns the time the connection may stay silent before the
+     * <code>IdleReaper</code> closes it: the server's timeout until the
+     * handshake is done, then the idle timeout. Connections using the
+     * legacy object stream, which cannot carry heartbeats, and closed
+     * connections have none.
+     *
+     * @return the time, in ns, or zero for none.
+     */
+    long getIdleDeadline() {
+        if (readyToStop)
+            return 0;
+        if (codec != null)
+            return idleTimeout;
+        if (output != null)
+            return 0;
+        return idleTimeout > 0 ? TimeUnit.MILLISECONDS.toNanos(server.getTimeout()) : 0;
+    }
+
+    /**
+     * Closes a connection found idle by the <code>IdleReaper</code>. A
+     * connection that never completed its handshake is closed without
+     * notifying the server; otherwise the server is told the connection
+     * timed out.
+     *
+     * @param idle the time, in ms, nothing was received.
+     */
+    void closeIdle(long idle) {
+        boolean opening;
+        synchronized (openLock) {
+            opening = codec == null && output == null;
+            if (opening)
+                readyToStop = true; // The handshake can no longer complete
+        }
+
+        if (opening)
+            abort();
+        else if (codec != null)
+            connectionFailed(new SocketTimeoutException("nothing received for " + idle + " ms"));
+    }
+
+    /**
+     * Queues encoded bytes for the writer and makes sure it is scheduled.
+     *
+     * @param frame the bytes to be written.
+     * @throws IOException if the connection is closed or the queue is full.
+     */
+    private void enqueue(ByteBuffer frame) throws IOException {
+        if (clientSocket == null)
+            throw new SocketException("socket does not exist");
+
+        if (!outboundQueue.offer(frame))
+            throw new IOException("outbound queue is full");
+
+        if (writerScheduled.compareAndSet(false, true))
+            writerExecutor.execute(this::drainOutboundQueue);
+    }
+
+    /**
+     * Writes the queued frames to the socket until the queue is empty. Runs
+     * on the writer executor, never more than once at a time.
+     */
+    private void drainOutboundQueue() {
+        try {
+            do {
+                ByteBuffer frame;
+                CoalescingOutputStream raw = socketOutput;
+                if (raw == null)
+                    return;
+
+                // The frames drained in one run share the socket writes
+                while ((frame = outboundQueue.peek()) != null) {
+                    synchronized (writeLock) {
+                        raw.write(frame.array(), frame.arrayOffset(), frame.limit());
+                        resetPending = true;
+                    }
+                    outboundQueue.remove();
+                }
+                synchronized (writeLock) {
+                    raw.flush();
+                }
+                writerScheduled.set(false);
+            } while (!outboundQueue.isEmpty() && writerScheduled.compareAndSet(false, true));
+        } catch (IOException ex) {
+            connectionFailed(ex);
+        }
+    }
+
+    /**
+     * Hands a message read from the client to the server. Called by the
+     * event loop serving this connection.
+     *
+     * @param msg the message read.
+     */
+    void receiveMessage(Object msg) {
+        server.receiveMessageFromClient(msg, this);
+    }
+
+    /**
+     * Queues a message read from the client for handling on the given
+     * executor. At most one task per connection handles the queue, so the
+     * messages of this client are handled one at a time and in order.
+     *
+     * @param msg      the message read.
+     * @param executor the executor handling messages.
+     */
+    void dispatch(Object msg, Executor executor) {
+        inbox.add(msg);
+        if (dispatchScheduled.compareAndSet(false, true))
+            executor.execute(this::handleInbox);
+    }
+
+    /**
+     * Hands the queued messages to the server until the inbox is empty. An
+     * exception thrown by the handler closes the connection as it would on
+     * the reader thread.
+     */
+    private void handleInbox() {
+        CoalescingOutputStream.beginBatch();
+        try {
+            do {
+                Object msg;
+                while ((msg = inbox.poll()) != null) {
+                    if (readyToStop) {
+                        inbox.clear();
+                        break;
+                    }
+                    server.dispatchMessageFromClient(msg, this);
+                }
+                acknowledge();
+                dispatchScheduled.set(false);
+            } while (!inbox.isEmpty() && dispatchScheduled.compareAndSet(false, true));
+        } catch (RuntimeException ex) {
+            dispatchScheduled.set(false);
+            connectionFailed(ex);
+        } finally {
+            CoalescingOutputStream.endBatch();
+        }
+    }
+
+    /**
+     * Completes the opening of a connection served by an event loop, once
+     * its handshake has chosen a codec: the connection is registered and
+     * the server notified, unless it was closed meanwhile.
+     *
+     * @param clientCodec the codec negotiated with the client.
+     * @return true if the connection is open and registered.
+     */
+    boolean handshakeCompleted(Codec clientCodec) {
+        return opened(clientCodec, null) && register();
+    }
+
+    /**
+     * Records the outcome of the handshake, unless the connection was
+     * closed meanwhile.
+     *
+     * @param clientCodec  the codec negotiated, or null.
+     * @param objectOutput the legacy object stream, or null.
+     * @return true if the connection is still open.
+     */
+    private boolean opened(Codec clientCodec, ManagedObjectOutputStream objectOutput) {
+        synchronized (openLock) {
+            if (readyToStop)
+                return false;
+            codec = clientCodec;
+            output = objectOutput;
+            return true;
+        }
+    }
+
+    /**
+     * Registers an opened connection and notifies the server, unless the
+     * connection was closed meanwhile, in which case the registration is
+     * undone and the server never hears of it.
+     *
+     * @return true if the connection was registered.
+     */
+    private boolean register() {
+        server.addConnection(this);
+        if (readyToStop) {
+            server.removeConnection(this);
+            return false;
+        }
+        server.clientConnected(this);
+        return true;
+    }
+
+    /**
+     * Closes a connection whose handshake failed. The server is not
+     * notified, since the client never counted as connected.
+     */
+    void abort() {
+        readyToStop = true;
+        try {
+            closeAll();
+        } catch (Exception ex) {
+        }
+    }
+
+    /**
+     * Closes the connection after reading or writing failed and reports the
+     * exception to the server, unless the connection was being closed anyway.
+     *
+     * @param exception the exception raised.
+     */
+    void connectionFailed(Exception exception) {
+        if (!readyToStop) {
+            readyToStop = true;
+            try {
+                closeAll();
+            } catch (Exception ex) {
+            }
+
+            server.clientException(this, exception);
+        }
+    }
+
     /**
      * Closes all connection to the server.
      *
      * @throws IOException if an I/O error occur when closing the connection.
      */
     private void closeAll() throws IOException {
+        Session clientSession = session;
+        if (clientSession == null) {
+            leaveServer(null);
+        } else {
+            // From now on, the session keeps the frames broadcast
+            Lock lock = server.getSessionLock();
+            lock.lock();
+            try {
+                leaveServer(clientSession);
+            } finally {
+                lock.unlock();
+            }
+        }
+        String id = loginID;
+        if (id != null)
+            server.unregisterLogin(id, this);
+
+        if (transport != null)
+            transport.close();
+        else if (outboundQueue != null)
+            outboundQueue.clear();
+
         try {
             // Close the socket
             if (clientSocket != null)
@@ -227,17 +1150,37 @@ public class ConnectionToClient extends Thread {
             // Close the input stream
             if (input != null)
                 input.close();
+
+            if (frameInput != null)
+                frameInput.close();
         } finally {
             // Set the streams and the sockets to NULL no matter what
             // Doing so allows, but does not require, any finalizers
             // of these objects to reclaim system resources if and
             // when they are garbage collected.
             output = null;
+            socketOutput = null;
             input = null;
+            frameInput = null;
             clientSocket = null;
         }
     }
 
+    /**
+     * Removes the connection from the server and from its channels, and
+     * detaches its session, if any.
+     *
+     * @param clientSession the session of the connection, or null.
+     */
+    private void leaveServer(Session clientSession) {
+        server.removeConnection(this);
+        if (clientSession != null && clientSession.detach(this, savedInfo, getChannels()))
+            server.sessionDetached(clientSession);
+        for (String channel : channels) {
+            leaveChannel(channel);
+        }
+    }
+
     /**
      * This method is called by garbage collection.
      */
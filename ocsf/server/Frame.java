@@ -0,0 +1,180 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.server;
+
+import java.io.*;
+
+import ocsf.common.Codec;
+import ocsf.common.Frames;
+
+/**
+ * A <code> Frame </code> is a message encoded once so that the same bytes
+ * can be written to any number of clients. The encoding for each wire
+ * format is produced the first time a connection using that format needs
+ * it, and is never modified afterwards.<p>
+ * <p>
+ * For clients reading one continuous object stream, the bytes start with a
+ * stream reset, so that they decode the same way whatever was written on
+ * the stream before. For clients that negotiated a codec, the bytes are a
+ * complete frame of <code> ocsf.common.Frames </code>, encoded once per
+ * codec.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.ConnectionToClient#sendFrame(Frame)
+ */
+public final class Frame {
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The message carried by this frame.
+     */
+    private final Object message;
+
+    /**
+     * The message as a fragment of a continuous object stream, once encoded.
+     */
+    private volatile byte[] streamBytes;
+
+    /**
+     * The exception raised when the message could not be encoded as a
+     * stream fragment, so that it is not encoded again for every connection.
+     */
+    private volatile IOException streamFailure;
+
+    /**
+     * The frames encoded so far, one per codec.
+     */
+    private volatile Encoding encodings;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs a frame; see <code>of</code>.
+     *
+     * @param message the message carried.
+     */
+    private Frame(Object message) {
+        this.message = message;
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Returns a frame carrying the given message. Encoding is deferred until
+     * the frame is first sent.
+     *
+     * @param message the message carried.
+     * @return the frame.
+     */
+    public static Frame of(Object message) {
+        return new Frame(message);
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * @return the message carried by this frame.
+     */
+    public Object getMessage() {
+        return message;
+    }
+
+    // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+    /**
+     * Returns the message as a fragment of a continuous object stream. The
+     * fragment starts with a reset marker; the stream it is written to must
+     * itself be reset before its next object.
+     *
+     * @return the encoded bytes; not to be modified.
+     * @throws IOException if the message cannot be serialized.
+     */
+    byte[] streamBytes() throws IOException {
+        byte[] bytes = streamBytes;
+        if (bytes == null) {
+            if (streamFailure != null)
+                throw streamFailure;
+            try {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+                ObjectOutputStream output = new ObjectOutputStream(buffer);
+                output.flush();
+                buffer.reset(); // Drop the stream header
+
+                output.reset();
+                output.writeObject(message);
+                output.flush();
+                bytes = buffer.toByteArray();
+            } catch (IOException ex) {
+                streamFailure = ex;
+                throw ex;
+            }
+            streamBytes = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the message as a complete frame encoded by a codec.
+     *
+     * @param codec the codec of the connection.
+     * @return the encoded bytes; not to be modified.
+     * @throws IOException if the codec cannot encode the message.
+     */
+    byte[] encodedBytes(Codec codec) throws IOException {
+        Encoding encoding = find(codec);
+        if (encoding == null) {
+            synchronized (this) {
+                encoding = find(codec);
+                if (encoding == null) {
+                    try {
+                        encoding = new Encoding(codec, Frames.encode(codec, message), null, encodings);
+                    } catch (IOException ex) {
+                        encoding = new Encoding(codec, null, ex, encodings);
+                    }
+                    encodings = encoding;
+                }
+            }
+        }
+
+        if (encoding.failure != null)
+            throw encoding.failure;
+        return encoding.bytes;
+    }
+
+    /**
+     * Finds the frame already encoded by a codec.
+     *
+     * @param codec the codec.
+     * @return the encoding, or null if not encoded yet.
+     */
+    private Encoding find(Codec codec) {
+        for (Encoding encoding = encodings; encoding != null; encoding = encoding.next) {
+            if (encoding.codec == codec)
+                return encoding;
+        }
+        return null;
+    }
+
+    // INNER CLASSES ----------------------------------------------------
+
+    /**
+     * The outcome of encoding the message with one codec. Connections rarely
+     * use more than a couple of codecs, so a short list is searched.
+     */
+    private static final class Encoding {
+        final Codec codec;
+        final byte[] bytes;
+        final IOException failure;
+        final Encoding next;
+
+        Encoding(Codec codec, byte[] bytes, IOException failure, Encoding next) {
+            this.codec = codec;
+            this.bytes = bytes;
+            this.failure = failure;
+            this.next = next;
+        }
+    }
+}
+// End of Frame class
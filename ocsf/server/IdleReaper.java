@@ -0,0 +1,205 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code> IdleReaper </code> closes the connections of a server that
+ * have been silent for too long: those that never completed their
+ * handshake, and those from which nothing, not even a heartbeat, was
+ * received within the server's idle timeout. A half-open connection, whose
+ * client vanished without closing it, would otherwise hold its resources
+ * forever.<p>
+ * <p>
+ * All the connections share one thread and one hashed timing wheel: a ring
+ * of slots, each a list of the connections due to be checked at the same
+ * tick. A connection records the time of its last activity, which costs a
+ * single write; it is only looked at when it falls due, and is then
+ * either closed or moved to the slot of its new due time. Every tick thus
+ * costs a constant time per connection due, whatever the number of
+ * connections, and no connection has a timer of its own.<p>
+ * <p>
+ * A connection is closed between its deadline and one tick later.
+ * Connections using the legacy object stream, which cannot carry
+ * heartbeats, are never closed for being idle.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#setIdleTimeout(long)
+ */
+final class IdleReaper implements Runnable {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The time between ticks, in ns.
+     */
+    static final long TICK = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The number of slots of the wheel; a connection due later than one
+     * turn ahead waits in its slot for the turns in between.
+     */
+    private static final int SLOTS = 512;
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The server whose connections are watched.
+     */
+    private final AbstractServer server;
+
+    /**
+     * The first connection of each slot, linked through their
+     * <code>wheelNext</code> fields. Only used by the reaper's thread.
+     */
+    private final ConnectionToClient[] slots = new ConnectionToClient[SLOTS];
+
+    /**
+     * The connections to be placed in the wheel at the next tick.
+     */
+    private final ConcurrentLinkedQueue<ConnectionToClient> incoming =
+            new ConcurrentLinkedQueue<ConnectionToClient>();
+
+    /**
+     * The time of tick zero, as given by <code>System.nanoTime</code>.
+     */
+    private final long origin = System.nanoTime();
+
+    /**
+     * The number of ticks processed.
+     */
+    private long tick = 0;
+
+    /**
+     * The thread of the reaper.
+     */
+    private final Thread thread;
+
+    /**
+     * Indicates if the reaper is to stop.
+     */
+    private volatile boolean stopped = false;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs and starts the reaper of a server.
+     *
+     * @param server the server.
+     */
+    IdleReaper(AbstractServer server) {
+        this.server = server;
+        this.thread = new Thread(this, "AbstractServer idle reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Starts watching a new connection.
+     *
+     * @param client the connection.
+     */
+    void watch(ConnectionToClient client) {
+        incoming.add(client);
+    }
+
+    /**
+     * Stops the reaper. The connections are left as they are.
+     */
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    /**
+     * Processes a slot of the wheel at every tick until stopped. Not to be
+     * called.
+     */
+    public void run() {
+        while (!stopped) {
+            long next = origin + (tick + 1) * TICK;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException ex) {
+                    continue; // Stopped
+                }
+            }
+            tick++;
+
+            ConnectionToClient client;
+            while ((client = incoming.poll()) != null) {
+                schedule(client);
+            }
+            expire(System.nanoTime());
+        }
+    }
+
+    /**
+     * Checks the connections of the current slot that are due, closing the
+     * idle ones and moving the others to their new slot.
+     *
+     * @param now the current time.
+     */
+    private void expire(long now) {
+        int slot = (int) (tick % SLOTS);
+        ConnectionToClient client = slots[slot];
+        ConnectionToClient kept = null;
+        slots[slot] = null;
+
+        while (client != null) {
+            ConnectionToClient next = client.wheelNext;
+            client.wheelNext = null;
+            if (client.wheelDue > tick) {
+                // Due in a later turn of the wheel
+                client.wheelNext = kept;
+                kept = client;
+            } else {
+                long deadline = client.getIdleDeadline();
+                if (deadline > 0) {
+                    long idle = now - client.getLastActivity();
+                    if (idle >= deadline) {
+                        client.closeIdle(TimeUnit.NANOSECONDS.toMillis(idle));
+                        server.getMetrics().connectionReaped();
+                    } else {
+                        schedule(client);
+                    }
+                }
+            }
+            client = next;
+        }
+
+        // The connections of later turns go back into the slot
+        while (kept != null) {
+            ConnectionToClient next = kept.wheelNext;
+            kept.wheelNext = slots[slot];
+            slots[slot] = kept;
+            kept = next;
+        }
+    }
+
+    /**
+     * Places a connection in the slot of the tick at which its deadline
+     * passes, unless it has none.
+     *
+     * @param client the connection.
+     */
+    private void schedule(ConnectionToClient client) {
+        long deadline = client.getIdleDeadline();
+        if (deadline <= 0)
+            return;
+
+        long due = (client.getLastActivity() + deadline - origin + TICK - 1) / TICK;
+        client.wheelDue = Math.max(due, tick + 1);
+        int slot = (int) (client.wheelDue % SLOTS);
+        client.wheelNext = slots[slot];
+        slots[slot] = client;
+    }
+}
+// End of IdleReaper class
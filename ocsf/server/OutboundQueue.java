@@ -0,0 +1,178 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * The <code> OutboundQueue </code> class holds the encoded frames waiting to
+ * be written to one client. It is bounded by two watermarks counted in
+ * bytes: once the queued bytes reach the high watermark the queue stops
+ * accepting frames, and it accepts them again when the writer has drained
+ * it down to the low watermark. A client that reads slowly therefore loses
+ * messages instead of delaying everyone else.<p>
+ * <p>
+ * All methods synchronize on the queue, which writers may also use as the
+ * lock guarding the frame at the head of the queue.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ */
+final class OutboundQueue {
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The frames waiting to be written, oldest first. Each frame starts at
+     * position zero when queued.
+     */
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<ByteBuffer>();
+
+    /**
+     * The number of queued bytes at or below which the queue accepts frames
+     * again.
+     */
+    private final long lowWaterMark;
+
+    /**
+     * The number of queued bytes at which the queue stops accepting frames.
+     */
+    private final long highWaterMark;
+
+    /**
+     * The number of bytes in the queued frames.
+     */
+    private long queuedBytes = 0;
+
+    /**
+     * The largest value <code>queuedBytes</code> has reached.
+     */
+    private long peakBytes = 0;
+
+    /**
+     * The number of frames refused because the queue was full.
+     */
+    private long droppedFrames = 0;
+
+    /**
+     * Indicates if the queue accepts frames.
+     */
+    private boolean writable = true;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs a queue bounded by the given watermarks.
+     *
+     * @param lowWaterMark  the queued bytes at which the queue accepts frames again.
+     * @param highWaterMark the queued bytes at which the queue stops accepting frames.
+     */
+    OutboundQueue(long lowWaterMark, long highWaterMark) {
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+
+    /**
+     * Constructs a queue that accepts every frame.
+     *
+     * @return the queue.
+     */
+    static OutboundQueue unbounded() {
+        return new OutboundQueue(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Adds a frame to the queue unless the queue is full.
+     *
+     * @param frame the frame, positioned at its first byte.
+     * @return true if the frame was queued, false if it was dropped.
+     */
+    synchronized boolean offer(ByteBuffer frame) {
+        if (!writable) {
+            droppedFrames++;
+            return false;
+        }
+
+        frames.add(frame);
+        queuedBytes += frame.limit();
+        peakBytes = Math.max(peakBytes, queuedBytes);
+        if (queuedBytes >= highWaterMark)
+            writable = false;
+        return true;
+    }
+
+    /**
+     * @return the oldest frame, or null if the queue is empty.
+     */
+    synchronized ByteBuffer peek() {
+        return frames.peek();
+    }
+
+    /**
+     * Removes the oldest frame once it has been completely written.
+     */
+    synchronized void remove() {
+        ByteBuffer frame = frames.poll();
+        if (frame != null) {
+            queuedBytes -= frame.limit();
+            if (queuedBytes <= lowWaterMark)
+                writable = true;
+        }
+    }
+
+    /**
+     * Forgets every queued frame.
+     */
+    synchronized void clear() {
+        frames.clear();
+        queuedBytes = 0;
+        writable = true;
+    }
+
+    // ACCESSING METHODS ------------------------------------------------
+
+    /**
+     * @return true if no frame is queued.
+     */
+    synchronized boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    /**
+     * @return true if the queue accepts frames.
+     */
+    synchronized boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * @return the number of queued frames.
+     */
+    synchronized int getDepth() {
+        return frames.size();
+    }
+
+    /**
+     * @return the number of bytes in the queued frames.
+     */
+    synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return the largest number of bytes that have been queued at once.
+     */
+    synchronized long getPeakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * @return the number of frames dropped because the queue was full.
+     */
+    synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
+// End of OutboundQueue class
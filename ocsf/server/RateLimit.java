@@ -0,0 +1,205 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code> RateLimit </code> tells how many messages per second a client
+ * may send to an <code> AbstractServer </code>, and what happens to the
+ * messages sent faster.<p>
+ * <p>
+ * Each connection has a token bucket holding up to <code>burst</code>
+ * tokens, refilled at <code>rate</code> tokens per second; every message
+ * takes one. The bucket is kept as a single number, the time at which it
+ * will be full again, so that checking a message costs a clock read and a
+ * few additions. It is only used by the thread reading from the client,
+ * and needs no lock.<p>
+ * <p>
+ * The kinds of limits are:
+ * <ul>
+ * <li> <code>NONE</code>: the client may send as fast as it likes. This is
+ * the default.
+ * <li> <code>throttle(rate, burst)</code>: when the bucket is empty, the
+ * server stops reading from the client until a token is available. The
+ * client's socket buffers fill up, and TCP makes its sends block.
+ * <li> <code>drop(rate, burst)</code>: when the bucket is empty, the
+ * message is read and dropped, and <code>rateLimitExceeded</code> is
+ * called on the server so that it may notify the client. Messages sent
+ * with <code>AbstractClient.sendToServerAsync</code> are never dropped,
+ * but throttled instead: the acknowledgements are cumulative, so the
+ * acknowledgement of a later message would report a dropped one as
+ * handled.
+ * </ul>
+ * Acknowledgements and heartbeats are not limited.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#setRateLimit(RateLimit)
+ * @see ocsf.server.AbstractServer#setRateLimit(String, RateLimit)
+ */
+public final class RateLimit {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The limit letting clients send as fast as they like.
+     */
+    public static final RateLimit NONE = new RateLimit(0, 0, false);
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The messages per second, or zero for no limit.
+     */
+    private final double rate;
+
+    /**
+     * The messages that may be sent at once after a silence.
+     */
+    private final int burst;
+
+    /**
+     * Indicates if the messages sent too fast are dropped rather than
+     * delayed.
+     */
+    private final boolean dropping;
+
+    /**
+     * The time, in ns, needed to earn a token.
+     */
+    private final long interval;
+
+    /**
+     * The time, in ns, needed to fill the bucket from one token.
+     */
+    private final long tolerance;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs a limit; see <code>NONE</code>, <code>throttle</code> and
+     * <code>drop</code>.
+     *
+     * @param rate     the messages per second.
+     * @param burst    the messages that may be sent at once.
+     * @param dropping true to drop the messages sent too fast.
+     */
+    private RateLimit(double rate, int burst, boolean dropping) {
+        this.rate = rate;
+        this.burst = burst;
+        this.dropping = dropping;
+        this.interval = rate > 0 ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate)) : 0;
+        this.tolerance = (burst - 1) * interval;
+    }
+
+    // CLASS METHODS ****************************************************
+
+    /**
+     * Returns the limit that stops reading from a client sending too fast.
+     *
+     * @param rate  the messages per second.
+     * @param burst the messages that may be sent at once after a silence.
+     * @return the limit.
+     * @throws IllegalArgumentException if the rate or the burst is not
+     *                                  positive.
+     */
+    public static RateLimit throttle(double rate, int burst) {
+        check(rate, burst);
+        return new RateLimit(rate, burst, false);
+    }
+
+    /**
+     * Returns the limit that drops the messages of a client sending too
+     * fast.
+     *
+     * @param rate  the messages per second.
+     * @param burst the messages that may be sent at once after a silence.
+     * @return the limit.
+     * @throws IllegalArgumentException if the rate or the burst is not
+     *                                  positive.
+     */
+    public static RateLimit drop(double rate, int burst) {
+        check(rate, burst);
+        return new RateLimit(rate, burst, true);
+    }
+
+    /**
+     * Checks the arguments of a limit.
+     *
+     * @param rate  the messages per second.
+     * @param burst the messages that may be sent at once.
+     */
+    private static void check(double rate, int burst) {
+        if (!(rate > 0) || burst < 1)
+            throw new IllegalArgumentException("invalid rate limit");
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Returns the time to wait before a bucket has a token.
+     *
+     * @param full the time, as given by <code>System.nanoTime</code>, at
+     *             which the bucket is full.
+     * @param now  the current time.
+     * @return the time, in ns, or zero or less if the bucket has a token.
+     */
+    long wait(long full, long now) {
+        return Math.max(full, now) - tolerance - now;
+    }
+
+    /**
+     * Takes a token from a bucket that has one.
+     *
+     * @param full the time, as given by <code>System.nanoTime</code>, at
+     *             which the bucket is full.
+     * @param now  the current time.
+     * @return the time at which the bucket is full once the token is taken.
+     */
+    long take(long full, long now) {
+        return Math.max(full, now) + interval;
+    }
+
+    // ACCESSING METHODS ------------------------------------------------
+
+    /**
+     * @return true if clients are limited.
+     */
+    public boolean isEnabled() {
+        return rate > 0;
+    }
+
+    /**
+     * @return the messages per second, or zero for no limit.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return the messages that may be sent at once after a silence.
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @return true if the messages sent too fast are dropped, false if
+     * they are delayed.
+     */
+    public boolean isDropping() {
+        return dropping;
+    }
+
+    /**
+     * @return a description of the limit.
+     */
+    public String toString() {
+        if (!isEnabled())
+            return "RateLimit[NONE]";
+        return "RateLimit[" + (dropping ? "drop" : "throttle") + ", rate=" + rate
+                + ", burst=" + burst + "]";
+    }
+}
+// End of RateLimit class
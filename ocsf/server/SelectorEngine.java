@@ -0,0 +1,263 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.server;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The <code> SelectorEngine </code> class serves the clients of an
+ * <code> AbstractServer </code> from a small, fixed set of event-loop
+ * threads instead of one thread per <code> ConnectionToClient </code>.
+ * Each event loop owns a <code> Selector </code>; accepted channels are
+ * spread over the loops in round-robin order and stay on their loop for
+ * their whole life, so the messages of one client are always handled in
+ * order.<p>
+ * <p>
+ * Clients served by this engine must open with the codec handshake of
+ * <code> ocsf.common.Handshake </code>; legacy clients sending a continuous
+ * object stream are refused. The usual hook methods of the server are
+ * called from the event-loop threads.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#setSelectorThreads(int)
+ */
+final class SelectorEngine {
+    // INSTANCE VARIABLES *********************************************
+
+    /**
+     * The server whose clients are served by this engine.
+     */
+    private final AbstractServer server;
+
+    /**
+     * The event loops; fixed at construction.
+     */
+    private final EventLoop[] eventLoops;
+
+    /**
+     * Used to pick the event loop of the next accepted channel.
+     */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+
+    // CONSTRUCTOR ******************************************************
+
+    /**
+     * Constructs and starts the event loops of a new engine.
+     *
+     * @param server  the server whose clients are served.
+     * @param threads the number of event-loop threads.
+     * @throws IOException if a selector cannot be opened.
+     */
+    SelectorEngine(AbstractServer server, int threads) throws IOException {
+        this.server = server;
+        this.eventLoops = new EventLoop[threads];
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                eventLoops[i] = new EventLoop(i);
+            }
+        } catch (IOException ex) {
+            shutdown();
+            throw ex;
+        }
+
+        for (int i = 0; i < threads; i++) {
+            eventLoops[i].thread.start();
+        }
+    }
+
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Hands a newly accepted channel to one of the event loops.
+     *
+     * @param channel the accepted channel, still in blocking mode.
+     */
+    void register(SocketChannel channel) {
+        EventLoop loop = eventLoops[
+                Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)];
+        loop.execute(() -> loop.open(channel));
+    }
+
+    /**
+     * Stops the event loops. Connections still open are not closed; the
+     * server closes them before calling this method.
+     */
+    void shutdown() {
+        for (EventLoop loop : eventLoops) {
+            if (loop != null)
+                loop.stop();
+        }
+    }
+
+
+    // INNER CLASSES ----------------------------------------------------
+
+    /**
+     * One selector and the thread that waits on it.
+     */
+    final class EventLoop implements Runnable {
+        /**
+         * The selector on which the channels of this loop are registered.
+         */
+        private final Selector selector;
+
+        /**
+         * Work handed to this loop by other threads.
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        /**
+         * The channels no longer read from until their client may send
+         * again, the first to resume first. Used by the loop's thread only.
+         */
+        private final PriorityQueue<ChannelTransport> paused = new PriorityQueue<ChannelTransport>(
+                (a, b) -> Long.signum(a.getResumeTime() - b.getResumeTime()));
+
+        /**
+         * The thread running this loop.
+         */
+        private final Thread thread;
+
+        /**
+         * Set when the loop should exit.
+         */
+        private volatile boolean stopped = false;
+
+        /**
+         * Constructs an event loop; the thread is started by the engine.
+         *
+         * @param index the index of the loop, used to name its thread.
+         * @throws IOException if the selector cannot be opened.
+         */
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "SelectorEngine event loop " + index);
+        }
+
+        /**
+         * Runs a task on this loop's thread.
+         *
+         * @param task the task to run.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Resumes reading from a paused channel at its resume time. Runs on
+         * the loop's thread.
+         *
+         * @param transport the channel.
+         */
+        void pause(ChannelTransport transport) {
+            paused.add(transport);
+        }
+
+        /**
+         * Wakes the loop so that it sees new interest operations.
+         */
+        void wakeup() {
+            selector.wakeup();
+        }
+
+        /**
+         * Asks the loop to exit and closes its selector once it has.
+         */
+        void stop() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        /**
+         * Registers an accepted channel with this loop. The server is
+         * notified once the client has completed its handshake. Runs on the
+         * loop's thread.
+         *
+         * @param channel the accepted channel.
+         */
+        private void open(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                OutboundQueue queue = server.newOutboundQueue();
+                ChannelTransport transport = new ChannelTransport(channel, key, this,
+                        queue != null ? queue : OutboundQueue.unbounded());
+                new ConnectionToClient(transport, server);
+                key.attach(transport);
+            } catch (IOException ex) {
+                try {
+                    channel.close();
+                } catch (IOException exc) {
+                }
+            }
+        }
+
+        /**
+         * Waits for ready channels and services them until stopped.
+         * Not to be called.
+         */
+        public void run() {
+            try {
+                while (!stopped) {
+                    ChannelTransport next = paused.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        long wait = next.getResumeTime() - System.nanoTime();
+                        if (wait > 0)
+                            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                        else
+                            selector.selectNow();
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    long now = System.nanoTime();
+                    while ((next = paused.peek()) != null && next.getResumeTime() - now <= 0) {
+                        paused.poll().resume();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        ChannelTransport transport = (ChannelTransport) key.attachment();
+                        try {
+                            if (key.isReadable())
+                                transport.readable();
+                            if (key.isValid() && key.isWritable())
+                                transport.writable();
+                        } catch (CancelledKeyException ex) {
+                            // The connection was closed while being serviced.
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                // The selector failed; nothing more can be serviced.
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+}
+// End of SelectorEngine class
@@ -0,0 +1,471 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.server;
+
+import java.io.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import ocsf.common.Codec;
+import ocsf.common.DeflateCodec;
+import ocsf.common.Histogram;
+
+/**
+ * The <code> ServerMetrics </code> class counts what an
+ * <code> AbstractServer </code> does: the messages and bytes received from
+ * and sent to its clients, the messages dropped for exceeding a rate
+ * limit, the connections accepted and those closed for being idle, the
+ * time taken by
+ * each <code>sendToAllClients</code> or <code>sendToChannel</code> and by
+ * each call to <code>handleMessageFromClient</code>. The counters are
+ * striped and the histograms lock-free, so that the threads serving the
+ * clients never wait for one another to record.<p>
+ * <p>
+ * Bytes are counted as they cross the sockets, handshakes included.
+ * Messages are counted once per client: a message sent to all clients
+ * counts once for each of them.<p>
+ * <p>
+ * <code>snapshot</code> returns the figures at one point in time, along
+ * with the outbound queues of the connections open then, and what the
+ * compressing codecs the server currently accepts have done.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#getMetrics()
+ */
+public final class ServerMetrics {
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The server measured.
+     */
+    private final AbstractServer server;
+
+    /**
+     * The messages and bytes received from clients.
+     */
+    private final LongAdder messagesIn = new LongAdder(), bytesIn = new LongAdder();
+
+    /**
+     * The messages and bytes sent to clients.
+     */
+    private final LongAdder messagesOut = new LongAdder(), bytesOut = new LongAdder();
+
+    /**
+     * The messages dropped for exceeding the rate limit of their client.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * The connections accepted.
+     */
+    private final LongAdder accepted = new LongAdder();
+
+    /**
+     * The connections closed for being idle.
+     */
+    private final LongAdder reaped = new LongAdder();
+
+    /**
+     * The time, in ns, taken by each <code>sendToAllClients</code> or
+     * <code>sendToChannel</code>.
+     */
+    private final Histogram fanoutTimes = new Histogram();
+
+    /**
+     * The time, in ns, taken by each <code>handleMessageFromClient</code>.
+     */
+    private final Histogram handlerTimes = new Histogram();
+
+    /**
+     * The last snapshot taken, from which rates are computed.
+     */
+    private volatile Snapshot last;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs the metrics of a server.
+     *
+     * @param server the server measured.
+     */
+    ServerMetrics(AbstractServer server) {
+        this.server = server;
+        this.last = new Snapshot();
+    }
+
+    // INSTANCE METHODS *************************************************
+
+    /**
+     * Returns the figures of the server now. The accept rate is computed
+     * since the previous snapshot.
+     *
+     * @return the snapshot.
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.time = System.currentTimeMillis();
+        snapshot.messagesIn = messagesIn.sum();
+        snapshot.bytesIn = bytesIn.sum();
+        snapshot.messagesOut = messagesOut.sum();
+        snapshot.bytesOut = bytesOut.sum();
+        snapshot.dropped = dropped.sum();
+        snapshot.accepted = accepted.sum();
+        snapshot.reaped = reaped.sum();
+        snapshot.fanoutTimes = fanoutTimes.snapshot();
+        snapshot.handlerTimes = handlerTimes.snapshot();
+
+        int[] queues = new int[2];
+        server.forEachClient(ServerMetrics::countQueue, queues);
+        snapshot.clients = server.getNumberOfClients();
+        snapshot.queuedMessages = queues[0];
+        snapshot.maxQueueDepth = queues[1];
+
+        for (Codec codec : server.getCodecs()) {
+            if (codec instanceof DeflateCodec) {
+                DeflateCodec deflate = (DeflateCodec) codec;
+                snapshot.rawPayloads += deflate.getRawPayloads();
+                snapshot.deflatedPayloads += deflate.getDeflatedPayloads();
+                snapshot.bytesBeforeCompression += deflate.getBytesBeforeCompression();
+                snapshot.bytesAfterCompression += deflate.getBytesAfterCompression();
+                snapshot.deflateNanos += deflate.getDeflateNanos();
+                snapshot.inflateNanos += deflate.getInflateNanos();
+            }
+        }
+
+        Snapshot previous = last;
+        long elapsed = snapshot.time - previous.time;
+        snapshot.acceptRate = elapsed <= 0 ? 0.0
+                : (snapshot.accepted - previous.accepted) * 1000.0 / elapsed;
+        last = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Adds the queue of a connection to the totals of a snapshot.
+     *
+     * @param client the connection.
+     * @param queues the queued messages and the deepest queue so far.
+     */
+    private static void countQueue(ConnectionToClient client, int[] queues) {
+        int depth = client.getOutboundQueueDepth();
+        queues[0] += depth;
+        queues[1] = Math.max(queues[1], depth);
+    }
+
+    // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+    /**
+     * Counts a message received.
+     */
+    void messageReceived() {
+        messagesIn.increment();
+    }
+
+    /**
+     * Counts a message sent to one client.
+     */
+    void messageSent() {
+        messagesOut.increment();
+    }
+
+    /**
+     * Counts bytes read from a socket.
+     *
+     * @param bytes the number of bytes.
+     */
+    void bytesRead(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Counts bytes written to a socket.
+     *
+     * @param bytes the number of bytes.
+     */
+    void bytesWritten(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Counts a message dropped for exceeding a rate limit.
+     */
+    void messageDropped() {
+        dropped.increment();
+    }
+
+    /**
+     * Counts a connection accepted.
+     */
+    void connectionAccepted() {
+        accepted.increment();
+    }
+
+    /**
+     * Counts a connection closed for being idle.
+     */
+    void connectionReaped() {
+        reaped.increment();
+    }
+
+    /**
+     * Records the time taken by a <code>sendToAllClients</code> or
+     * <code>sendToChannel</code>.
+     *
+     * @param nanos the time, in ns.
+     */
+    void fanoutTime(long nanos) {
+        fanoutTimes.record(nanos);
+    }
+
+    /**
+     * Records the time taken by a <code>handleMessageFromClient</code>.
+     *
+     * @param nanos the time, in ns.
+     */
+    void handlerTime(long nanos) {
+        handlerTimes.record(nanos);
+    }
+
+    /**
+     * Wraps the input stream of a socket so that the bytes read are
+     * counted.
+     *
+     * @param in the stream.
+     * @return the counting stream.
+     */
+    InputStream meter(InputStream in) {
+        return new FilterInputStream(in) {
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0)
+                    bytesIn.increment();
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read > 0)
+                    bytesIn.add(read);
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Wraps the output stream of a socket so that the bytes written are
+     * counted.
+     *
+     * @param out the stream.
+     * @return the counting stream.
+     */
+    OutputStream meter(OutputStream out) {
+        return new FilterOutputStream(out) {
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    // INNER CLASSES ----------------------------------------------------
+
+    /**
+     * The figures of a server at one point in time. Counts are totals since
+     * the server was created; times are in nanoseconds.
+     */
+    public static final class Snapshot {
+        private long time = System.currentTimeMillis();
+        private long messagesIn, bytesIn, messagesOut, bytesOut, dropped, accepted, reaped;
+        private double acceptRate;
+        private int clients, queuedMessages, maxQueueDepth;
+        private long rawPayloads, deflatedPayloads, bytesBeforeCompression, bytesAfterCompression;
+        private long deflateNanos, inflateNanos;
+        private long[] fanoutTimes = new long[Histogram.BUCKETS];
+        private long[] handlerTimes = new long[Histogram.BUCKETS];
+
+        private Snapshot() {
+        }
+
+        /**
+         * @return the time of the snapshot, in ms since the epoch.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the messages received from clients.
+         */
+        public long getMessagesIn() {
+            return messagesIn;
+        }
+
+        /**
+         * @return the bytes read from the clients' sockets.
+         */
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        /**
+         * @return the messages sent, counted once per client.
+         */
+        public long getMessagesOut() {
+            return messagesOut;
+        }
+
+        /**
+         * @return the bytes written to the clients' sockets.
+         */
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        /**
+         * @return the messages dropped for exceeding the rate limit of their
+         * client.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return the connections accepted.
+         */
+        public long getAccepted() {
+            return accepted;
+        }
+
+        /**
+         * @return the connections closed for being idle.
+         */
+        public long getReaped() {
+            return reaped;
+        }
+
+        /**
+         * @return the connections accepted per second since the previous
+         * snapshot.
+         */
+        public double getAcceptRate() {
+            return acceptRate;
+        }
+
+        /**
+         * @return the clients connected.
+         */
+        public int getClients() {
+            return clients;
+        }
+
+        /**
+         * @return the messages waiting in the outbound queues of all
+         * clients.
+         */
+        public int getQueuedMessages() {
+            return queuedMessages;
+        }
+
+        /**
+         * @return the messages waiting in the deepest outbound queue.
+         */
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        /**
+         * @return the payloads compressed by the codecs that compress, each
+         * broadcast counting once.
+         */
+        public long getDeflatedPayloads() {
+            return deflatedPayloads;
+        }
+
+        /**
+         * @return the payloads the codecs that compress sent as they are,
+         * being too short or not shrinking.
+         */
+        public long getRawPayloads() {
+            return rawPayloads;
+        }
+
+        /**
+         * @return the size of the compressed payloads after compression, as
+         * a fraction of their size before; 1 if none was compressed.
+         */
+        public double getCompressionRatio() {
+            return bytesBeforeCompression == 0 ? 1.0
+                    : (double) bytesAfterCompression / bytesBeforeCompression;
+        }
+
+        /**
+         * @return the time spent compressing payloads, in ns.
+         */
+        public long getDeflateNanos() {
+            return deflateNanos;
+        }
+
+        /**
+         * @return the time spent decompressing payloads, in ns.
+         */
+        public long getInflateNanos() {
+            return inflateNanos;
+        }
+
+        /**
+         * @return the number of calls to <code>sendToAllClients</code> and
+         * <code>sendToChannel</code>.
+         */
+        public long getFanouts() {
+            return Histogram.total(fanoutTimes);
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100.
+         * @return the time, in ns, within which that percentage of the
+         * calls to <code>sendToAllClients</code> and
+         * <code>sendToChannel</code> returned.
+         */
+        public long getFanoutTime(double percentile) {
+            return Histogram.percentile(fanoutTimes, percentile);
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100.
+         * @return the time, in ns, within which that percentage of the
+         * calls to <code>handleMessageFromClient</code> returned.
+         */
+        public long getHandlerTime(double percentile) {
+            return Histogram.percentile(handlerTimes, percentile);
+        }
+
+        /**
+         * @return the figures, one per line.
+         */
+        public String toString() {
+            return String.format("clients          %d%n"
+                            + "accepted         %d (%.1f/s), %d closed idle%n"
+                            + "messages in/out  %d / %d (%d dropped)%n"
+                            + "bytes in/out     %d / %d%n"
+                            + "queued messages  %d (deepest %d)%n"
+                            + "fanout us        p50 %.1f  p99 %.1f  p99.9 %.1f (%d calls)%n"
+                            + "handler us       p50 %.1f  p99 %.1f  p99.9 %.1f%n"
+                            + "compression      ratio %.2f (%d compressed, %d raw)  "
+                            + "deflate %.1f ms  inflate %.1f ms",
+                    clients, accepted, acceptRate, reaped, messagesIn, messagesOut, dropped, bytesIn, bytesOut,
+                    queuedMessages, maxQueueDepth,
+                    getFanoutTime(50) / 1e3, getFanoutTime(99) / 1e3, getFanoutTime(99.9) / 1e3,
+                    getFanouts(),
+                    getHandlerTime(50) / 1e3, getHandlerTime(99) / 1e3, getHandlerTime(99.9) / 1e3,
+                    getCompressionRatio(), deflatedPayloads, rawPayloads,
+                    deflateNanos / 1e6, inflateNanos / 1e6);
+        }
+    }
+}
+// End of ServerMetrics class
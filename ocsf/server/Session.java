@@ -0,0 +1,269 @@
+// This file contains material supporting the OCSF framework used in
+// section 3.8 of the textbook "Object-Oriented Software Engineering".
+
+package ocsf.server;
+
+import java.io.*;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A <code> Session </code> outlives the connection of a client, so that a
+ * client whose connection drops can resume where it left off on a new
+ * one. It is identified by a random token, which the server gives to the
+ * client and the client presents when it reconnects. The token travels in
+ * a session frame of its own, which no message sent by another client can
+ * imitate, so only clients using a codec have sessions.<p>
+ * <p>
+ * Every frame sent to the client during the session is numbered, from 1,
+ * and the last ones are kept in a ring of fixed size: frames sent to the
+ * client's connection, and while the session is detached from any
+ * connection, frames broadcast to all clients or to the channels the client
+ * was subscribed to. A client that counts the messages it receives after
+ * the token can then be sent only those it missed, as long as they are
+ * still in the ring. When the session is resumed, a session frame tells
+ * the client so just before the frames it missed, which come before any
+ * other; the messages received on the new connection until then were
+ * broadcast while the session was detached, and are among them. The information saved on the connection and its channel
+ * subscriptions are carried over to the new connection.<p>
+ * <p>
+ * A detached session is kept for the grace period of its server, then
+ * forgotten. Sessions are created with
+ * <code>AbstractServer.openSession</code>.<p>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ocsf.server.AbstractServer#openSession(ConnectionToClient)
+ * @see ocsf.server.AbstractServer#resumeSession(ConnectionToClient, String, long)
+ */
+public final class Session {
+    // CLASS VARIABLES ***************************************************
+
+    /**
+     * The source of the session tokens.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The token identifying the session.
+     */
+    private final String token;
+
+    /**
+     * The login ID of the client when the session was opened, or null.
+     */
+    private final String loginID;
+
+    /**
+     * The last frames sent, indexed by number modulo the size of the ring.
+     */
+    private final Frame[] ring;
+
+    /**
+     * The number of frames sent during the session, which is also the
+     * number of the last one.
+     */
+    private long sent = 0;
+
+    /**
+     * The connection of the client, or null while the session is detached.
+     */
+    private ConnectionToClient client;
+
+    /**
+     * The time the session was detached, as given by
+     * <code>System.nanoTime</code>.
+     */
+    private long detachedAt;
+
+    /**
+     * The information saved on the connection and the channels it was
+     * subscribed to, when the session was detached.
+     */
+    private Map<String, Object> info = null;
+    private String[] channels = null;
+
+    // CONSTRUCTORS *****************************************************
+
+    /**
+     * Constructs a session attached to a connection.
+     *
+     * @param client the connection.
+     * @param frames the number of frames kept.
+     */
+    Session(ConnectionToClient client, int frames) {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        StringBuilder hex = new StringBuilder(32);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        this.token = hex.toString();
+        this.loginID = client.getLoginID();
+        this.ring = new Frame[frames];
+        this.client = client;
+    }
+
+    // ACCESSING METHODS ------------------------------------------------
+
+    /**
+     * @return the token identifying the session, to be given to the client.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return the login ID of the client when the session was opened, or
+     * null if it had none.
+     */
+    public String getLoginID() {
+        return loginID;
+    }
+
+    /**
+     * @return the number of frames sent during the session so far.
+     */
+    public synchronized long getFramesSent() {
+        return sent;
+    }
+
+    /**
+     * @return the connection of the client, or null if the session is
+     * detached.
+     */
+    public synchronized ConnectionToClient getClient() {
+        return client;
+    }
+
+    // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+    /**
+     * Attaches the new session to its connection, and gives the client its
+     * token before any frame of the session.
+     *
+     * @throws IOException if the token cannot be written.
+     */
+    synchronized void open() throws IOException {
+        client.attach(this);
+        client.writeSession(token, false);
+    }
+
+    /**
+     * Numbers and keeps a frame sent to the client, then writes it to the
+     * current connection, if any. A frame sent to a connection the session
+     * has left goes to the connection it has moved to.
+     *
+     * @param frame the frame.
+     * @throws IOException if the frame cannot be written.
+     */
+    synchronized void send(Frame frame) throws IOException {
+        ring[(int) (sent++ % ring.length)] = frame;
+        if (client != null)
+            client.writeFrame(frame);
+    }
+
+    /**
+     * Keeps a frame broadcast while the session is detached, if the client
+     * would have received it. Called as part of the broadcast, with the
+     * server's session lock shared, so that the session cannot detach or
+     * resume halfway through.
+     *
+     * @param frame   the frame.
+     * @param channel the channel it was sent to, or null for all clients.
+     */
+    synchronized void missed(Frame frame, String channel) {
+        if (client == null && (channel == null || Arrays.asList(channels).contains(channel)))
+            ring[(int) (sent++ % ring.length)] = frame;
+    }
+
+    /**
+     * Detaches the session from a closing connection, saving what is to be
+     * carried over to the next one. Called with the server's session lock
+     * held, along with the removal of the connection from the server.
+     *
+     * @param connection the connection.
+     * @param info       the information saved on it.
+     * @param channels   the channels it is subscribed to.
+     * @return true if the session was attached to that connection.
+     */
+    synchronized boolean detach(ConnectionToClient connection, Map<String, Object> info,
+                                String[] channels) {
+        if (client != connection)
+            return false;
+        client = null;
+        detachedAt = System.nanoTime();
+        this.info = new HashMap<String, Object>(info);
+        this.channels = channels;
+        return true;
+    }
+
+    /**
+     * Tells if the frames numbered after the last one a client received
+     * are all kept, so that the session could resume from it.
+     *
+     * @param lastSeen the number of the last frame the client received.
+     * @return true if the number is valid and the frames after it kept.
+     */
+    synchronized boolean canResume(long lastSeen) {
+        return lastSeen >= 0 && lastSeen <= sent && sent - lastSeen <= ring.length;
+    }
+
+    /**
+     * Attaches the detached session to a new connection, and sends it the
+     * frames numbered after the last one the client received, after a
+     * session frame telling it the session is resumed. Nothing sent
+     * meanwhile can come before them. Called with the server's session
+     * lock held.
+     *
+     * @param connection the new connection.
+     * @param lastSeen   the number of the last frame the client received.
+     * @return true if the session was resumed; false if it is attached,
+     * or the frames missed are no longer all kept.
+     * @throws IOException if the frames cannot be written.
+     */
+    synchronized boolean resume(ConnectionToClient connection, long lastSeen) throws IOException {
+        if (client != null || !canResume(lastSeen))
+            return false;
+
+        client = connection;
+        connection.attach(this);
+        connection.writeSession(token, true);
+        for (long number = lastSeen + 1; number <= sent; number++) {
+            connection.writeFrame(ring[(int) ((number - 1) % ring.length)]);
+        }
+        return true;
+    }
+
+    /**
+     * @return the information saved on the connection when the session was
+     * last detached.
+     */
+    synchronized Map<String, Object> getSavedInfo() {
+        return info;
+    }
+
+    /**
+     * @return the channels the connection was subscribed to when the
+     * session was last detached.
+     */
+    synchronized String[] getSavedChannels() {
+        return channels;
+    }
+
+    /**
+     * @param now         the current time, as given by
+     *                    <code>System.nanoTime</code>.
+     * @param gracePeriod the time, in ns, a detached session is kept.
+     * @return true if the session has been detached for longer than the
+     * grace period.
+     */
+    synchronized boolean isExpired(long now, long gracePeriod) {
+        return client == null && now - detachedAt > gracePeriod;
+    }
+}
+// End of Session class